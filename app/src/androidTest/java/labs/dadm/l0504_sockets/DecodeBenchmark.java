@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import labs.dadm.l0504_sockets.utils.BitmapPool;
+import labs.dadm.l0504_sockets.utils.ImageUtils;
+
+// Measures the cost of sampling a received image before displaying it, on the device,
+// comparing the original decoding in two passes with ImageUtils.sampleImage().
+// Run it with: ./gradlew :app:connectedBenchmarkAndroidTest
+@RunWith(AndroidJUnit4.class)
+public class DecodeBenchmark {
+
+    // Size of the image, as taken by the camera of a phone
+    private static final int WIDTH = 4032;
+    private static final int HEIGHT = 3024;
+    // Fixed seed, so every run decodes exactly the same image
+    private static final long SEED = 0x5EED;
+
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    private Context context;
+    private File image;
+
+    // Creates a JPEG image with noisy content, which costs as much to decode as a photo.
+    @Before
+    public void setUp() throws IOException {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        image = new File(context.getCacheDir(), "benchmark.jpg");
+        final Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        final Random random = new Random(SEED);
+        final int[] row = new int[WIDTH];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                row[x] = 0xFF000000 | random.nextInt(0x1000000);
+            }
+            bitmap.setPixels(row, 0, WIDTH, 0, y, WIDTH, 1);
+        }
+        final FileOutputStream fos = new FileOutputStream(image);
+        try {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 90, fos);
+        } finally {
+            fos.close();
+        }
+        bitmap.recycle();
+    }
+
+    @After
+    public void tearDown() {
+        image.delete();
+    }
+
+    // Current decoding: a single pass over the file, reusing the memory of previous bitmaps.
+    @Test
+    public void sampleImage() {
+        final BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            final Bitmap bitmap = ImageUtils.sampleImage(context, ImageUtils.GET_IMAGE_FROM_PATH, image);
+            state.pauseTiming();
+            // The bitmap is replaced on screen by the next one, as when receiving images
+            BitmapPool.release(bitmap);
+            state.resumeTiming();
+        }
+    }
+
+    // Original decoding: the file is opened twice, first to get the size of the image.
+    @Test
+    public void decodeTwice() throws IOException {
+        final BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            final Bitmap bitmap = decodeTwice(image);
+            state.pauseTiming();
+            bitmap.recycle();
+            state.resumeTiming();
+        }
+    }
+
+    // Samples the image as the app originally did, before ImageUtils decoded it in a single pass.
+    private static Bitmap decodeTwice(File file) throws IOException {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        InputStream is = new FileInputStream(file);
+        BitmapFactory.decodeStream(is, null, options);
+        is.close();
+
+        options.inJustDecodeBounds = false;
+        int inSampleSize = 1;
+        if ((options.outHeight > 200) || (options.outWidth > 200)) {
+            final int halfHeight = options.outHeight / 2;
+            final int halfWidth = options.outWidth / 2;
+            while (((halfHeight / inSampleSize) > 200) && ((halfWidth / inSampleSize) > 200)) {
+                inSampleSize *= 2;
+            }
+        }
+        options.inSampleSize = inSampleSize;
+
+        is = new FileInputStream(file);
+        final Bitmap bitmap = BitmapFactory.decodeStream(is, null, options);
+        is.close();
+        return bitmap;
+    }
+}
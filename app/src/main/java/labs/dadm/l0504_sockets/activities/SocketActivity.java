@@ -5,6 +5,7 @@
 package labs.dadm.l0504_sockets.activities;
 
 import android.app.Activity;
+import android.content.ClipData;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.net.ConnectivityManager;
@@ -14,6 +15,7 @@ import android.net.NetworkInfo;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.widget.CheckBox;
 import android.widget.EditText;
 import android.widget.ImageView;
 import android.widget.TabHost;
@@ -25,17 +27,28 @@ import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.appcompat.app.AppCompatActivity;
 
-import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import labs.dadm.l0504_sockets.R;
-import labs.dadm.l0504_sockets.threads.ClientThread;
+import labs.dadm.l0504_sockets.discovery.DiscoveryBrowser;
+import labs.dadm.l0504_sockets.discovery.PeerTable;
+import labs.dadm.l0504_sockets.threads.ImageSender;
+import labs.dadm.l0504_sockets.threads.LanDiscovery;
+import labs.dadm.l0504_sockets.threads.SelectorServerThread;
+import labs.dadm.l0504_sockets.threads.ServerEngine;
 import labs.dadm.l0504_sockets.threads.ServerThread;
+import labs.dadm.l0504_sockets.utils.BitmapPool;
+import labs.dadm.l0504_sockets.utils.DecodeScheduler;
 import labs.dadm.l0504_sockets.utils.ImageUtils;
+import labs.dadm.l0504_sockets.utils.ThumbnailCache;
+import labs.dadm.l0504_sockets.utils.TransferEventBus;
 
 // Transfers an image from a Client device to a Server device by means of a socket bound to port 9999.
 // Both devices should be connected to the same network.
@@ -45,24 +58,59 @@ public class SocketActivity extends AppCompatActivity {
 
     // Hold reference to the View objects
     TextView tvAddress;
+    TextView tvServerTransfers;
+    TextView tvClientTransfers;
     ImageView ivServer;
     ImageView ivClient;
     EditText etAddress;
     ToggleButton bToggle;
+    CheckBox cbNonBlocking;
+    CheckBox cbPreviews;
+    CheckBox cbParallel;
 
     // Hold reference to the thread in charge of managing the Server
-    ServerThread serverThread;
+    ServerEngine serverThread;
 
-    // Hold reference to the URI identifying the location of the image to be sent
-    Uri imageUri;
+    // Hold reference to the component in charge of sending images
+    ImageSender sender;
+
+    // Hold reference to the component finding the Servers on the local network and announcing this one
+    LanDiscovery discovery;
+
+    // Hold reference to the URIs identifying the location of the images to be sent
+    final ArrayList<Uri> imageUris = new ArrayList<>();
+
+    // Hold reference to the images currently displayed, to reuse their memory once replaced
+    Bitmap serverBitmap;
+    Bitmap clientBitmap;
 
     ActivityResultLauncher<Intent> launcher;
 
+    // Delivers the events of the transfers from the background threads to the UI
+    TransferEventBus events;
+    // Event to be displayed once all the events of the current frame have been delivered
+    int pendingNotification = -1;
+    // Toast reused to display all the events
+    Toast toast;
+    // Bytes moved so far by the transfers in progress, by transfer
+    final LinkedHashMap<Long, Long> receiving = new LinkedHashMap<>();
+    final LinkedHashMap<Long, Long> sending = new LinkedHashMap<>();
+    // Whether the transfers in progress have changed since last displayed
+    boolean progressChanged;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_socket);
 
+        // Create the bus delivering the events of the transfers to the UI once per frame
+        events = new TransferEventBus(this, eventListener,
+                getResources().getInteger(R.integer.event_bus_capacity));
+
+        // Create the component that will send the images, reusing threads and connections
+        sender = new ImageSender(this);
+        discovery = new LanDiscovery(this, sender.getPeers());
+
         // Initialize the TabHost
         TabHost tabHost = findViewById(R.id.thSocket);
         tabHost.setup();
@@ -83,10 +131,16 @@ public class SocketActivity extends AppCompatActivity {
 
         // Keep reference to View objects
         tvAddress = findViewById(R.id.tvServerSocketAddress);
+        tvServerTransfers = findViewById(R.id.tvServerSocketTransfers);
+        tvClientTransfers = findViewById(R.id.tvClientSocketTransfers);
         ivServer = findViewById(R.id.ivServerSocketImage);
         ivClient = findViewById(R.id.ivClientSocketImage);
         etAddress = findViewById(R.id.etClientSocketAddress);
 
+        cbNonBlocking = findViewById(R.id.cbServerSocketNonBlocking);
+        cbPreviews = findViewById(R.id.cbServerSocketPreviews);
+        cbParallel = findViewById(R.id.cbClientSocketParallel);
+
         bToggle = findViewById(R.id.togServerSocket);
         bToggle.setOnClickListener(v -> toggleServer());
 
@@ -99,19 +153,61 @@ public class SocketActivity extends AppCompatActivity {
                 result -> {
                     // Check whether the operation was cancelled
                     if (result.getResultCode() == Activity.RESULT_OK) {
-                        // Get the URI of the selected image
+                        // Get the URIs of the selected images
                         if (result.getData() != null) {
-                            imageUri = result.getData().getData();
-                            // Sample the image and display on the Client UI
-                            ivClient.setImageBitmap(
-                                    ImageUtils.sampleImage(SocketActivity.this,
-                                            ImageUtils.GET_IMAGE_FROM_URI, imageUri));
+                            imageUris.clear();
+                            final ClipData clipData = result.getData().getClipData();
+                            if (clipData != null) {
+                                for (int i = 0; i < clipData.getItemCount(); i++) {
+                                    imageUris.add(clipData.getItemAt(i).getUri());
+                                }
+                            } else if (result.getData().getData() != null) {
+                                imageUris.add(result.getData().getData());
+                            }
+                            // Sample the first image on background and display on the Client UI.
+                            // Picking other images before it is done discards this one
+                            if (!imageUris.isEmpty()) {
+                                final Uri imageUri = imageUris.get(0);
+                                DecodeScheduler.getInstance().submit(ivClient,
+                                        DecodeScheduler.PRIORITY_USER,
+                                        () -> ImageUtils.loadThumbnail(getApplicationContext(),
+                                                ImageUtils.GET_IMAGE_FROM_URI, imageUri),
+                                        this::displaySelectedImage);
+                            }
+                            // Get a connection ready while the user checks the selected images
+                            if (!etAddress.getText().toString().isEmpty()) {
+                                sender.warmUp(etAddress.getText().toString());
+                            }
                         }
                     }
                 }
         );
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        // Look for Servers on the local network while the user can pick one
+        discovery.startBrowsing(peerListener);
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        discovery.stopBrowsing();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        discovery.stopAdvertising();
+        // Images decoded from now on would not be displayed
+        DecodeScheduler.getInstance().cancel(ivClient);
+        DecodeScheduler.getInstance().cancel(ivServer);
+        // Close the pooled connections and stop the threads sending images
+        sender.shutdown();
+    }
+
     // Determines whether the device has got Internet connection.
     private boolean isConnected() {
         boolean result = false;
@@ -141,9 +237,17 @@ public class SocketActivity extends AppCompatActivity {
         if (bToggle.isChecked()) {
             // Check that network connectivity exists
             if (isConnected()) {
-                // Launch the AsyncTask in charge of starting the Server
-                serverThread = new ServerThread(this);
+                // Launch the thread in charge of starting the Server,
+                // choosing between the blocking and the non-blocking implementations
+                if (cbNonBlocking.isChecked()) {
+                    serverThread = new SelectorServerThread(this, cbPreviews.isChecked());
+                } else {
+                    serverThread = new ServerThread(this, cbPreviews.isChecked());
+                }
                 serverThread.start();
+                // The implementation and the format of the images cannot be changed while the Server is running
+                cbNonBlocking.setEnabled(false);
+                cbPreviews.setEnabled(false);
             }
             // Notify the user that the device has not got Internet connection
             else {
@@ -154,17 +258,13 @@ public class SocketActivity extends AppCompatActivity {
         }
         // Server was up and running, so stop it
         else {
-            // Cancel the task for the server to stop
+            // Cancel the task for the server to stop.
+            // It also closes the ServerSocket, as it could be blocked waiting
+            // for new clients and will not stop just by cancelling the task
             serverThread.cancel();
-            try {
-                // Close the ServerSocket if it is active, as it could be blocked waiting
-                // for new clients and will not stop just by cancelling the task
-                if (serverThread.getServer().isBound()) {
-                    serverThread.getServer().close();
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            discovery.stopAdvertising();
+            cbNonBlocking.setEnabled(true);
+            cbPreviews.setEnabled(true);
         }
     }
 
@@ -190,22 +290,40 @@ public class SocketActivity extends AppCompatActivity {
         return null;
     }
 
-    // Launches an implicit Intent to select an image available in the device
+    // Launches an implicit Intent to select images available in the device
     private void selectImage() {
         Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
         intent.setType("image/*");
+        // All the selected images will be sent through the same connection
+        intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
         launcher.launch(intent);
     }
 
-    // Send the image file from the Client to the Server
+    // Fills in the address of a Server found on the local network, unless the user already entered one,
+    // and connects to it on background, so the first image is sent without waiting.
+    private void usePeer(PeerTable.Peer peer) {
+        if ((peer != null) && etAddress.getText().toString().isEmpty()) {
+            final String address = peer.getAddress().getAddress().getHostAddress();
+            etAddress.setText(address);
+            sender.warmUp(address);
+        }
+    }
+
+    // Receives the Servers found on the local network on a background thread.
+    final private DiscoveryBrowser.Listener peerListener =
+            peer -> runOnUiThread(() -> usePeer(sender.getPeers().getBest()));
+
+    // Send the image files from the Client to the Server
     private void sendImage() {
+        // Send the images to the best Server found if no address has been entered
+        usePeer(sender.getPeers().getBest());
         // Check that something has been entered as Server IP address and an image has been selected
-        if ((!etAddress.getText().toString().isEmpty()) && (imageUri != null)) {
+        if ((!etAddress.getText().toString().isEmpty()) && (!imageUris.isEmpty())) {
             // Check that network connectivity exists
             if (isConnected()) {
-                // Launch the AsyncTask in charge of sending the image file
-                ClientThread client = new ClientThread(this, etAddress.getText().toString(), imageUri);
-                client.start();
+                // Send the image files on background
+                sender.send(this, etAddress.getText().toString(), new ArrayList<>(imageUris),
+                        cbParallel.isChecked());
             } else {
                 // Notify the user that the device has not got Internet connection
                 Toast.makeText(this, R.string.not_connected, Toast.LENGTH_SHORT).show();
@@ -217,6 +335,11 @@ public class SocketActivity extends AppCompatActivity {
         }
     }
 
+    // Gets the Servers found on the local network.
+    public PeerTable getPeers() {
+        return sender.getPeers();
+    }
+
     // Displays the Server IP address and a Toast to notify that the ServerSocket is up and running.
     public void notifyServerRunning() {
         tvAddress.setText(String.format(
@@ -225,9 +348,37 @@ public class SocketActivity extends AppCompatActivity {
         Toast.makeText(this, R.string.message_server_on, Toast.LENGTH_SHORT).show();
     }
 
+    // Displays the image selected to be sent on the Client UI.
+    private void displaySelectedImage(Bitmap bitmap) {
+        final Bitmap previous = clientBitmap;
+        clientBitmap = bitmap;
+        ivClient.setImageBitmap(bitmap);
+        releaseBitmap(previous);
+    }
+
+    // Decodes a received image on background, from any thread, and displays it on the Server UI.
+    // Only the most recently requested image is displayed, so stale previews are discarded.
+    public void decodeReceivedImage(int priority, DecodeScheduler.Decoder decoder) {
+        DecodeScheduler.getInstance().submit(ivServer, priority, decoder, this::displayReceivedImage);
+    }
+
     // Displays the received image on the UI.
     public void displayReceivedImage(Bitmap bitmap) {
+        // Images still being decoded are older than this one
+        DecodeScheduler.getInstance().cancel(ivServer);
+        final Bitmap previous = serverBitmap;
+        serverBitmap = bitmap;
         ivServer.setImageBitmap(bitmap);
+        releaseBitmap(previous);
+    }
+
+    // Reuses the memory of an image no longer displayed,
+    // unless it is still displayed on the other tab or cached to be displayed again.
+    private void releaseBitmap(Bitmap bitmap) {
+        if ((bitmap != null) && (bitmap != serverBitmap) && (bitmap != clientBitmap)
+                && !ThumbnailCache.getInstance(this).holds(bitmap)) {
+            BitmapPool.release(bitmap);
+        }
     }
 
     public static final int NEW_CLIENT = 0;
@@ -236,41 +387,152 @@ public class SocketActivity extends AppCompatActivity {
     public static final int SENDING_IMAGE = 3;
     public static final int IMAGE_SENT = 4;
     public static final int IMAGE_NOT_SENT = 5;
+    public static final int CLIENT_QUEUED = 6;
+    public static final int CLIENT_REJECTED = 7;
+    public static final int SERVER_RUNNING = 8;
+    public static final int RECEIVING_PROGRESS = 9;
+    public static final int RECEIVING_DONE = 10;
+    public static final int SENDING_PROGRESS = 11;
+
+    // Identifier of the events not related to any particular transfer
+    public static final long NO_TRANSFER = -1;
+
+    // Notifies an event of a transfer from any thread.
+    // Events are delivered to the UI once per frame, instead of posting a Runnable for each one.
+    // Progress events may be dropped if the UI falls behind, as the next one supersedes them.
+    public void postEvent(long transferId, int notification, long bytes) {
+        if ((notification == RECEIVING_PROGRESS) || (notification == SENDING_PROGRESS)) {
+            events.postProgress(transferId, notification, bytes);
+        } else {
+            events.post(transferId, notification, bytes);
+        }
+    }
+
+    // Receives the events of the transfers on the UI thread.
+    // Only the last event of each frame is displayed, unless a previous one notified a problem,
+    // while the progress of the transfers is displayed on each tab.
+    final private TransferEventBus.Listener eventListener = new TransferEventBus.Listener() {
+        @Override
+        public void onEvent(long transferId, int type, long bytes) {
+            // Keep track of the transfers in progress
+            switch (type) {
+                case RECEIVING_PROGRESS:
+                    receiving.put(transferId, bytes);
+                    progressChanged = true;
+                    return;
+                case RECEIVING_DONE:
+                    progressChanged |= (receiving.remove(transferId) != null);
+                    return;
+                case SENDING_PROGRESS:
+                    sending.put(transferId, bytes);
+                    progressChanged = true;
+                    return;
+                case IMAGE_SENT:
+                case IMAGE_NOT_SENT:
+                    progressChanged |= (sending.remove(transferId) != null);
+                    break;
+                case SERVER_DOWN:
+                    discovery.stopAdvertising();
+                    break;
+            }
+
+            if (type == SERVER_RUNNING) {
+                notifyServerRunning();
+                // Let the Clients on the local network find this Server
+                discovery.startAdvertising(
+                        ServerThread.createHello(SocketActivity.this, cbPreviews.isChecked()));
+            } else if ((pendingNotification < 0) || !isError(pendingNotification) || isError(type)) {
+                pendingNotification = type;
+            }
+        }
+
+        @Override
+        public void onEventsDrained() {
+            if (pendingNotification >= 0) {
+                displayNotifications(pendingNotification);
+                pendingNotification = -1;
+            }
+            if (progressChanged) {
+                progressChanged = false;
+                displayProgress(tvServerTransfers, receiving);
+                displayProgress(tvClientTransfers, sending);
+            }
+        }
+    };
+
+    // Displays the bytes moved so far by each transfer in progress, one per line.
+    private void displayProgress(TextView view, LinkedHashMap<Long, Long> transfers) {
+        final StringBuilder text = new StringBuilder();
+        for (Map.Entry<Long, Long> transfer : transfers.entrySet()) {
+            if (text.length() > 0) {
+                text.append('\n');
+            }
+            text.append(getString(R.string.transfer_progress, transfer.getKey(), transfer.getValue() / 1024));
+        }
+        view.setText(text);
+    }
 
     // Displays a Toast to notify the user about different events.
+    // A single Toast is reused, so a burst of events just updates its text.
     public void displayNotifications(int notification) {
 
         switch (notification) {
 
             // A new Client has been accepted
             case NEW_CLIENT:
-                Toast.makeText(this, R.string.message_server_receiving_image, Toast.LENGTH_SHORT).show();
+                showToast(R.string.message_server_receiving_image);
+                break;
+
+            // A new Client has been accepted, but must wait for a free worker
+            case CLIENT_QUEUED:
+                showToast(R.string.message_server_queued);
+                break;
+
+            // A new Client has been rejected, as all workers are busy
+            case CLIENT_REJECTED:
+                showToast(R.string.message_server_rejected);
                 break;
 
             // Some problem occurred with the Server.
             case SERVER_ERROR:
-                Toast.makeText(this, R.string.message_server_error, Toast.LENGTH_SHORT).show();
+                showToast(R.string.message_server_error);
                 break;
 
             // The Server is down.
             case SERVER_DOWN:
-                Toast.makeText(this, R.string.message_server_off, Toast.LENGTH_SHORT).show();
+                showToast(R.string.message_server_off);
                 break;
 
             // The Client is sending the image
             case SENDING_IMAGE:
-                Toast.makeText(this, R.string.sending_image, Toast.LENGTH_SHORT).show();
+                showToast(R.string.sending_image);
                 break;
 
             // The image has been sent
             case IMAGE_SENT:
-                Toast.makeText(this, R.string.image_sent, Toast.LENGTH_SHORT).show();
+                showToast(R.string.image_sent);
                 break;
 
             // The image has not been sent
             case IMAGE_NOT_SENT:
-                Toast.makeText(this, R.string.image_not_sent, Toast.LENGTH_SHORT).show();
+                showToast(R.string.image_not_sent);
                 break;
         }
     }
-}
\ No newline at end of file
+
+    // Shows the given text in the Toast reused for all the events.
+    private void showToast(int resId) {
+        if (toast == null) {
+            toast = Toast.makeText(this, resId, Toast.LENGTH_SHORT);
+        } else {
+            toast.setText(resId);
+        }
+        toast.show();
+    }
+
+    // Determines whether the event notifies a problem, which must not be hidden by others.
+    private static boolean isError(int notification) {
+        return (notification == SERVER_ERROR) || (notification == SERVER_DOWN)
+                || (notification == IMAGE_NOT_SENT) || (notification == CLIENT_REJECTED);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.threads;
+
+import android.util.Log;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+
+import labs.dadm.l0504_sockets.activities.SocketActivity;
+import labs.dadm.l0504_sockets.protocol.FrameHeader;
+import labs.dadm.l0504_sockets.transfer.TransferListener;
+import labs.dadm.l0504_sockets.utils.DecodeScheduler;
+import labs.dadm.l0504_sockets.utils.ImagePyramid;
+import labs.dadm.l0504_sockets.utils.ImageUtils;
+import labs.dadm.l0504_sockets.utils.TransferStats;
+
+// Turns what happens on a Server into the events displayed by SocketActivity:
+// previews of the images being received, thumbnails of those stored, and notifications.
+// Stored images also get their renditions generated (see ImagePyramid).
+class ActivityListener implements TransferListener {
+
+    private static final String TAG = "ActivityListener";
+
+    // Hold reference to the activity displaying the events
+    final private WeakReference<SocketActivity> reference;
+
+    ActivityListener(SocketActivity activity) {
+        reference = new WeakReference<>(activity);
+    }
+
+    // Notifies the given event to the activity, if still there.
+    private void post(long transferId, int notification, long bytes) {
+        final SocketActivity activity = reference.get();
+        if (activity != null) {
+            activity.postEvent(transferId, notification, bytes);
+        }
+    }
+
+    @Override
+    public void onServerRunning() {
+        // Display Server IP address and port and notify it is up and running
+        post(SocketActivity.NO_TRANSFER, SocketActivity.SERVER_RUNNING, 0);
+    }
+
+    @Override
+    public void onServerStopped(Exception error) {
+        if (error != null) {
+            post(SocketActivity.NO_TRANSFER, SocketActivity.SERVER_ERROR, 0);
+        }
+        post(SocketActivity.NO_TRANSFER, SocketActivity.SERVER_DOWN, 0);
+    }
+
+    @Override
+    public void onClientAccepted(long connectionId) {
+        post(connectionId, SocketActivity.NEW_CLIENT, 0);
+    }
+
+    @Override
+    public void onClientQueued(long connectionId) {
+        post(connectionId, SocketActivity.CLIENT_QUEUED, 0);
+    }
+
+    @Override
+    public void onClientRejected(long connectionId) {
+        post(connectionId, SocketActivity.CLIENT_REJECTED, 0);
+    }
+
+    // Displays previews of the image as it arrives.
+    // Compressed payloads cannot be decoded until restored, so they get no previews.
+    @Override
+    public ImageProgress onImageStarted(long connectionId, FrameHeader header, File file, long start) {
+        if (header.getEncoding() != FrameHeader.ENCODING_IDENTITY) {
+            return null;
+        }
+        return ProgressivePreview.create(reference, file, start,
+                start + header.getPayloadLength());
+    }
+
+    // Logs the cost of receiving each payload, so the copy modes can be compared on the device
+    // (see R.bool.server_zero_copy).
+    @Override
+    public void onPayloadMeasured(long connectionId, String mode, TransferStats stats) {
+        Log.d(TAG, mode + ": " + stats);
+    }
+
+    @Override
+    public void onProgress(long connectionId, long received) {
+        post(connectionId, SocketActivity.RECEIVING_PROGRESS, received);
+    }
+
+    // Generates the renditions of the stored image on background, unless it was already received
+    // before, and displays its thumbnail on the UI.
+    // If the renditions cannot be generated, the original image is sampled instead.
+    @Override
+    public void onImageStored(long connectionId, String contentId, File file) {
+        final SocketActivity activity = reference.get();
+        if (activity == null) {
+            return;
+        }
+        if (file == null) {
+            activity.runOnUiThread(() -> activity.displayReceivedImage(null));
+            return;
+        }
+        ImagePyramid.getInstance(activity).generate(contentId, file, thumbnail -> {
+            final SocketActivity current = reference.get();
+            if (current != null) {
+                current.decodeReceivedImage(DecodeScheduler.PRIORITY_RECEIVED,
+                        () -> (reference.get() != null)
+                                ? ImageUtils.loadThumbnail(reference.get(),
+                                (thumbnail != null) ? thumbnail : file, contentId)
+                                : null);
+            }
+        });
+    }
+
+    @Override
+    public void onClientClosed(long connectionId, long received) {
+        post(connectionId, SocketActivity.RECEIVING_DONE, received);
+    }
+}
@@ -4,32 +4,87 @@
 
 package labs.dadm.l0504_sockets.threads;
 
+import android.content.ContentResolver;
+import android.database.Cursor;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.lang.ref.WeakReference;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 
-import labs.dadm.l0504_sockets.R;
 import labs.dadm.l0504_sockets.activities.SocketActivity;
+import labs.dadm.l0504_sockets.protocol.ContentId;
+import labs.dadm.l0504_sockets.protocol.Encodings;
+import labs.dadm.l0504_sockets.protocol.FrameHeader;
+import labs.dadm.l0504_sockets.protocol.FrameIO;
+import labs.dadm.l0504_sockets.transfer.ChunkedUpload;
+import labs.dadm.l0504_sockets.transfer.OutgoingImage;
+import labs.dadm.l0504_sockets.transfer.SourceProvider;
+import labs.dadm.l0504_sockets.transfer.TransferClient;
+import labs.dadm.l0504_sockets.utils.BufferPool;
+import labs.dadm.l0504_sockets.utils.ImageUtils;
+import labs.dadm.l0504_sockets.utils.Metrics;
 
-public class ClientThread extends Thread {
+// Sends a batch of images to a Server.
+// It runs on the threads of the ImageSender, which also provides pooled connections,
+// and lets a TransferClient send the images shared by other apps.
+public class ClientThread implements Runnable, SourceProvider {
+
+    // Milliseconds to wait before the first attempt to resume, growing with each attempt
+    private static final long RETRY_DELAY = 1000;
+    // Quality of the re-encoded images if the Server does not state it
+    private static final int DEFAULT_QUALITY = 85;
 
     final private WeakReference<SocketActivity> reference;
+    final private ImageSender sender;
+    // Identifies this transfer in the events notified to the UI
+    final private long id;
     String serverAddress;
-    Uri imageUri;
+    List<Uri> imageUris;
     boolean imageSent;
+    // Whether large images are sent in chunks through several connections
+    final private boolean parallel;
+
+    // Number of images sent in chunks acknowledged by the Server as correctly received
+    private int acknowledged;
+    // Number of bytes of the images sent in chunks so far
+    private long bytesSent;
+    // Sends the images back to back through a single connection
+    private TransferClient client;
+    // Images sent back to back through a single connection, prepared only once for all the attempts
+    private List<Outgoing> outgoing;
+    // Images sent in chunks through several connections
+    private List<Uri> chunked;
+
+    public ClientThread(SocketActivity activity, ImageSender sender, String serverAddress, Uri imageUri) {
+        this(activity, sender, serverAddress, Collections.singletonList(imageUri), false);
+    }
 
-    public ClientThread(SocketActivity activity, String serverAddress, Uri imageUri) {
-        super();
+    // Sends a batch of images through a single connection.
+    // If parallel, images larger than a chunk are sent through several connections instead.
+    public ClientThread(SocketActivity activity, ImageSender sender, String serverAddress,
+                        List<Uri> imageUris, boolean parallel) {
         reference = new WeakReference<>(activity);
+        this.sender = sender;
+        id = sender.nextTransferId();
         this.serverAddress = serverAddress;
-        this.imageUri = imageUri;
+        this.imageUris = imageUris;
+        this.parallel = parallel;
     }
 
     @Override
@@ -38,64 +93,382 @@ public class ClientThread extends Thread {
 
         // Notifies the user, before starting the background task, that the image is about to be sent
         if (reference.get() != null) {
-            reference.get().runOnUiThread(
-                    () -> reference.get().displayNotifications(SocketActivity.SENDING_IMAGE));
+            reference.get().postEvent(id, SocketActivity.SENDING_IMAGE, 0);
         }
 
-        // Creates a Socket to connect to the Server device and sends an image.
+        // Gets a SocketChannel connected to the Server device and sends the images.
         try {
-            Socket socket = new Socket();
-            /// Connects to the Server at the given IP address and port
             if (reference.get() != null) {
-                socket.connect(
-                        new InetSocketAddress(
-                                InetAddress.getByName(serverAddress),
-                                reference.get().getResources().getInteger(R.integer.port_number)
-                        )
-                );
-                // Get the output channel through the Socket
-                OutputStream os = socket.getOutputStream();
-                // Get the input channel to image through its URI
-                if (reference.get() != null) {
-                    InputStream is = reference.get().getContentResolver().openInputStream(imageUri);
-                    // Read and send the image in chunks of 1024 bytes
-                    byte[] buffer = new byte[1024];
-                    int count;
-                    while ((count = is.read(buffer)) != -1) {
-                        os.write(buffer, 0, count);
+                final ContentResolver resolver = reference.get().getContentResolver();
+
+                // Gets a connection to the Server at the given IP address and port,
+                // reusing an idle one if available.
+                // If several Servers are given, the first one forwards the images to the rest,
+                // so they are uploaded just once
+                List<InetSocketAddress> servers = sender.resolveAll(serverAddress);
+                InetSocketAddress address = servers.get(0);
+                int chunkedSent = 0;
+                // A single image takes precedence over the batches sharing the link
+                client = new TransferClient(sender.getPool(), sender.getAckReaders(), this)
+                        .setProgress(sent -> reportProgress())
+                        .setScheduler(sender.getScheduler(), (imageUris.size() == 1)
+                                ? FrameHeader.PRIORITY_INTERACTIVE
+                                : FrameHeader.PRIORITY_BULK)
+                        .setRelay(servers.subList(1, servers.size()));
+
+                // Send the images, resuming from where it was left if the connection drops
+                int attempt = 1;
+                try {
+                    while (true) {
+                        try {
+                            // Ask the Server in which format it wants the images and prepare them
+                            if (chunked == null) {
+                                prepareImages(resolver, client.negotiate(address), servers.size() == 1);
+                            }
+                            client.send(address, outgoing);
+                            while (chunkedSent < chunked.size()) {
+                                if (sendChunked(resolver, address, chunked.get(chunkedSent))) {
+                                    acknowledged++;
+                                    Metrics.IMAGES_SENT.incrementAndGet();
+                                }
+                                chunkedSent++;
+                            }
+                            break;
+                        } catch (IOException e) {
+                            // The address might have changed, so resolve it again next time
+                            sender.forget(serverAddress);
+                            if (attempt >= sender.getSendAttempts()) {
+                                throw e;
+                            }
+                            e.printStackTrace();
+                            Metrics.failure(e);
+                            // Give the network some time to recover before trying again
+                            Thread.sleep(RETRY_DELAY * attempt++);
+                            servers = sender.resolveAll(serverAddress);
+                            address = servers.get(0);
+                            client.setRelay(servers.subList(1, servers.size()));
+                        }
                     }
-                    os.flush();
-                    // Close all the channels and Socket
-                    is.close();
+                } finally {
+                    deletePreparedImages();
                 }
-                // Close all the channels and Socket
-                os.close();
-            }
-            socket.close();
 
-            imageSent = true;
+                imageSent = (client.getAcknowledged() + acknowledged == imageUris.size());
+            }
 
         } catch (NumberFormatException e) {
             e.printStackTrace();
         } catch (UnknownHostException e) {
             e.printStackTrace();
+            Metrics.failure(e);
         } catch (IOException e) {
             e.printStackTrace();
+            Metrics.failure(e);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
         }
 
         // Notifies the user, after the task finishes, the result of the task
         if (reference.get() != null) {
             if (imageSent) {
                 // The image was successuflly sent
-                reference.get().runOnUiThread(
-                        () -> reference.get().displayNotifications(SocketActivity.IMAGE_SENT));
+                reference.get().postEvent(id, SocketActivity.IMAGE_SENT, getBytesSent());
 
             } else {
                 // There was some problem when transferring the image
-                reference.get().runOnUiThread(
-                        () -> reference.get().displayNotifications(SocketActivity.IMAGE_NOT_SENT));
+                reference.get().postEvent(id, SocketActivity.IMAGE_NOT_SENT, getBytesSent());
+            }
+        }
+    }
+
+    // Splits the batch between the images sent back to back and those sent in chunks,
+    // and gets the former ready to be sent in the format preferred by the Server.
+    // Relayed images are never sent in chunks, as only whole images are forwarded.
+    private void prepareImages(ContentResolver resolver, FrameHeader preferences, boolean chunks)
+            throws IOException {
+        outgoing = new ArrayList<>();
+        final List<Uri> large = new ArrayList<>();
+        for (Uri imageUri : imageUris) {
+            // Large images are sent in chunks, unless the Server only wants previews of them
+            if (parallel && chunks && (preferences.getMaxDimension() == 0)
+                    && (getSeekableSize(resolver, imageUri) > sender.getChunkSize())) {
+                large.add(imageUri);
+            } else {
+                final Outgoing image = new Outgoing(imageUri,
+                        getDisplayName(resolver, imageUri), resolver.getType(imageUri));
+                outgoing.add(image);
+                prepareImage(resolver, image, preferences);
+            }
+        }
+        chunked = large;
+    }
+
+    // Re-encodes the image to the size and quality requested by the Server,
+    // or compresses it if it is not already compressed.
+    // The original image is sent if there is nothing to gain.
+    private void prepareImage(ContentResolver resolver, Outgoing image, FrameHeader preferences)
+            throws IOException {
+        if (reference.get() == null) {
+            return;
+        }
+        final File directory = reference.get().getCacheDir();
+
+        if ((preferences.getMaxDimension() > 0)
+                && (image.getMimeType() != null) && image.getMimeType().startsWith("image/")) {
+            final File preview = File.createTempFile("preview", ".tmp", directory);
+            final String mimeType = ImageUtils.encodePreview(reference.get(), image.uri,
+                    preferences.getMaxDimension(),
+                    (preferences.getQuality() > 0) ? preferences.getQuality() : DEFAULT_QUALITY,
+                    preview);
+            if (mimeType != null) {
+                image.file = preview;
+                image.setMimeType(mimeType);
+                return;
+            }
+            preview.delete();
+        }
+
+        if (preferences.acceptsEncoding(FrameHeader.ENCODING_DEFLATE)
+                && Encodings.isCompressible(image.getMimeType())) {
+            final InputStream is = resolver.openInputStream(image.uri);
+            if (is == null) {
+                throw new FileNotFoundException(image.uri.toString());
+            }
+            final File compressed = File.createTempFile("deflated", ".tmp", directory);
+            final long decodedLength;
+            try {
+                decodedLength = Encodings.deflate(is, compressed);
+            } catch (IOException e) {
+                compressed.delete();
+                throw e;
+            }
+            final long size = getSeekableSize(resolver, image.uri);
+            if ((size < 0) || (compressed.length() < size)) {
+                image.file = compressed;
+                // The Server rejects payloads inflating to any other length
+                image.setEncoding(FrameHeader.ENCODING_DEFLATE).setDecodedLength(decodedLength);
+            } else {
+                compressed.delete();
+            }
+        }
+    }
+
+    // Deletes the re-encoded and compressed images once they are no longer needed.
+    private void deletePreparedImages() {
+        if (outgoing != null) {
+            for (Outgoing image : outgoing) {
+                if (image.file != null) {
+                    image.file.delete();
+                }
             }
         }
     }
 
-}
\ No newline at end of file
+    // Sends a large image in chunks through several connections at once.
+    // Returns whether the Server correctly received all the chunks.
+    private boolean sendChunked(ContentResolver resolver, InetSocketAddress address, Uri imageUri)
+            throws IOException, InterruptedException {
+        final ParcelFileDescriptor descriptor = openSeekableFile(resolver, imageUri);
+        if (descriptor == null) {
+            throw new FileNotFoundException(imageUri.toString());
+        }
+        final FileInputStream fis = new FileInputStream(descriptor.getFileDescriptor());
+        try {
+            final boolean sent = new ChunkedUpload(sender.getPool(), sender.getUploaders(),
+                    sender.getAckReaders(), address, fis.getChannel(),
+                    getDisplayName(resolver, imageUri), resolver.getType(imageUri))
+                    .setStreams(sender.getStreams())
+                    .setChunkSize(sender.getChunkSize())
+                    .setScheduler(sender.getScheduler())
+                    .send();
+            bytesSent += fis.getChannel().size();
+            reportProgress();
+            return sent;
+        } finally {
+            // Close the input channel
+            fis.close();
+            descriptor.close();
+        }
+    }
+
+    // Gets the number of bytes of the images sent so far, both back to back and in chunks.
+    private long getBytesSent() {
+        return (client != null) ? client.getBytesSent() + bytesSent : bytesSent;
+    }
+
+    // Reports to the UI how many bytes have been sent so far.
+    private void reportProgress() {
+        if (reference.get() != null) {
+            reference.get().postEvent(id, SocketActivity.SENDING_PROGRESS, getBytesSent());
+        }
+    }
+
+    // Opens the version of the image to be sent.
+    // Images that are not backed by a seekable file are sent as they are read from their stream,
+    // if their provider tells their length, as it must be known in advance.
+    // Only those of unknown length are first copied into a temporary file.
+    // Streams have no content ID, so their transfer is never resumed and they need not be kept.
+    @Override
+    public SourceProvider.Source open(OutgoingImage image) throws IOException {
+        final Outgoing source = (Outgoing) image;
+        final ContentResolver resolver = getContentResolver();
+        final ParcelFileDescriptor descriptor = openImage(resolver, source);
+        if (descriptor != null) {
+            return new SourceProvider.Source(
+                    new FileInputStream(descriptor.getFileDescriptor()).getChannel(), descriptor);
+        }
+        final long size = getStatedSize(resolver, source.uri);
+        if (size >= 0) {
+            return new SourceProvider.Source(openStream(resolver, source.uri), size);
+        }
+        final File spool = spoolImage(resolver, source.uri);
+        return new SourceProvider.Source(new FileInputStream(spool).getChannel(), spool::delete);
+    }
+
+    // Opens the version of the image to be sent if it is a seekable file, or returns null otherwise.
+    private ParcelFileDescriptor openImage(ContentResolver resolver, Outgoing image)
+            throws IOException {
+        if (image.file != null) {
+            return ParcelFileDescriptor.open(image.file, ParcelFileDescriptor.MODE_READ_ONLY);
+        }
+        return openSeekableFile(resolver, image.uri);
+    }
+
+    // Opens the image if its URI resolves to a seekable file, or returns null otherwise.
+    private ParcelFileDescriptor openSeekableFile(ContentResolver resolver, Uri imageUri)
+            throws IOException {
+        final ParcelFileDescriptor descriptor;
+        try {
+            descriptor = resolver.openFileDescriptor(imageUri, "r");
+        } catch (FileNotFoundException e) {
+            // Some providers can only deliver the image as a stream
+            return null;
+        }
+        // Pipes and sockets have not got a size, so they cannot be transferred this way
+        if ((descriptor != null) && (descriptor.getStatSize() < 0)) {
+            descriptor.close();
+            return null;
+        }
+        return descriptor;
+    }
+
+    // Computes the content ID of the version of the image to be sent if it is a seekable file,
+    // or returns null otherwise.
+    @Override
+    public String getContentId(OutgoingImage image) throws IOException {
+        final ParcelFileDescriptor descriptor = openImage(getContentResolver(), (Outgoing) image);
+        if (descriptor == null) {
+            return null;
+        }
+        final FileInputStream fis = new FileInputStream(descriptor.getFileDescriptor());
+        try {
+            return ContentId.of(fis.getChannel());
+        } finally {
+            // Close the input channel
+            fis.close();
+            descriptor.close();
+        }
+    }
+
+    // Gets the ContentResolver of the activity, if still available.
+    private ContentResolver getContentResolver() throws IOException {
+        if (reference.get() == null) {
+            throw new FileNotFoundException("No activity to resolve the images");
+        }
+        return reference.get().getContentResolver();
+    }
+
+    // Gets the length of the image if its URI resolves to a seekable file, or -1 otherwise.
+    private long getSeekableSize(ContentResolver resolver, Uri imageUri) throws IOException {
+        final ParcelFileDescriptor descriptor = openSeekableFile(resolver, imageUri);
+        if (descriptor == null) {
+            return -1;
+        }
+        final long size = descriptor.getStatSize();
+        descriptor.close();
+        return size;
+    }
+
+    // Gets the length of the image as stated by its provider, or -1 if unknown.
+    private long getStatedSize(ContentResolver resolver, Uri imageUri) {
+        long size = -1;
+        final Cursor cursor = resolver.query(
+                imageUri, new String[]{OpenableColumns.SIZE}, null, null, null);
+        if (cursor != null) {
+            if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                size = cursor.getLong(0);
+            }
+            cursor.close();
+        }
+        return size;
+    }
+
+    // Opens the image as a stream.
+    private ReadableByteChannel openStream(ContentResolver resolver, Uri imageUri) throws IOException {
+        final InputStream is = resolver.openInputStream(imageUri);
+        if (is == null) {
+            throw new FileNotFoundException(imageUri.toString());
+        }
+        // File streams (e.g. pipes) can read straight into the direct buffer
+        return (is instanceof FileInputStream)
+                ? ((FileInputStream) is).getChannel()
+                : Channels.newChannel(is);
+    }
+
+    // Copies the image read from a stream into a temporary file through a pooled direct buffer.
+    private File spoolImage(ContentResolver resolver, Uri imageUri) throws IOException {
+        if (reference.get() == null) {
+            throw new FileNotFoundException(imageUri.toString());
+        }
+        final ReadableByteChannel source = openStream(resolver, imageUri);
+        final File spool = File.createTempFile("image", ".tmp", reference.get().getCacheDir());
+        final FileOutputStream fos = new FileOutputStream(spool);
+        final ByteBuffer buffer = BufferPool.acquire();
+        try {
+            while (source.read(buffer) != -1) {
+                buffer.flip();
+                FrameIO.writeFully(fos.getChannel(), buffer);
+                buffer.clear();
+            }
+        } catch (IOException e) {
+            spool.delete();
+            throw e;
+        } finally {
+            BufferPool.release(buffer);
+            // Close all channels
+            source.close();
+            fos.close();
+        }
+        return spool;
+    }
+
+    // Gets the name of the image as shown to the user, or null if not available.
+    private String getDisplayName(ContentResolver resolver, Uri imageUri) {
+        String name = null;
+        final Cursor cursor = resolver.query(
+                imageUri, new String[]{OpenableColumns.DISPLAY_NAME}, null, null, null);
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                name = cursor.getString(0);
+            }
+            cursor.close();
+        }
+        return (name != null) ? name : imageUri.getLastPathSegment();
+    }
+
+    // Image sent back to back with others through a single connection.
+    private static final class Outgoing extends OutgoingImage {
+
+        final Uri uri;
+        // Re-encoded or compressed version of the image to be sent instead of the original, if any
+        File file;
+
+        Outgoing(Uri uri, String name, String mimeType) {
+            super(name, mimeType);
+            this.uri = uri;
+        }
+    }
+
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.threads;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.SystemClock;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import labs.dadm.l0504_sockets.R;
+import labs.dadm.l0504_sockets.activities.SocketActivity;
+import labs.dadm.l0504_sockets.discovery.PeerTable;
+import labs.dadm.l0504_sockets.network.BandwidthScheduler;
+import labs.dadm.l0504_sockets.network.ConnectionPool;
+import labs.dadm.l0504_sockets.utils.Metrics;
+
+// Long-lived component in charge of sending images to Servers.
+// Sends run on a small pool of threads created once, resolved addresses are cached,
+// and connections to each Server are kept open to be reused by later sends.
+public class ImageSender {
+
+    // Time a resolved address is cached
+    private static final long ADDRESS_TTL = 60 * 1000;
+    // File on internal storage where the metrics of the transfers are exported
+    private static final String METRICS_FILE = "metrics.json";
+
+    // Threads running the ClientThread tasks
+    private final ThreadPoolExecutor executor;
+    // Threads reading the acknowledgements while the images are being sent
+    private final ExecutorService ackReaders = Executors.newCachedThreadPool();
+    // Threads sending the chunks of large images through additional connections
+    private final ExecutorService uploaders = Executors.newCachedThreadPool();
+    // Closes the connections that have been idle for too long, and exports the metrics
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor();
+    // Connections ready to be reused
+    private final ConnectionPool pool;
+    // Shares the outgoing link among the transfers, so a batch does not hold back a single image
+    private final BandwidthScheduler scheduler;
+    // Addresses already resolved
+    private final ConcurrentHashMap<String, ResolvedAddress> addresses = new ConcurrentHashMap<>();
+    // Servers found on the local network, which need not be resolved
+    private final PeerTable peers = new PeerTable();
+
+    // Port where the Servers listen
+    private final int port;
+    // Number of connections used to send a large image and size of its chunks
+    private final int streams;
+    private final long chunkSize;
+    // Number of times a batch is tried, resuming it if the connection drops
+    private final int sendAttempts;
+    // Number of transfers started so far
+    private final AtomicLong transfers = new AtomicLong();
+
+    public ImageSender(Context context) {
+        final int threads = context.getResources().getInteger(R.integer.client_pool_size);
+        final long keepAlive = context.getResources().getInteger(R.integer.client_keep_alive_seconds) * 1000L;
+        port = context.getResources().getInteger(R.integer.port_number);
+        streams = context.getResources().getInteger(R.integer.upload_streams);
+        chunkSize = context.getResources().getInteger(R.integer.upload_chunk_size_kb) * 1024L;
+        sendAttempts = context.getResources().getInteger(R.integer.client_send_attempts);
+
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>());
+        // Start the threads now, so they are ready when the user sends the first image
+        executor.prestartAllCoreThreads();
+
+        // Keep enough connections for a large image to be sent in chunks
+        pool = new ConnectionPool(keepAlive, Math.max(threads, streams));
+        sweeper.scheduleWithFixedDelay(pool::evictIdle, keepAlive, keepAlive, TimeUnit.MILLISECONDS);
+        scheduler = new BandwidthScheduler(
+                context.getResources().getInteger(R.integer.client_rate_cap_kb_per_second) * 1024L,
+                context.getResources().getInteger(R.integer.client_peer_rate_cap_kb_per_second) * 1024L)
+                // Without caps, a single image still goes before a batch sharing the link with it
+                .setLinkRates(pool.getTuner());
+
+        // Periodically export the metrics of the transfers, so they can be pulled from the device
+        final File metrics = new File(context.getFilesDir(), METRICS_FILE);
+        final long period = context.getResources().getInteger(R.integer.metrics_dump_seconds);
+        sweeper.scheduleWithFixedDelay(() -> Metrics.dump(metrics), period, period, TimeUnit.SECONDS);
+    }
+
+    // Gets the identifier of a new transfer, for the events notified to the UI.
+    long nextTransferId() {
+        return transfers.incrementAndGet();
+    }
+
+    // Sends a batch of images to the Server on background.
+    // If parallel, images larger than a chunk are split and sent through several connections at once.
+    public void send(SocketActivity activity, String serverAddress, List<Uri> imageUris,
+                     boolean parallel) {
+        executor.execute(new ClientThread(activity, this, serverAddress, imageUris, parallel));
+    }
+
+    // Resolves the address and connects to the Server on background,
+    // so everything is ready when the user decides to send images.
+    public void warmUp(String serverAddress) {
+        executor.execute(() -> {
+            try {
+                pool.warmUp(resolveAll(serverAddress).get(0));
+            } catch (IOException e) {
+                // Nothing is lost, the connection will be tried again when sending
+                forget(serverAddress);
+            }
+        });
+    }
+
+    // Stops sending images and closes all the connections.
+    public void shutdown() {
+        executor.shutdownNow();
+        ackReaders.shutdownNow();
+        uploaders.shutdownNow();
+        sweeper.shutdownNow();
+        pool.close();
+    }
+
+    // Gets the Servers found on the local network.
+    public PeerTable getPeers() {
+        return peers;
+    }
+
+    ConnectionPool getPool() {
+        return pool;
+    }
+
+    BandwidthScheduler getScheduler() {
+        return scheduler;
+    }
+
+    ExecutorService getAckReaders() {
+        return ackReaders;
+    }
+
+    ExecutorService getUploaders() {
+        return uploaders;
+    }
+
+    int getStreams() {
+        return streams;
+    }
+
+    long getChunkSize() {
+        return chunkSize;
+    }
+
+    int getSendAttempts() {
+        return sendAttempts;
+    }
+
+    // Gets the socket address of the Server, resolving its name only if not recently done.
+    // Servers found on the local network are reached on the port they announced.
+    InetSocketAddress resolve(String serverAddress) throws UnknownHostException {
+        final PeerTable.Peer peer = peers.find(serverAddress);
+        if (peer != null) {
+            return peer.getAddress();
+        }
+        final ResolvedAddress cached = addresses.get(serverAddress);
+        if ((cached != null) && (SystemClock.elapsedRealtime() < cached.expiration)) {
+            return cached.address;
+        }
+        final InetSocketAddress address =
+                new InetSocketAddress(InetAddress.getByName(serverAddress), port);
+        addresses.put(serverAddress, new ResolvedAddress(address));
+        return address;
+    }
+
+    // Gets the socket addresses of the Servers separated by commas.
+    // Images are sent to the first one, which forwards them to the rest (see RelayPlan).
+    List<InetSocketAddress> resolveAll(String serverAddresses) throws UnknownHostException {
+        final List<InetSocketAddress> servers = new ArrayList<>();
+        for (String serverAddress : serverAddresses.split(",")) {
+            if (!serverAddress.trim().isEmpty()) {
+                servers.add(resolve(serverAddress.trim()));
+            }
+        }
+        if (servers.isEmpty()) {
+            throw new UnknownHostException(serverAddresses);
+        }
+        return servers;
+    }
+
+    // Discards the cached addresses of the Servers, separated by commas, that could not be reached.
+    void forget(String serverAddresses) {
+        for (String serverAddress : serverAddresses.split(",")) {
+            addresses.remove(serverAddress.trim());
+        }
+    }
+
+    // Address resolved at a given moment.
+    private static final class ResolvedAddress {
+
+        final InetSocketAddress address;
+        final long expiration = SystemClock.elapsedRealtime() + ADDRESS_TTL;
+
+        ResolvedAddress(InetSocketAddress address) {
+            this.address = address;
+        }
+    }
+}
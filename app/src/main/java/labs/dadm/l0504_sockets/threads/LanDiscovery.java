@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.threads;
+
+import android.content.Context;
+import android.net.wifi.WifiManager;
+import android.os.Build;
+
+import labs.dadm.l0504_sockets.R;
+import labs.dadm.l0504_sockets.discovery.Announcement;
+import labs.dadm.l0504_sockets.discovery.DiscoveryAdvertiser;
+import labs.dadm.l0504_sockets.discovery.DiscoveryBrowser;
+import labs.dadm.l0504_sockets.discovery.PeerTable;
+import labs.dadm.l0504_sockets.protocol.FrameHeader;
+
+// Finds the Servers on the local network and announces this one, configured from resources,
+// so users need not type the IP address of the Server.
+// Wi-Fi drivers drop broadcast datagrams to save battery, so they are only received
+// while holding a MulticastLock, which is only held while the activity is visible.
+public class LanDiscovery {
+
+    final private Context context;
+    // Servers found so far
+    final private PeerTable peers;
+    // Keeps the Wi-Fi receiving broadcast datagrams
+    final private WifiManager.MulticastLock lock;
+
+    // Listens to the announcements of other Servers, if browsing
+    private DiscoveryBrowser browser;
+    // Announces this Server, if running
+    private DiscoveryAdvertiser advertiser;
+
+    public LanDiscovery(Context context, PeerTable peers) {
+        this.context = context.getApplicationContext();
+        this.peers = peers;
+        final WifiManager manager = (WifiManager) this.context.getSystemService(Context.WIFI_SERVICE);
+        lock = (manager != null) ? manager.createMulticastLock("L05.04_Sockets discovery") : null;
+        if (lock != null) {
+            lock.setReferenceCounted(false);
+        }
+    }
+
+    // Starts listening to the announcements of the Servers, asking them all to announce themselves now.
+    public void startBrowsing(DiscoveryBrowser.Listener listener) {
+        if (browser != null) {
+            return;
+        }
+        if (lock != null) {
+            lock.acquire();
+        }
+        browser = new DiscoveryBrowser(
+                context.getResources().getInteger(R.integer.announcement_port), peers, listener)
+                .addInitialBroadcastProbe(context.getResources().getInteger(R.integer.discovery_port));
+        new Thread(browser).start();
+    }
+
+    // Stops listening to the announcements. Servers already found are kept until they expire.
+    public void stopBrowsing() {
+        if (browser != null) {
+            browser.cancel();
+            browser = null;
+        }
+        if ((lock != null) && lock.isHeld()) {
+            lock.release();
+        }
+    }
+
+    // Starts announcing the Server, which wants the images as stated by the given answer to the Clients.
+    public void startAdvertising(FrameHeader hello) {
+        if (advertiser != null) {
+            return;
+        }
+        advertiser = new DiscoveryAdvertiser(
+                context.getResources().getInteger(R.integer.discovery_port),
+                Announcement.announce(context.getResources().getInteger(R.integer.port_number),
+                        hello, 0, Build.MODEL),
+                context.getResources().getInteger(R.integer.announcement_period_seconds) * 1000L)
+                .addBroadcastTarget(context.getResources().getInteger(R.integer.announcement_port));
+        new Thread(advertiser).start();
+    }
+
+    // Stops announcing the Server.
+    public void stopAdvertising() {
+        if (advertiser != null) {
+            advertiser.cancel();
+            advertiser = null;
+        }
+    }
+}
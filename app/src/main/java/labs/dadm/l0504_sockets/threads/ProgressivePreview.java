@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.threads;
+
+import android.graphics.Bitmap;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+
+import labs.dadm.l0504_sockets.R;
+import labs.dadm.l0504_sockets.activities.SocketActivity;
+import labs.dadm.l0504_sockets.transfer.TransferListener;
+import labs.dadm.l0504_sockets.utils.DecodeScheduler;
+import labs.dadm.l0504_sockets.utils.ImageUtils;
+
+// Displays a preview of an image while it is still being received, so large images show up
+// after their first few hundred KB instead of after the whole transfer.
+// The file being written is the buffer shared with the decoder: every time a given number of bytes
+// has arrived, the part already received is decoded on background (see DecodeScheduler) and displayed.
+// Previews have the lowest priority and a newer one replaces any still waiting, so they never slow down
+// the transfer or other decodes, and none is displayed once the whole image has been received.
+class ProgressivePreview implements TransferListener.ImageProgress {
+
+    // File being written and the length of the whole image
+    final private File file;
+    final private long length;
+    // Offset of the first byte of the payload, as resumed images do not start from the beginning
+    final private long start;
+    // Bytes received between two previews
+    final private long step;
+
+    // Hold reference to the activity displaying the previews
+    final private WeakReference<SocketActivity> reference;
+
+    // Number of bytes from which the next preview will be displayed
+    private long next;
+    // Whether the transfer has finished, so no more previews should be displayed
+    private volatile boolean finished;
+
+    private ProgressivePreview(WeakReference<SocketActivity> reference,
+                               File file, long start, long length, long step) {
+        this.reference = reference;
+        this.file = file;
+        this.start = start;
+        this.length = length;
+        this.step = step;
+        next = start + step;
+    }
+
+    // Creates the previews of an image received into the given file from the given offset,
+    // or returns null if the image is not large enough to deserve them or previews are disabled.
+    static ProgressivePreview create(WeakReference<SocketActivity> reference,
+                                     File file, long start, long length) {
+        if (reference.get() == null) {
+            return null;
+        }
+        final long step = reference.get().getResources().getInteger(
+                R.integer.progressive_preview_step_kb) * 1024L;
+        if ((step <= 0) || (length - start <= step)) {
+            return null;
+        }
+        return new ProgressivePreview(reference, file, start, length, step);
+    }
+
+    // Called by the receiving thread every time part of the payload has been written to the file.
+    @Override
+    public void onProgress(long received) {
+        final long available = start + received;
+        final SocketActivity activity = reference.get();
+        if ((available < next) || (available >= length) || (activity == null)) {
+            return;
+        }
+        next = available + step;
+        activity.decodeReceivedImage(DecodeScheduler.PRIORITY_PREVIEW, () -> decode(available));
+    }
+
+    // Stops displaying previews, as the whole image will be displayed next.
+    @Override
+    public void finish() {
+        finished = true;
+    }
+
+    // Decodes the part of the image already received,
+    // unless the whole image has been received meanwhile.
+    private Bitmap decode(long available) {
+        if (finished) {
+            return null;
+        }
+        return ImageUtils.samplePartialImage(file, available);
+    }
+}
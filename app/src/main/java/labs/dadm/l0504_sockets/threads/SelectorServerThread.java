@@ -0,0 +1,919 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.threads;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import labs.dadm.l0504_sockets.R;
+import labs.dadm.l0504_sockets.activities.SocketActivity;
+import labs.dadm.l0504_sockets.network.ChunkAssembler;
+import labs.dadm.l0504_sockets.network.ImageStore;
+import labs.dadm.l0504_sockets.network.PartialStore;
+import labs.dadm.l0504_sockets.network.TransportTuner;
+import labs.dadm.l0504_sockets.protocol.Checksums;
+import labs.dadm.l0504_sockets.protocol.ContentId;
+import labs.dadm.l0504_sockets.protocol.FrameHeader;
+import labs.dadm.l0504_sockets.protocol.FrameIO;
+import labs.dadm.l0504_sockets.transfer.ConnectionReceiver;
+import labs.dadm.l0504_sockets.transfer.ProgressReporter;
+import labs.dadm.l0504_sockets.transfer.TransferListener;
+import labs.dadm.l0504_sockets.utils.Metrics;
+
+// Non-blocking alternative to ServerThread.
+// A single thread multiplexes all the connected Clients through a Selector, keeping the state
+// of each transfer in a Connection object attached to its SelectionKey.
+// Each Connection is a state machine that parses the incoming frames as data becomes available,
+// and queues the acknowledgements to be sent when the channel is ready.
+// Thus, the number of threads and buffers does not grow with the number of Clients.
+// Each connection reads a bounded amount of data per pass of the event loop, so a fast Client
+// does not starve the others. What may take long, such as hashing the part of an image already
+// received, runs on a worker while the connection is suspended, and resumes it once done.
+public class SelectorServerThread extends Thread implements ServerEngine {
+
+    // Size of the buffer shared by all the connections to read from the network
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Maximum number of reads from a connection on each pass of the event loop
+    private static final int MAX_READS_PER_PASS = 16;
+    // Milliseconds between checks for idle connections
+    private static final long SWEEP_INTERVAL = 1000;
+
+    // Hold reference to the Selector multiplexing all the channels
+    private Selector selector;
+    // Hold reference to the channel accepting new Clients
+    private ServerSocketChannel server;
+    // Stores the received images without blocking the event loop
+    private ExecutorService publisher;
+    // Opens and checks the partial and chunked images without blocking the event loop
+    private ExecutorService worker;
+    // Work finished by the worker, to be continued on the event loop
+    final private Queue<Runnable> completions = new ConcurrentLinkedQueue<>();
+    // Displays the previews, the received images and the events of the transfers
+    private ActivityListener listener;
+    // Number of Clients currently connected
+    private int connections;
+    // Puts together the images sent in chunks through several connections
+    private ChunkAssembler assembler;
+    // Keeps the images partially received, so Clients can resume their transfer
+    private PartialStore partials;
+    // Keeps the images received, identified by their content
+    private ImageStore store;
+
+    private volatile boolean cancelled;
+
+    // Hold reference to its parent activity
+    final private WeakReference<SocketActivity> reference;
+
+    // Answer to the Clients asking in which format the images should be sent
+    final private FrameHeader hello;
+
+    // Creates a Server that asks Clients for previews of their images instead of the originals,
+    // if so required.
+    public SelectorServerThread(SocketActivity activity, boolean previews) {
+        super();
+        reference = new WeakReference<>(activity);
+        hello = ServerThread.createHello(activity, previews);
+    }
+
+    // Stops accepting new clients and aborts the ongoing transfers.
+    @Override
+    public void cancel() {
+        this.cancelled = true;
+        // Wake up the event loop, as it could be blocked waiting for events
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    // Runs the event loop accepting Clients and receiving their images.
+    @Override
+    public void run() {
+        long nextId = 0;
+
+        cancelled = false;
+
+        if (reference.get() != null) {
+            final int port = reference.get().getResources().getInteger(R.integer.port_number);
+            final int maxConnections =
+                    reference.get().getResources().getInteger(R.integer.selector_max_connections);
+            final long idleTimeout = TimeUnit.SECONDS.toNanos(
+                    reference.get().getResources().getInteger(R.integer.server_idle_timeout_seconds));
+            // A single direct buffer is shared by all the connections
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            publisher = Executors.newSingleThreadExecutor();
+            worker = Executors.newSingleThreadExecutor();
+            listener = new ActivityListener(reference.get());
+            final long ttl = TimeUnit.MINUTES.toMillis(
+                    reference.get().getResources().getInteger(R.integer.partial_ttl_minutes));
+            assembler = new ChunkAssembler(reference.get().getFilesDir(), ttl);
+            partials = new PartialStore(
+                    new File(reference.get().getFilesDir(), ServerThread.PARTIAL_DIRECTORY), ttl);
+            store = new ImageStore(
+                    new File(reference.get().getFilesDir(), ServerThread.STORE_DIRECTORY));
+            long nextCollection = 0;
+            connections = 0;
+            IOException error = null;
+
+            try {
+                // Bound a new non-blocking channel to a given port and register it for new Clients
+                selector = Selector.open();
+                server = ServerSocketChannel.open();
+                TransportTuner.configureServer(server.socket(),
+                        reference.get().getResources().getInteger(R.integer.server_receive_buffer_kb) * 1024);
+                server.socket().bind(new InetSocketAddress(port),
+                        reference.get().getResources().getInteger(R.integer.server_accept_backlog));
+                server.configureBlocking(false);
+                server.register(selector, SelectionKey.OP_ACCEPT);
+
+                // Display Server IP address and port and notify it is up and running
+                listener.onServerRunning();
+
+                // Keep processing events until the task is cancelled by the user
+                while (!cancelled) {
+                    // Wake up periodically to close the idle connections
+                    selector.select(SWEEP_INTERVAL);
+                    closeIdle(idleTimeout);
+                    // Delete the partial images left by Clients that never resumed their transfer,
+                    // and those whose chunks stopped arriving
+                    if (System.currentTimeMillis() >= nextCollection) {
+                        partials.collectGarbage();
+                        assembler.collectGarbage();
+                        nextCollection = System.currentTimeMillis() + ttl;
+                    }
+
+                    // Continue the connections whose work on the worker is done
+                    Runnable completion;
+                    while ((completion = completions.poll()) != null) {
+                        completion.run();
+                    }
+
+                    final Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                    while (iterator.hasNext()) {
+                        final SelectionKey key = iterator.next();
+                        iterator.remove();
+
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept(maxConnections, nextId++);
+                            continue;
+                        }
+                        if (key.isWritable()) {
+                            write(key);
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            read(key, buffer);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // Display a notification to the user unless the task was cancelled
+                if (!cancelled) {
+                    error = e;
+                }
+            } finally {
+                close();
+            }
+
+            // Updates the UI when the task finishes or it is cancelled
+            listener.onServerStopped(error);
+        }
+    }
+
+    // Accepts a pending Client, unless the maximum number of connections has been reached.
+    private void accept(int maxConnections, long id) throws IOException {
+        final SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+
+        // Reject the Client if there are too many connections already
+        if ((connections >= maxConnections) || (reference.get() == null)) {
+            channel.close();
+            listener.onClientRejected(id);
+            return;
+        }
+
+        TransportTuner.configureAccepted(channel.socket());
+
+        // Register the Client to be notified when there is data to be read.
+        // The incoming images will be stored on internal storage
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ,
+                new Connection(channel, reference.get().getFilesDir(), id));
+        connections++;
+        Metrics.ACTIVE_CONNECTIONS.incrementAndGet();
+
+        // Notify a new Client has been accepted
+        listener.onClientAccepted(id);
+    }
+
+    // Closes the connections of Clients that have not sent nor read anything for a while.
+    // Connections idle between two frames are just closed, while those stalled in the middle of one
+    // are aborted, keeping what was received of the images that can be resumed and discarding the rest.
+    private void closeIdle(long idleTimeout) {
+        final long now = System.nanoTime();
+        for (SelectionKey key : selector.keys()) {
+            if (key.isValid() && (key.attachment() instanceof Connection)) {
+                final Connection connection = (Connection) key.attachment();
+                // Suspended connections are waiting for the Server, not for the Client
+                if (!connection.suspended && (now - connection.lastActivity > idleTimeout)) {
+                    if (connection.isIdle()) {
+                        finish(key, connection);
+                    } else {
+                        Metrics.failure("idle_timeout");
+                        abort(key, connection);
+                    }
+                }
+            }
+        }
+    }
+
+    // Processes the available data from the Client.
+    private void read(SelectionKey key, ByteBuffer buffer) {
+        final Connection connection = (Connection) key.attachment();
+        connection.lastActivity = System.nanoTime();
+        try {
+            if (process(key, connection, buffer)) {
+                // The Client finished sending images
+                finish(key, connection);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            Metrics.failure(e);
+            abort(key, connection);
+        }
+    }
+
+    // Sends the pending acknowledgements to the Client.
+    private void write(SelectionKey key) {
+        final Connection connection = (Connection) key.attachment();
+        connection.lastActivity = System.nanoTime();
+        try {
+            flush(key, connection);
+        } catch (IOException e) {
+            e.printStackTrace();
+            Metrics.failure(e);
+            abort(key, connection);
+        }
+    }
+
+    // Advances the state machine of the connection as long as there is data available,
+    // up to a number of reads, so the other connections get their turn.
+    // Returns true once the Client has finished sending images.
+    private boolean process(SelectionKey key, Connection connection, ByteBuffer buffer)
+            throws IOException {
+        int count;
+        int reads = 0;
+        while (!connection.suspended) {
+            // The Selector will report the rest of the data on its next pass
+            if (reads++ == MAX_READS_PER_PASS) {
+                return false;
+            }
+            switch (connection.state) {
+
+                // Determine whether the Client sends a frame or just the raw image
+                case PREFIX:
+                    count = connection.channel.read(connection.prefix);
+                    // The frame starts arriving
+                    if ((count > 0) && (connection.prefix.position() == count)) {
+                        connection.started = System.nanoTime();
+                        if (connection.frames == 0) {
+                            Metrics.TIME_TO_FIRST_BYTE.record(Metrics.microsSince(connection.accepted));
+                        }
+                    }
+                    if ((count == -1) && (connection.prefix.position() == 0)) {
+                        // The Client closed the connection between two frames
+                        return true;
+                    }
+                    if ((count == -1) || !connection.prefix.hasRemaining()) {
+                        connection.prefix.flip();
+                        if (FrameHeader.isFrame(connection.prefix)) {
+                            if (count == -1) {
+                                throw new EOFException("Truncated frame");
+                            }
+                            connection.rest =
+                                    ByteBuffer.allocate(FrameHeader.checkPrefix(connection.prefix));
+                            connection.state = State.HEADER;
+                        } else if (connection.frames == 0) {
+                            // The bytes read so far are already part of the image
+                            connection.open(0);
+                            FrameIO.writeFully(connection.output.getChannel(), connection.prefix);
+                            connection.position = connection.prefix.limit();
+                            connection.received = connection.position;
+                            connection.state = State.RAW;
+                            if (count == -1) {
+                                completeRaw(connection);
+                                return true;
+                            }
+                        } else {
+                            throw new ProtocolException("Not a frame");
+                        }
+                    } else if (count == 0) {
+                        return false;
+                    }
+                    break;
+
+                // Get the rest of the header and prepare the file for the payload
+                case HEADER:
+                    count = connection.channel.read(connection.rest);
+                    if (count == -1) {
+                        throw new EOFException("Truncated frame");
+                    }
+                    if (connection.rest.hasRemaining()) {
+                        if (count == 0) {
+                            return false;
+                        }
+                        break;
+                    }
+                    connection.rest.flip();
+                    final FrameHeader header = FrameHeader.decode(connection.prefix, connection.rest);
+                    connection.header = header;
+                    connection.remaining = header.getPayloadLength();
+                    connection.state = State.PAYLOAD;
+                    // Queries are answered once their trailer has been checked
+                    if ((header.getType() == FrameHeader.TYPE_HELLO)
+                            || (header.getType() == FrameHeader.TYPE_RESUME_QUERY)) {
+                        if (header.getPayloadLength() != 0) {
+                            throw new ProtocolException("Malformed query");
+                        }
+                        break;
+                    }
+                    // Chunks are written straight at their offset of the file of their image
+                    if (header.getType() == FrameHeader.TYPE_CHUNK) {
+                        connection.upload = assembler.open(header);
+                        connection.target = connection.upload.getChannel();
+                        connection.position = header.getOffset();
+                        break;
+                    }
+                    if (header.getType() != FrameHeader.TYPE_IMAGE) {
+                        throw new ProtocolException("Unexpected frame type " + header.getType());
+                    }
+                    // Images that can be resumed are written into their partial file,
+                    // from the offset the Client resumes from
+                    // Opening it may require hashing what was already received, so it is done on the worker
+                    if (header.getContentId() != null) {
+                        suspend(key, connection, () -> partials.open(header), session -> {
+                            if (!key.isValid()) {
+                                partials.release(session);
+                                return;
+                            }
+                            connection.session = session;
+                            connection.target = session.getChannel();
+                            connection.position = header.getOffset();
+                            connection.file = connection.nextFile();
+                            connection.preview = listener.onImageStarted(connection.id, header,
+                                    session.getFile(), header.getOffset());
+                        });
+                        return false;
+                    }
+                    // Reject the image before receiving it if it does not fit on internal storage
+                    if (connection.directory.getUsableSpace() < header.getPayloadLength()) {
+                        throw new ProtocolException(
+                                "Not enough space to store " + header.getPayloadLength() + " bytes");
+                    }
+                    // Allocate the whole file beforehand
+                    connection.open(header.getPayloadLength());
+                    // Identify the image by its content while receiving it
+                    if (connection.digest == null) {
+                        connection.digest = ContentId.newDigest();
+                    }
+                    connection.digest.reset();
+                    connection.preview = listener.onImageStarted(connection.id, header,
+                            connection.file, 0);
+                    break;
+
+                // Move the payload to the file, checking its integrity on the fly
+                case PAYLOAD:
+                    if (connection.remaining == 0) {
+                        connection.state = State.TRAILER;
+                        break;
+                    }
+                    buffer.clear();
+                    // Do not read beyond the payload, as the trailer comes next
+                    if (connection.remaining < buffer.capacity()) {
+                        buffer.limit((int) connection.remaining);
+                    }
+                    count = connection.channel.read(buffer);
+                    if (count == -1) {
+                        throw new EOFException("Truncated payload");
+                    } else if (count == 0) {
+                        return false;
+                    }
+                    buffer.flip();
+                    Checksums.update(connection.crc, buffer.duplicate());
+                    connection.write(buffer);
+                    // Partial images keep the digest of their content up to date
+                    if (connection.session != null) {
+                        buffer.flip();
+                        connection.session.getDigest().update(buffer);
+                        connection.session.advance(count);
+                    } else if (connection.upload == null) {
+                        buffer.flip();
+                        connection.digest.update(buffer);
+                    }
+                    connection.remaining -= count;
+                    // Display previews of the image as it arrives, and report its progress
+                    connection.getProgress(listener).onProgress(
+                            connection.header.getPayloadLength() - connection.remaining);
+                    break;
+
+                // Check the received payload against the checksum sent by the Client
+                case TRAILER:
+                    count = connection.channel.read(connection.trailer);
+                    if (count == -1) {
+                        throw new EOFException("Truncated frame");
+                    }
+                    if (connection.trailer.hasRemaining()) {
+                        if (count == 0) {
+                            return false;
+                        }
+                        break;
+                    }
+                    connection.trailer.flip();
+                    connection.finishPreview();
+                    connection.received += connection.header.getPayloadLength();
+                    completeFrame(key, connection,
+                            connection.trailer.getInt() == (int) connection.crc.getValue());
+                    break;
+
+                // Older Clients send the raw image until closing the connection
+                case RAW:
+                    buffer.clear();
+                    count = connection.channel.read(buffer);
+                    if (count == -1) {
+                        completeRaw(connection);
+                        return true;
+                    } else if (count == 0) {
+                        return false;
+                    }
+                    buffer.flip();
+                    connection.write(buffer);
+                    connection.received += count;
+                    break;
+            }
+        }
+        return false;
+    }
+
+    // Publishes the image just received, acknowledges it, and gets ready for the next frame.
+    private void completeFrame(SelectionKey key, Connection connection, boolean valid)
+            throws IOException {
+        // Tell the Client in which format the images should be sent
+        if (connection.header.getType() == FrameHeader.TYPE_HELLO) {
+            if (!valid) {
+                throw new ProtocolException("Malformed hello");
+            }
+            connection.pending.add(FrameIO.encodeControlFrame(hello));
+            flush(key, connection);
+            connection.reset();
+            return;
+        }
+
+        // Tell the Client how much of the image is already here, so it only sends the rest
+        if (connection.header.getType() == FrameHeader.TYPE_RESUME_QUERY) {
+            if (!valid) {
+                throw new ProtocolException("Malformed resume query");
+            }
+            connection.pending.add(FrameIO.encodeControlFrame(
+                    ConnectionReceiver.answerResumeQuery(connection.header, partials, store)));
+            flush(key, connection);
+            connection.reset();
+            return;
+        }
+
+        // Record how fast the payload arrived
+        if (valid) {
+            recordImage(connection, connection.header.getPayloadLength());
+        } else {
+            Metrics.failure("checksum");
+        }
+
+        if (connection.session != null) {
+            // Discard the part just received if corrupt, or check the whole image otherwise,
+            // on the worker, which owns the partial image from now on
+            final PartialStore.Session session = connection.session;
+            final File file = connection.file;
+            connection.session = null;
+            if (!valid) {
+                partials.discard(session);
+                partials.release(session);
+                acknowledge(key, connection, false);
+                return;
+            }
+            suspend(key, connection, () -> {
+                try {
+                    return partials.complete(session, file);
+                } finally {
+                    partials.release(session);
+                }
+            }, complete -> {
+                if (complete) {
+                    storeAndAcknowledge(key, connection, file, connection.header.getContentId());
+                } else {
+                    acknowledge(key, connection, false);
+                }
+            });
+        } else if (connection.upload != null) {
+            // Display the image once all its chunks have been received, if it matches its content ID.
+            // Checking it requires hashing the whole image, so it is done on the worker
+            final ChunkAssembler.Upload upload = connection.upload;
+            connection.upload = null;
+            if (!valid) {
+                assembler.release(upload);
+                acknowledge(key, connection, false);
+                return;
+            }
+            suspend(key, connection, () -> {
+                try {
+                    return assembler.complete(upload, connection.header) ? upload.isIntact() : null;
+                } finally {
+                    assembler.release(upload);
+                }
+            }, intact -> {
+                if (intact == null) {
+                    // Other chunks are still missing
+                    acknowledge(key, connection, true);
+                } else if (intact) {
+                    storeAndAcknowledge(key, connection, upload.getFile(), connection.header.getContentId());
+                } else {
+                    Metrics.failure("content_id");
+                    acknowledge(key, connection, false);
+                }
+            });
+        } else {
+            connection.closeOutput();
+            // Display the image unless it got corrupted on its way
+            if (valid) {
+                storeAndAcknowledge(key, connection, connection.file,
+                        ContentId.toHex(connection.digest.digest()));
+            } else {
+                connection.file.delete();
+                acknowledge(key, connection, false);
+            }
+        }
+    }
+
+    // Stores the image just received through the connection on the worker, and then acknowledges it,
+    // so the Client is only told it arrived once it is actually stored.
+    // Compressed images are only valid if they decompress to the length stated by their Client.
+    private void storeAndAcknowledge(SelectionKey key, Connection connection, File file, String payloadId) {
+        final byte encoding = connection.header.getEncoding();
+        final long decodedLength = connection.header.getDecodedLength();
+        final String mimeType = connection.header.getMimeType();
+        final String sender = connection.getSender();
+        final long id = connection.id;
+        suspend(key, connection, () -> ConnectionReceiver.publish(store, listener, id, file, encoding,
+                decodedLength, payloadId, mimeType, sender),
+                stored -> acknowledge(key, connection, stored));
+    }
+
+    // Acknowledges the image, while the Client may be already sending the next one,
+    // and gets ready for the next frame, unless the connection was closed in the meantime.
+    private void acknowledge(SelectionKey key, Connection connection, boolean valid) throws IOException {
+        if (!key.isValid()) {
+            return;
+        }
+        connection.pending.add(FrameIO.encodeControlFrame(
+                new FrameHeader(FrameHeader.TYPE_ACK, 0)
+                        .setSequence(connection.header.getSequence())
+                        .setStatus(valid ? FrameHeader.STATUS_OK : FrameHeader.STATUS_CORRUPT)));
+        flush(key, connection);
+
+        connection.reset();
+    }
+
+    // Runs a task on the worker, suspending the connection until it is done,
+    // and then continues it on the event loop with the result of the task.
+    // The continuation has to check whether the connection was closed in the meantime.
+    private <T> void suspend(SelectionKey key, Connection connection, Task<T> task,
+                             Continuation<T> continuation) {
+        connection.suspended = true;
+        key.interestOps(0);
+        worker.execute(() -> {
+            T result = null;
+            IOException error = null;
+            try {
+                result = task.run();
+            } catch (IOException e) {
+                error = e;
+            }
+            final T done = result;
+            final IOException failure = error;
+            completions.add(() -> resume(key, connection, continuation, done, failure));
+            selector.wakeup();
+        });
+    }
+
+    // Continues a connection on the event loop once its task is done, and gets it reading again.
+    private <T> void resume(SelectionKey key, Connection connection, Continuation<T> continuation,
+                            T result, IOException error) {
+        connection.suspended = false;
+        connection.lastActivity = System.nanoTime();
+        try {
+            if (error != null) {
+                throw error;
+            }
+            continuation.resume(result);
+            // Watch the channel for writing too if acknowledgements are still pending
+            if (key.isValid()) {
+                key.interestOps(connection.pending.isEmpty()
+                        ? SelectionKey.OP_READ
+                        : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            Metrics.failure(e);
+            if (key.isValid()) {
+                abort(key, connection);
+            }
+        }
+    }
+
+    // Work run on the worker.
+    private interface Task<T> {
+        T run() throws IOException;
+    }
+
+    // Continues a connection with the result of its task.
+    private interface Continuation<T> {
+        void resume(T result) throws IOException;
+    }
+
+    // Records the metrics of a payload correctly received through the connection.
+    private static void recordImage(Connection connection, long length) {
+        Metrics.BYTES_RECEIVED.addAndGet(length);
+        Metrics.RECEIVE_THROUGHPUT.record(
+                Metrics.throughput(length, System.nanoTime() - connection.started));
+        if (!connection.completed) {
+            connection.completed = true;
+            Metrics.ACCEPT_TO_COMPLETE.record(Metrics.microsSince(connection.accepted));
+        }
+    }
+
+    // Publishes the raw image sent by an older Client.
+    private void completeRaw(Connection connection) {
+        connection.closeOutput();
+        recordImage(connection, connection.received);
+        final File file = connection.file;
+        final String sender = connection.getSender();
+        final long id = connection.id;
+        publisher.execute(() -> ConnectionReceiver.publish(store, listener, id, file,
+                FrameHeader.ENCODING_IDENTITY, 0, null, null, sender));
+    }
+
+    // Writes as many pending acknowledgements as possible without blocking.
+    // If some of them cannot be written yet, the Selector will notify when it is possible.
+    private void flush(SelectionKey key, Connection connection) throws IOException {
+        while (!connection.pending.isEmpty()) {
+            final ByteBuffer ack = connection.pending.peek();
+            connection.channel.write(ack);
+            if (ack.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            connection.pending.poll();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    // Closes a completed connection.
+    private void finish(SelectionKey key, Connection connection) {
+        key.cancel();
+        connections--;
+        connection.close();
+        closed(connection);
+    }
+
+    // Closes a failed connection and discards the partially received image.
+    private void abort(SelectionKey key, Connection connection) {
+        key.cancel();
+        connections--;
+        connection.finishPreview();
+        // An image is being received only while its output file is open
+        final boolean partial = connection.output != null;
+        // Keep what was received of images that can be resumed
+        if (connection.session != null) {
+            partials.release(connection.session);
+        }
+        // The chunk may be sent again through another connection
+        if (connection.upload != null) {
+            assembler.release(connection.upload);
+        }
+        connection.close();
+        if (partial) {
+            connection.file.delete();
+        }
+        closed(connection);
+    }
+
+    // Records that the connection is no longer served.
+    private void closed(Connection connection) {
+        Metrics.ACTIVE_CONNECTIONS.decrementAndGet();
+        listener.onClientClosed(connection.id, connection.received);
+    }
+
+    // Releases all the resources held by the event loop.
+    private void close() {
+        if (selector != null) {
+            // Abort the transfers in progress
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    abort(key, (Connection) key.attachment());
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (server != null) {
+            try {
+                server.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        // Discard the images not completely received
+        assembler.close();
+        partials.close();
+        worker.shutdown();
+        publisher.shutdown();
+    }
+
+    // Stages of the transfer of an image.
+    private enum State {
+        PREFIX, HEADER, PAYLOAD, TRAILER, RAW
+    }
+
+    // State of the transfer of images from a given Client.
+    private static final class Connection {
+
+        // Channel connected to the Client
+        final SocketChannel channel;
+        // Directory on internal storage where the images are saved
+        final File directory;
+        // Identifies this connection, so concurrent transfers do not share temporary files
+        final long id;
+        // Number of frames received so far
+        long frames;
+
+        // Stage of the transfer
+        State state = State.PREFIX;
+        // Buffers for the different parts of the frame
+        final ByteBuffer prefix = ByteBuffer.allocate(FrameHeader.PREFIX_LENGTH);
+        ByteBuffer rest;
+        final ByteBuffer trailer = ByteBuffer.allocate(FrameHeader.TRAILER_LENGTH);
+        // Header of the frame being received
+        FrameHeader header;
+        // Checksum of the payload received so far
+        final CRC32 crc = new CRC32();
+        // Bytes of the payload still to be received
+        long remaining;
+
+        // File where the current image is saved, its output channel and position to write next
+        File file;
+        RandomAccessFile output;
+        FileChannel target;
+        long position;
+        // Image the current chunk belongs to, if receiving a chunk
+        ChunkAssembler.Upload upload;
+        // Partial image the current frame belongs to, if it can be resumed
+        PartialStore.Session session;
+        // Previews of the image being received, if any
+        TransferListener.ImageProgress preview;
+        // Digest of the content of the image being received, if neither a chunk nor resumable
+        MessageDigest digest;
+
+        // Reports the progress of the current payload to the UI, and to its previews if any
+        ProgressReporter progress;
+
+        // Acknowledgements waiting to be sent
+        final Queue<ByteBuffer> pending = new ArrayDeque<>();
+        // Whether the connection waits for the worker, so nothing is read meanwhile
+        boolean suspended;
+        // Moment of the last data received
+        long lastActivity = System.nanoTime();
+        // Moment when the connection was accepted, and whether an image has been received since then
+        final long accepted = System.nanoTime();
+        boolean completed;
+        // Moment when the current frame started arriving
+        long started;
+        // Number of bytes of the payloads received so far
+        long received;
+
+        Connection(SocketChannel channel, File directory, long id) {
+            this.channel = channel;
+            this.directory = directory;
+            this.id = id;
+        }
+
+        // Gets the temporary file for the current image.
+        File nextFile() {
+            return new File(directory, "file_received_" + id + "_" + frames + ".tmp");
+        }
+
+        // Opens a new output file with the given initial length.
+        void open(long length) throws IOException {
+            file = nextFile();
+            output = new RandomAccessFile(file, "rw");
+            output.setLength(length);
+            target = output.getChannel();
+            position = 0;
+        }
+
+        // Writes the content of the buffer at the current position of the output file.
+        void write(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                position += target.write(buffer, position);
+            }
+        }
+
+        // Gets the address of the Client, to record where each image came from.
+        String getSender() {
+            return channel.socket().getInetAddress().getHostAddress();
+        }
+
+        // Gets what reports the progress of the current payload.
+        ProgressReporter getProgress(TransferListener listener) {
+            if (progress == null) {
+                progress = new ProgressReporter(listener, id, received, preview);
+            }
+            return progress;
+        }
+
+        // Stops displaying previews of the current image.
+        void finishPreview() {
+            if (preview != null) {
+                preview.finish();
+                preview = null;
+            }
+        }
+
+        // Determines whether the Client is not sending nor waiting for anything.
+        boolean isIdle() {
+            return (state == State.PREFIX) && (prefix.position() == 0) && pending.isEmpty();
+        }
+
+        // Gets ready to receive the next frame.
+        void reset() {
+            frames++;
+            state = State.PREFIX;
+            prefix.clear();
+            trailer.clear();
+            crc.reset();
+            header = null;
+            file = null;
+            target = null;
+            upload = null;
+            session = null;
+            progress = null;
+        }
+
+        // Closes the output file.
+        void closeOutput() {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                output = null;
+            }
+        }
+
+        // Closes the channels of the Client and the output file.
+        void close() {
+            closeOutput();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,16 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.threads;
+
+// Common operations of the different Servers that can receive images,
+// so SocketActivity can choose which one to use when starting it.
+public interface ServerEngine {
+
+    // Starts accepting Clients on background.
+    void start();
+
+    // Stops accepting new Clients and aborts the ongoing transfers.
+    void cancel();
+}
@@ -5,138 +5,88 @@
 package labs.dadm.l0504_sockets.threads;
 
 import android.content.Context;
-import android.graphics.Bitmap;
 
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.lang.ref.WeakReference;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
 
 import labs.dadm.l0504_sockets.R;
 import labs.dadm.l0504_sockets.activities.SocketActivity;
-import labs.dadm.l0504_sockets.utils.ImageUtils;
-
-public class ServerThread extends Thread {
-
-    // Hold reference to the ServerSocket (Server device)
-    private ServerSocket server;
-    // Hold reference to the Bitmap object to display on the UI
-    private Bitmap bitmap;
-
-    private boolean cancelled;
-
-    // Hold reference to its parent activity
-    final private WeakReference<SocketActivity> reference;
-
-    public ServerThread(SocketActivity activity) {
+import labs.dadm.l0504_sockets.discovery.PeerTable;
+import labs.dadm.l0504_sockets.network.BandwidthScheduler;
+import labs.dadm.l0504_sockets.network.ImageStore;
+import labs.dadm.l0504_sockets.protocol.FrameHeader;
+import labs.dadm.l0504_sockets.transfer.RelayPlan;
+import labs.dadm.l0504_sockets.transfer.TransferServer;
+import labs.dadm.l0504_sockets.utils.RuntimeSampler;
+import labs.dadm.l0504_sockets.utils.TransferStats;
+
+// Runs a TransferServer on background, configured from resources,
+// storing the images on internal storage and displaying them on SocketActivity.
+public class ServerThread extends Thread implements ServerEngine {
+
+    // Directory on internal storage where the partial images are kept
+    static final String PARTIAL_DIRECTORY = TransferServer.PARTIAL_DIRECTORY;
+    // Directory on internal storage where the received images are kept
+    static final String STORE_DIRECTORY = "images";
+
+    // Receives the images, with no dependencies on the activity
+    final private TransferServer server;
+
+    // Creates a Server that asks Clients for previews of their images instead of the originals,
+    // if so required.
+    public ServerThread(SocketActivity activity, boolean previews) {
         super();
-        reference = new WeakReference<>(activity);
+        final File directory = activity.getFilesDir();
+        // Measure the cost of receiving each payload with the counters of the Android runtime
+        TransferStats.setSampler(new RuntimeSampler());
+        server = new TransferServer(activity.getResources().getInteger(R.integer.port_number), directory,
+                new ImageStore(new File(directory, STORE_DIRECTORY)),
+                new ActivityListener(activity))
+                .setWorkers(activity.getResources().getInteger(R.integer.server_pool_size),
+                        activity.getResources().getInteger(R.integer.server_queue_size))
+                .setIdleTimeout(activity.getResources().getInteger(R.integer.server_idle_timeout_seconds))
+                .setPartialTtl(TimeUnit.MINUTES.toMillis(
+                        activity.getResources().getInteger(R.integer.partial_ttl_minutes)))
+                .setZeroCopy(activity.getResources().getBoolean(R.bool.server_zero_copy))
+                .setTransport(activity.getResources().getInteger(R.integer.server_receive_buffer_kb) * 1024,
+                        activity.getResources().getInteger(R.integer.server_accept_backlog))
+                // Share the incoming link among the Clients, favouring single images over batches
+                .setScheduler(new BandwidthScheduler(
+                        activity.getResources().getInteger(R.integer.server_rate_cap_kb_per_second) * 1024L,
+                        activity.getResources().getInteger(R.integer.server_peer_rate_cap_kb_per_second) * 1024L))
+                .setRelayFanout(activity.getResources().getInteger(R.integer.relay_fanout))
+                .setRelayPolicy(createRelayPolicy(activity.getPeers()))
+                .setHello(createHello(activity, previews));
     }
 
-    public ServerSocket getServer() {
-        return server;
+    // Creates the answer to the Clients asking in which format the images should be sent.
+    // If only previews are required, Clients re-encode the images to the size and quality
+    // set in resources before sending them.
+    public static FrameHeader createHello(Context context, boolean previews) {
+        if (!previews) {
+            return TransferServer.createHello(0, 0);
+        }
+        return TransferServer.createHello(
+                context.getResources().getInteger(R.integer.preview_max_dimension),
+                context.getResources().getInteger(R.integer.preview_quality));
     }
 
-    public void cancel() {
-        this.cancelled = true;
+    // Allows forwarding relayed images just to the Servers found on the local network,
+    // so Clients cannot make this one connect anywhere else.
+    private static RelayPlan.Policy createRelayPolicy(PeerTable peers) {
+        return target -> peers.contains(target.getHostName(), target.getPort());
     }
 
-    // Starts a ServerSocket to accept connections and receive a new image.
-    // It only supports one Client at a time.
+    // Stops accepting new clients and aborts the ongoing transfers.
     @Override
-    public void run() {
-        Socket socket;
-
-        cancelled = false;
-
-        if (reference.get() != null) {
-            try {
-                // Bound a new ServerSocket to a given port
-                server = new ServerSocket(reference.get().getResources().getInteger(R.integer.port_number));
-
-                // Keep accepting new clients until the task is cancelled by the user
-                while (!cancelled) {
-
-                    // Display Server IP address and port and notify it is up and running
-                    if (reference.get() != null) {
-                        reference.get().runOnUiThread(() -> reference.get().notifyServerRunning());
-                    }
-
-                    // Block to wait for new Clients
-                    socket = server.accept();
-
-                    // Notify a new Client has been accepted
-                    if (reference.get() != null) {
-                        reference.get().runOnUiThread(
-                                () -> reference.get().displayNotifications(SocketActivity.NEW_CLIENT));
-                    }
-
-                    // Get the incoming image and save it on internal storage
-                    receiveAndSaveImage(socket);
-                    // Close the socket
-                    socket.close();
-
-                    // Sample the received image
-                    if (reference.get() != null) {
-                        bitmap = ImageUtils.sampleImage(
-                                reference.get(), ImageUtils.GET_IMAGE_FROM_FILE, "file_received.png");
-                    }
-                    // Display the image on the UI
-                    if (reference.get() != null) {
-                        reference.get().runOnUiThread(
-                                () -> reference.get().displayReceivedImage(bitmap));
-                    }
-                }
-            } catch (IOException e) {
-                // If the task was cancelled then this error is due to the ServerSocket being closed
-                // while waiting for new clients. It is safe to dismiss it.
-                // Otherwise display a notification to the user
-                if (cancelled) {
-                    if (reference.get() != null) {
-                        reference.get().runOnUiThread(
-                                () -> reference.get().displayNotifications(SocketActivity.SERVER_ERROR));
-                    }
-                }
-            }
-        }
-
-        // Updates the UI when the task finishes or it is cancelled
-        if (reference.get() != null) {
-            reference.get().runOnUiThread(
-                    () -> reference.get().displayNotifications(SocketActivity.SERVER_DOWN));
-        }
+    public void cancel() {
+        server.cancel();
     }
 
-    // Receives the incoming image through the socket and saves it on internal storage.
-    private void receiveAndSaveImage(Socket socket) {
-
-        try {
-            // Get the input channel
-            InputStream is = socket.getInputStream();
-            if (reference.get() != null) {
-                // Get an output channel on internal storage
-                FileOutputStream fos =
-                        reference.get().openFileOutput("file_received.png", Context.MODE_PRIVATE);
-                // Read and write the incoming image in chunks of 1024 bytes
-                byte[] buffer = new byte[1024];
-                int count;
-                while ((count = is.read(buffer)) != -1) {
-                    fos.write(buffer, 0, count);
-                }
-                fos.flush();
-                // Close all channels
-                fos.close();
-            }
-            // Close all channels
-            is.close();
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    // Accepts Clients and receives their images until cancelled.
+    @Override
+    public void run() {
+        server.run();
     }
 
 }
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.utils;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+// Keeps the bitmaps no longer displayed, so their memory can be reused to decode new images
+// (BitmapFactory.Options.inBitmap) instead of allocating new pixels and collecting the old ones.
+// Any large enough bitmap can be reused from API 19 (KitKat) on, whereas older versions require
+// exactly the same size, so bitmaps are only pooled from API 19 on.
+public class BitmapPool {
+
+    // Maximum number of bytes of pixels kept by the pool
+    private static final int MAX_BYTES = 8 * 1024 * 1024;
+    // Bitmaps much larger than required are not reused, as they would waste memory
+    private static final int MAX_WASTE_FACTOR = 4;
+
+    // Bitmaps available to be reused, the most recently released last
+    private static final LinkedList<Bitmap> bitmaps = new LinkedList<>();
+    private static int bytes;
+
+    // Gets a bitmap whose memory can hold an image of the given size and configuration,
+    // or null if there is none.
+    public static synchronized Bitmap acquire(int width, int height, Bitmap.Config config) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            return null;
+        }
+        final long required = (long) width * height * getBytesPerPixel(config);
+        final Iterator<Bitmap> iterator = bitmaps.descendingIterator();
+        while (iterator.hasNext()) {
+            final Bitmap bitmap = iterator.next();
+            final int size = bitmap.getAllocationByteCount();
+            if ((bitmap.getConfig() == config)
+                    && (size >= required) && (size <= required * MAX_WASTE_FACTOR)) {
+                iterator.remove();
+                bytes -= size;
+                return bitmap;
+            }
+        }
+        return null;
+    }
+
+    // Returns a bitmap that is no longer displayed, so its memory can be reused.
+    // Bitmaps that cannot be reused are left for the garbage collector.
+    public static synchronized void release(Bitmap bitmap) {
+        if ((bitmap == null) || (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT)
+                || !bitmap.isMutable() || bitmap.isRecycled()) {
+            return;
+        }
+        bitmaps.addLast(bitmap);
+        bytes += bitmap.getAllocationByteCount();
+        // Drop the least recently released bitmaps if the pool grows too large
+        while (bytes > MAX_BYTES) {
+            final Bitmap oldest = bitmaps.removeFirst();
+            bytes -= oldest.getAllocationByteCount();
+            oldest.recycle();
+        }
+    }
+
+    // Gets the number of bytes used by each pixel of the given configuration.
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        return (config == Bitmap.Config.RGB_565) ? 2 : 4;
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.utils;
+
+import android.graphics.Bitmap;
+import android.widget.ImageView;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Decodes images off the UI thread and displays them on their target ImageView.
+// Each ImageView only displays the image most recently requested for it, so older requests
+// still waiting are cancelled and the results of those already running are discarded.
+// Requests wait in a bounded queue ordered by priority, so when images arrive in bursts
+// the ones the user is waiting for are decoded first, and the least important ones are dropped.
+// It runs as many threads as cores, but one, which keeps drawing the UI.
+public class DecodeScheduler {
+
+    // Priorities of the requests, the highest decoded first
+    public static final int PRIORITY_PREVIEW = 0;
+    public static final int PRIORITY_RECEIVED = 1;
+    public static final int PRIORITY_USER = 2;
+
+    // Maximum number of requests waiting for a thread
+    private static final int QUEUE_CAPACITY = 16;
+    // Seconds an idle thread is kept alive
+    private static final int KEEP_ALIVE_SECONDS = 30;
+
+    private static DecodeScheduler instance;
+
+    // Decodes an image on a background thread.
+    public interface Decoder {
+
+        // Returns the decoded image, or null if there is nothing to display.
+        Bitmap decode();
+    }
+
+    // Displays a decoded image on the UI thread.
+    public interface Callback {
+
+        void onDecoded(Bitmap bitmap);
+    }
+
+    final private ThreadPoolExecutor executor;
+    final private PriorityBlockingQueue<Runnable> queue = new PriorityBlockingQueue<>();
+    // Most recent request of each ImageView, released along with the view
+    final private Map<ImageView, Request> latest = new WeakHashMap<>();
+    // Orders requests with the same priority by arrival
+    final private AtomicLong sequence = new AtomicLong();
+
+    private DecodeScheduler() {
+        final int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, queue);
+        // Threads are created when needed and stopped when idle, as decoding happens in bursts
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public static synchronized DecodeScheduler getInstance() {
+        if (instance == null) {
+            instance = new DecodeScheduler();
+        }
+        return instance;
+    }
+
+    // Decodes an image and displays it on the given ImageView through the callback,
+    // unless another image is requested for the same view before it is done.
+    public void submit(ImageView target, int priority, Decoder decoder, Callback callback) {
+        final Request request = new Request(target, priority, decoder, callback);
+        synchronized (latest) {
+            final Request previous = latest.put(target, request);
+            if (previous != null) {
+                cancel(previous);
+            }
+            // Make room for the new request by dropping the least important one,
+            // or drop the new one if all those waiting are more important
+            if (queue.size() >= QUEUE_CAPACITY) {
+                final Request dropped = findLeastImportant(request);
+                cancel(dropped);
+                if (dropped == request) {
+                    return;
+                }
+            }
+            executor.execute(request);
+        }
+    }
+
+    // Cancels the request of the given ImageView, if any.
+    public void cancel(ImageView target) {
+        synchronized (latest) {
+            final Request request = latest.get(target);
+            if (request != null) {
+                cancel(request);
+            }
+        }
+    }
+
+    // Cancels a request, removing it from the queue if it is still waiting.
+    // Must be called holding the lock on the latest requests.
+    private void cancel(Request request) {
+        request.cancelled = true;
+        executor.remove(request);
+        if (latest.get(request.target) == request) {
+            latest.remove(request.target);
+        }
+    }
+
+    // Finds the least important request among those waiting and the given one.
+    private Request findLeastImportant(Request candidate) {
+        Request least = candidate;
+        final Iterator<Runnable> iterator = queue.iterator();
+        while (iterator.hasNext()) {
+            final Request request = (Request) iterator.next();
+            if (request.compareTo(least) > 0) {
+                least = request;
+            }
+        }
+        return least;
+    }
+
+    // Returns a decoded image that will not be displayed, so its memory can be reused,
+    // unless it is cached to be displayed again.
+    private static void discard(ImageView target, Bitmap bitmap) {
+        if ((bitmap != null) && !ThumbnailCache.getInstance(target.getContext()).holds(bitmap)) {
+            BitmapPool.release(bitmap);
+        }
+    }
+
+    // Request to decode an image for an ImageView.
+    private final class Request implements Runnable, Comparable<Request> {
+
+        final ImageView target;
+        final int priority;
+        final long order;
+        final Decoder decoder;
+        final Callback callback;
+        volatile boolean cancelled;
+
+        Request(ImageView target, int priority, Decoder decoder, Callback callback) {
+            this.target = target;
+            this.priority = priority;
+            this.decoder = decoder;
+            this.callback = callback;
+            order = sequence.getAndIncrement();
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            final Bitmap bitmap = decoder.decode();
+            if (bitmap == null) {
+                return;
+            }
+            // Display the image on the UI thread, unless another one was requested meanwhile
+            target.post(() -> {
+                boolean current;
+                synchronized (latest) {
+                    current = !cancelled && (latest.get(target) == this);
+                    if (current) {
+                        latest.remove(target);
+                    }
+                }
+                if (current) {
+                    callback.onDecoded(bitmap);
+                } else {
+                    discard(target, bitmap);
+                }
+            });
+        }
+
+        // Higher priorities first, and then the oldest requests first.
+        @Override
+        public int compareTo(Request other) {
+            if (priority != other.priority) {
+                return (priority > other.priority) ? -1 : 1;
+            }
+            return (order < other.order) ? -1 : ((order == other.order) ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.utils;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import labs.dadm.l0504_sockets.R;
+
+// Keeps several renditions of each received image, from a thumbnail to an archival copy,
+// so displaying it at any size is just reading a file instead of decoding the original again.
+// The renditions of an image are generated once it is stored, decoding the original only once
+// at the size of the largest one and scaling each of the others down from the one above it.
+// Their encoding, which takes most of the time, runs in parallel on a work-stealing pool,
+// so idle threads take the renditions of busy ones and large images do not hold back the rest.
+// Work-stealing pools are available from API 21 (Lollipop) on, so older devices generate
+// the renditions one after the other on a single background thread.
+public class ImagePyramid {
+
+    // Directory on internal storage where the renditions are kept, one subdirectory per image
+    private static final String DIRECTORY = "pyramid";
+
+    private static ImagePyramid instance;
+
+    // Gets notified once the smallest rendition of an image is available.
+    public interface Callback {
+
+        // The thumbnail is null if the image could not be decoded.
+        void onThumbnail(File thumbnail);
+    }
+
+    // Maximum width and height of each rendition, the smallest first, and its quality (0-100)
+    final private int[] dimensions;
+    final private int[] qualities;
+    final private File directory;
+    // Runs the generation of the renditions
+    final private Runner runner;
+
+    private ImagePyramid(Context context) {
+        dimensions = context.getResources().getIntArray(R.array.pyramid_dimensions);
+        qualities = context.getResources().getIntArray(R.array.pyramid_qualities);
+        directory = new File(context.getFilesDir(), DIRECTORY);
+        directory.mkdirs();
+        // Keep a core free to draw the UI, as DecodeScheduler does
+        final int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        runner = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+                ? new WorkStealingRunner(threads)
+                : new SerialRunner();
+    }
+
+    // Gets the pyramid shared by the whole application.
+    public static synchronized ImagePyramid getInstance(Context context) {
+        if (instance == null) {
+            instance = new ImagePyramid(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    // Generates the renditions of the stored image with the given content ID on background,
+    // unless they were already generated, and notifies once its thumbnail is available.
+    public void generate(String contentId, File original, Callback callback) {
+        runner.execute(() -> {
+            final File thumbnail = getFile(contentId, 0);
+            if (isComplete(contentId)) {
+                callback.onThumbnail(thumbnail);
+                return;
+            }
+            try {
+                build(contentId, original, callback);
+            } catch (IOException e) {
+                e.printStackTrace();
+                Metrics.failure(e);
+                callback.onThumbnail(null);
+            }
+        });
+    }
+
+    // Gets the smallest rendition of the image whose width and height are at least as large as
+    // the given dimension, or the largest one if none is, or null if the image has got none.
+    public File getRendition(String contentId, int dimension) {
+        File largest = null;
+        for (int level = 0; level < dimensions.length; level++) {
+            final File file = getFile(contentId, level);
+            if (file.exists()) {
+                if (dimensions[level] >= dimension) {
+                    return file;
+                }
+                largest = file;
+            }
+        }
+        return largest;
+    }
+
+    // Decodes the original once and encodes all the renditions in parallel,
+    // each one scaled down from the one above it.
+    private void build(String contentId, File original, Callback callback) throws IOException {
+        if (dimensions.length == 0) {
+            callback.onThumbnail(null);
+            return;
+        }
+        final Bitmap decoded = ImageUtils.decodeAtLeast(original, dimensions[dimensions.length - 1]);
+        if (decoded == null) {
+            callback.onThumbnail(null);
+            return;
+        }
+        new File(directory, contentId).mkdirs();
+
+        final List<Bitmap> bitmaps = new ArrayList<>();
+        final List<Runnable> tasks = new ArrayList<>();
+        Bitmap bitmap = decoded;
+        for (int level = dimensions.length - 1; level >= 0; level--) {
+            bitmap = ImageUtils.scaleDown(bitmap, dimensions[level]);
+            if (!bitmaps.contains(bitmap)) {
+                bitmaps.add(bitmap);
+            }
+            final Bitmap rendition = bitmap;
+            final File file = getFile(contentId, level);
+            final int quality = qualities[Math.min(level, qualities.length - 1)];
+            final boolean thumbnail = (level == 0);
+            tasks.add(() -> {
+                final boolean written = write(rendition, quality, file);
+                if (thumbnail) {
+                    callback.onThumbnail(written ? file : null);
+                }
+            });
+        }
+        try {
+            runner.runAll(tasks);
+        } finally {
+            // No rendition is displayed, so the memory of their pixels can be reused right away
+            for (Bitmap used : bitmaps) {
+                BitmapPool.release(used);
+            }
+        }
+    }
+
+    // Compresses a rendition into its file, unless it already exists.
+    // Images without transparency take less space as JPEG.
+    // Returns whether the file is available.
+    private static boolean write(Bitmap bitmap, int quality, File file) {
+        if (file.exists()) {
+            return true;
+        }
+        final File tmp = new File(file.getPath() + ".tmp");
+        try {
+            final OutputStream os = new BufferedOutputStream(new FileOutputStream(tmp));
+            try {
+                if (!bitmap.compress(bitmap.hasAlpha() ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG,
+                        quality, os)) {
+                    tmp.delete();
+                    return false;
+                }
+            } finally {
+                os.close();
+            }
+            // Readers never see a rendition partially written
+            return tmp.renameTo(file) || file.exists();
+        } catch (IOException e) {
+            e.printStackTrace();
+            tmp.delete();
+            return false;
+        }
+    }
+
+    // Determines whether all the renditions of the image are already available.
+    private boolean isComplete(String contentId) {
+        for (int level = 0; level < dimensions.length; level++) {
+            if (!getFile(contentId, level).exists()) {
+                return false;
+            }
+        }
+        return dimensions.length > 0;
+    }
+
+    private File getFile(String contentId, int level) {
+        return new File(new File(directory, contentId), String.valueOf(dimensions[level]));
+    }
+
+    // Runs the generation of each image, and the renditions of an image once decoded.
+    private interface Runner {
+
+        void execute(Runnable task);
+
+        // Runs the given tasks, from within a task, and waits for all of them.
+        void runAll(List<Runnable> tasks);
+    }
+
+    // Runs the images and their renditions on a work-stealing pool.
+    // Each rendition is forked, so idle threads steal them while the thread that decoded the image
+    // encodes the rest.
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static final class WorkStealingRunner implements Runner {
+
+        final private ForkJoinPool pool;
+
+        WorkStealingRunner(int threads) {
+            pool = new ForkJoinPool(threads);
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            pool.execute(task);
+        }
+
+        @Override
+        public void runAll(List<Runnable> tasks) {
+            final List<ForkJoinTask<?>> forked = new ArrayList<>();
+            for (Runnable task : tasks) {
+                forked.add(ForkJoinTask.adapt(task));
+            }
+            ForkJoinTask.invokeAll(forked);
+        }
+    }
+
+    // Runs the images one after the other on a single thread, and their renditions in turn.
+    private static final class SerialRunner implements Runner {
+
+        final private ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        @Override
+        public void execute(Runnable task) {
+            executor.execute(task);
+        }
+
+        @Override
+        public void runAll(List<Runnable> tasks) {
+            for (Runnable task : tasks) {
+                task.run();
+            }
+        }
+    }
+}
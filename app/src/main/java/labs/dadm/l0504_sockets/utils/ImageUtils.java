@@ -8,78 +8,499 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+
+import labs.dadm.l0504_sockets.protocol.ContentId;
 
 public class ImageUtils {
 
     public static final int GET_IMAGE_FROM_FILE = 0;
     public static final int GET_IMAGE_FROM_URI = 1;
+    public static final int GET_IMAGE_FROM_PATH = 2;
+
+    // Size (width and height) the images are sampled to before being displayed
+    private static final int REQUIRED_SIZE = 200;
+    // Bytes of a stream that can be read again after getting the image size.
+    // The header of most images is much shorter
+    private static final int MARK_LIMIT = 64 * 1024;
 
     // Samples an image to reduce its size before displaying it on screen.
+    // The image is opened only once: its size is read first and then the image is decoded
+    // from the same source. Its pixels reuse the memory of bitmaps no longer displayed if possible,
+    // and JPEG images (without transparency) use 2 bytes per pixel instead of 4.
     public static Bitmap sampleImage(Context context, int source, Object value) {
 
         Bitmap bitmap = null;
+        final long start = System.nanoTime();
         try {
-            InputStream is = null;
             // Get the image from the file where the Server has stored it
             if (source == GET_IMAGE_FROM_FILE) {
-                is = context.openFileInput((String) value);
+                final FileInputStream fis = context.openFileInput((String) value);
+                try {
+                    bitmap = decodeSampled(new DescriptorDecoder(fis.getFD()));
+                } finally {
+                    fis.close();
+                }
+            }
+            // Get the image from any other file, such as those in the store of the Server
+            else if (source == GET_IMAGE_FROM_PATH) {
+                final FileInputStream fis = new FileInputStream((File) value);
+                try {
+                    bitmap = decodeSampled(new DescriptorDecoder(fis.getFD()));
+                } finally {
+                    fis.close();
+                }
             }
             // Get the image selected by the Client from its URI
             else if (source == GET_IMAGE_FROM_URI) {
-                is = context.getContentResolver().openInputStream((Uri) value);
+                final Decoder decoder = openDecoder(context, (Uri) value);
+                try {
+                    bitmap = decodeSampled(decoder);
+                } finally {
+                    decoder.close();
+                }
             }
-            // The image will be sampled in two steps:
-            // - First: get the image size
-            // - Then: do the actual sampling
-            if (is != null) {
-                // Specify the options for sampling the image
-                BitmapFactory.Options options = new BitmapFactory.Options();
-                // If inJustDecodeBounds is true it does not return a Bitmap,
-                // but provides the image size without allocating memory for its pixels
-                options.inJustDecodeBounds = true;
-                // Decode the InputStream into a bitmap, although it will be null due to options
-                BitmapFactory.decodeStream(is, null, options);
+        } catch (FileNotFoundException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (bitmap != null) {
+            Metrics.DECODE_TIME.record(Metrics.microsSince(start));
+        }
+        return bitmap;
+    }
+
+    // Gets the thumbnail of an image from the cache, identified by its content,
+    // or samples the image and caches its thumbnail if it was not there.
+    // Images read from streams cannot be identified without reading them twice, so they are not cached.
+    public static Bitmap loadThumbnail(Context context, int source, Object value) {
+        String contentId = null;
+        try {
+            contentId = getContentId(context, source, value);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (contentId == null) {
+            return sampleImage(context, source, value);
+        }
+        return loadThumbnail(context, source, value, contentId);
+    }
+
+    // Gets the thumbnail of an image whose content ID is already known, as above.
+    public static Bitmap loadThumbnail(Context context, File file, String contentId) {
+        return loadThumbnail(context, GET_IMAGE_FROM_PATH, file, contentId);
+    }
+
+    private static Bitmap loadThumbnail(Context context, int source, Object value, String contentId) {
+        final ThumbnailCache cache = ThumbnailCache.getInstance(context);
+        Bitmap bitmap = cache.get(contentId);
+        if (bitmap == null) {
+            bitmap = sampleImage(context, source, value);
+            if (bitmap != null) {
+                cache.put(contentId, bitmap);
+            }
+        }
+        return bitmap;
+    }
+
+    // Computes the content ID of the image, or returns null if it is not a seekable file.
+    private static String getContentId(Context context, int source, Object value) throws IOException {
+        if ((source == GET_IMAGE_FROM_FILE) || (source == GET_IMAGE_FROM_PATH)) {
+            final FileInputStream fis = (source == GET_IMAGE_FROM_FILE)
+                    ? context.openFileInput((String) value)
+                    : new FileInputStream((File) value);
+            try {
+                return ContentId.of(fis.getChannel());
+            } finally {
+                fis.close();
+            }
+        }
+        final ParcelFileDescriptor descriptor;
+        try {
+            descriptor = context.getContentResolver().openFileDescriptor((Uri) value, "r");
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        if (descriptor == null) {
+            return null;
+        }
+        try {
+            // Pipes and sockets have not got a size, so they cannot be mapped into memory
+            if (descriptor.getStatSize() < 0) {
+                return null;
+            }
+            final FileInputStream fis = new FileInputStream(descriptor.getFileDescriptor());
+            try {
+                return ContentId.of(fis.getChannel());
+            } finally {
+                fis.close();
+            }
+        } finally {
+            descriptor.close();
+        }
+    }
+
+    // Samples the first bytes of an image still being received, to display a preview of it.
+    // Decoders render the part of the image already available and leave the rest blank,
+    // so the preview gets sharper (progressive JPEG) or longer (baseline) as more bytes arrive.
+    public static Bitmap samplePartialImage(File file, long available) {
+        try {
+            return decodeSampled(new PrefixDecoder(file, available));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    // Gets the size of the image and then decodes it sampled to be displayed.
+    private static Bitmap decodeSampled(Decoder decoder) throws IOException {
+        // The image will be sampled in two steps:
+        // - First: get the image size
+        // - Then: do the actual sampling
+        // Specify the options for sampling the image
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        // If inJustDecodeBounds is true it does not return a Bitmap,
+        // but provides the image size without allocating memory for its pixels
+        options.inJustDecodeBounds = true;
+        decoder.decode(options);
+        if ((options.outWidth <= 0) || (options.outHeight <= 0)) {
+            return null;
+        }
+
+        // Disable inJustDecodeBounds to enable the actual sampling
+        options.inJustDecodeBounds = false;
+        // Get the sampling size
+        int inSampleSize = 1;
+        // If the image size is bigger than the required, then it should be sampled
+        if ((options.outHeight > REQUIRED_SIZE) || (options.outWidth > REQUIRED_SIZE)) {
+            // Computes half the geight and width of the image
+            final int halfHeight = options.outHeight / 2;
+            final int halfWidth = options.outWidth / 2;
+            // Compute the largest sample size that keeps both
+            // the hight and width of the image larger than the required ones
+            while (((halfHeight / inSampleSize) > REQUIRED_SIZE) &&
+                    ((halfWidth / inSampleSize) > REQUIRED_SIZE)) {
+                inSampleSize *= 2;
+            }
+        }
+        options.inSampleSize = inSampleSize;
+        return decodeReusing(decoder, options);
+    }
+
+    // Decodes the image whose size is already in the options,
+    // reusing the memory of a bitmap no longer displayed if there is one large enough.
+    private static Bitmap decodeReusing(Decoder decoder, BitmapFactory.Options options)
+            throws IOException {
+        // JPEG images have not got transparency, so they do not need an alpha channel
+        options.inPreferredConfig = "image/jpeg".equals(options.outMimeType)
+                ? Bitmap.Config.RGB_565
+                : Bitmap.Config.ARGB_8888;
+        // Decoded bitmaps can be reused later on
+        options.inMutable = true;
+        final int sampledWidth = (options.outWidth + options.inSampleSize - 1) / options.inSampleSize;
+        final int sampledHeight = (options.outHeight + options.inSampleSize - 1) / options.inSampleSize;
+        options.inBitmap = BitmapPool.acquire(sampledWidth, sampledHeight, options.inPreferredConfig);
+        try {
+            return decoder.decode(options);
+        } catch (IllegalArgumentException e) {
+            // The image could not be decoded into the reused bitmap, so decode it into a new one
+            options.inBitmap = null;
+            return decoder.decode(options);
+        }
+    }
+
+    // Re-encodes the image selected by the Client so that neither its width nor its height
+    // exceed the given dimension, and saves it into the given file.
+    // PNG images are kept as PNG, as they may have transparency, and the rest become JPEG.
+    // Returns the MIME type of the new image, or null if the original one is already small enough
+    // or cannot be decoded.
+    public static String encodePreview(Context context, Uri uri, int maxDimension, int quality,
+                                       File output) throws IOException {
+        final Decoder decoder = openDecoder(context, uri);
+        Bitmap bitmap;
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        try {
+            // Get the image size
+            options.inJustDecodeBounds = true;
+            decoder.decode(options);
+            final int largest = Math.max(options.outWidth, options.outHeight);
+            if ((largest <= 0) || (largest <= maxDimension)) {
+                return null;
+            }
+
+            // Sample the image, as decoding it at full resolution could take too much memory,
+            // while keeping it at least as large as required
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = 1;
+            while (largest / (options.inSampleSize * 2) >= maxDimension) {
+                options.inSampleSize *= 2;
+            }
+            bitmap = decodeReusing(decoder, options);
+        } finally {
+            decoder.close();
+        }
+        if (bitmap == null) {
+            return null;
+        }
+
+        // Scale the sampled image down to the exact dimension
+        final Bitmap scaled = scaleDown(bitmap, maxDimension);
+        if (scaled != bitmap) {
+            BitmapPool.release(bitmap);
+            bitmap = scaled;
+        }
+
+        // Compress the image into the file
+        final boolean png = "image/png".equals(options.outMimeType);
+        final OutputStream os = new BufferedOutputStream(new FileOutputStream(output));
+        try {
+            if (!bitmap.compress(png ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG,
+                    quality, os)) {
+                return null;
+            }
+        } finally {
+            os.close();
+            // The bitmap was never displayed, so its memory can be reused right away
+            BitmapPool.release(bitmap);
+        }
+        return png ? "image/png" : "image/jpeg";
+    }
+
+    // Decodes an image stored in a file, sampled as much as possible while keeping
+    // its width or height at least as large as the given dimension.
+    // Returns null if the image cannot be decoded.
+    public static Bitmap decodeAtLeast(File file, int dimension) throws IOException {
+        final long start = System.nanoTime();
+        final FileInputStream fis = new FileInputStream(file);
+        try {
+            final Decoder decoder = new DescriptorDecoder(fis.getFD());
+            // Get the image size
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            decoder.decode(options);
+            final int largest = Math.max(options.outWidth, options.outHeight);
+            if (largest <= 0) {
+                return null;
+            }
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = 1;
+            while (largest / (options.inSampleSize * 2) >= dimension) {
+                options.inSampleSize *= 2;
+            }
+            final Bitmap bitmap = decodeReusing(decoder, options);
+            if (bitmap != null) {
+                Metrics.DECODE_TIME.record(Metrics.microsSince(start));
+            }
+            return bitmap;
+        } finally {
+            fis.close();
+        }
+    }
+
+    // Scales the image down so that neither its width nor its height exceed the given dimension.
+    // Returns the same bitmap if it is already small enough.
+    public static Bitmap scaleDown(Bitmap bitmap, int maxDimension) {
+        final float scale = (float) maxDimension / Math.max(bitmap.getWidth(), bitmap.getHeight());
+        if (scale >= 1) {
+            return bitmap;
+        }
+        return Bitmap.createScaledBitmap(bitmap,
+                Math.max(1, Math.round(bitmap.getWidth() * scale)),
+                Math.max(1, Math.round(bitmap.getHeight() * scale)), true);
+    }
+
+    // Opens the image selected by the Client to be decoded several times.
+    // Seekable files are decoded through their descriptor, while streams (e.g. from cloud providers)
+    // are buffered, so the header can be read again without opening the image a second time.
+    private static Decoder openDecoder(Context context, Uri uri) throws IOException {
+        ParcelFileDescriptor descriptor = null;
+        try {
+            descriptor = context.getContentResolver().openFileDescriptor(uri, "r");
+        } catch (FileNotFoundException e) {
+            // Some providers can only deliver the image as a stream
+        }
+        if (descriptor != null) {
+            // Pipes and sockets have not got a size, so they cannot be read twice
+            if (descriptor.getStatSize() >= 0) {
+                return new DescriptorDecoder(descriptor);
+            }
+            descriptor.close();
+        }
+        return new StreamDecoder(context, uri);
+    }
+
+    // Source of an image that can be decoded several times.
+    private interface Decoder {
+
+        Bitmap decode(BitmapFactory.Options options) throws IOException;
+
+        void close() throws IOException;
+    }
+
+    // Decodes an image from a file descriptor.
+    // Decoding does not change the position of the descriptor, so it can be decoded again as is.
+    private static final class DescriptorDecoder implements Decoder {
+
+        private final FileDescriptor fd;
+        // Owner of the descriptor, if it must be closed by the decoder
+        private final ParcelFileDescriptor descriptor;
+
+        DescriptorDecoder(FileDescriptor fd) {
+            this.fd = fd;
+            this.descriptor = null;
+        }
+
+        DescriptorDecoder(ParcelFileDescriptor descriptor) {
+            this.fd = descriptor.getFileDescriptor();
+            this.descriptor = descriptor;
+        }
+
+        @Override
+        public Bitmap decode(BitmapFactory.Options options) {
+            return BitmapFactory.decodeFileDescriptor(fd, null, options);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (descriptor != null) {
+                descriptor.close();
+            }
+        }
+    }
+
+    // Decodes the first bytes of a file that is still being written.
+    // The rest of the file may be already allocated, so it must never be read.
+    private static final class PrefixDecoder implements Decoder {
+
+        private final File file;
+        private final long available;
+
+        PrefixDecoder(File file, long available) {
+            this.file = file;
+            this.available = available;
+        }
+
+        @Override
+        public Bitmap decode(BitmapFactory.Options options) throws IOException {
+            final InputStream is = new BufferedInputStream(
+                    new LimitedInputStream(new FileInputStream(file), available));
+            try {
+                return BitmapFactory.decodeStream(is, null, options);
+            } finally {
                 is.close();
+            }
+        }
 
-                // Disable inJustDecodeBounds to enable the actual sampling
-                options.inJustDecodeBounds = false;
-                // Get the sampling size
-                int inSampleSize = 1;
-                // If the image size is bigger than the required, then it should be sampled
-                if ((options.outHeight > 200) || (options.outWidth > 200)) {
-                    // Computes half the geight and width of the image
-                    final int halfHeight = options.outHeight / 2;
-                    final int halfWidth = options.outWidth / 2;
-                    // Compute the largest sample size that keeps both
-                    // the hight and width of the image larger than the required ones
-                    while (((halfHeight / inSampleSize) > 200) &&
-                            ((halfWidth / inSampleSize) > 200)) {
-                        inSampleSize *= 2;
-                    }
-                }
-                options.inSampleSize = inSampleSize;
+        @Override
+        public void close() {
+        }
+    }
+
+    // Reads no more than the given number of bytes from a stream.
+    private static final class LimitedInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        LimitedInputStream(InputStream is, long limit) {
+            super(is);
+            remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            final int value = super.read();
+            if (value != -1) {
+                remaining--;
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            final int count = super.read(buffer, offset, (int) Math.min(length, remaining));
+            if (count > 0) {
+                remaining -= count;
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            final long skipped = super.skip(Math.min(count, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
 
-                // Get the image again from the file where the Server has stored it
-                if (source == GET_IMAGE_FROM_FILE) {
-                    is = context.openFileInput((String) value);
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    // Decodes an image from a buffered stream, which is rewound to decode it again.
+    // If the header was longer than the buffer, the image is opened again.
+    private static final class StreamDecoder implements Decoder {
+
+        private final Context context;
+        private final Uri uri;
+        private InputStream is;
+
+        StreamDecoder(Context context, Uri uri) {
+            this.context = context;
+            this.uri = uri;
+        }
+
+        @Override
+        public Bitmap decode(BitmapFactory.Options options) throws IOException {
+            if (is != null) {
+                try {
+                    is.reset();
+                } catch (IOException e) {
+                    // Too many bytes were read, so start again from the beginning
+                    is.close();
+                    is = null;
                 }
-                // Get the image selected by the Client again from its URI
-                else {
-                    is = context.getContentResolver().openInputStream((Uri) value);
+            }
+            if (is == null) {
+                final InputStream source = context.getContentResolver().openInputStream(uri);
+                if (source == null) {
+                    throw new FileNotFoundException(uri.toString());
                 }
-                // Decode de InputStream into a bitmap
-                bitmap = BitmapFactory.decodeStream(is, null, options);
+                is = new BufferedInputStream(source, MARK_LIMIT);
+                is.mark(MARK_LIMIT);
+            }
+            return BitmapFactory.decodeStream(is, null, options);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (is != null) {
                 is.close();
             }
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
         }
-        return bitmap;
     }
 }
@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.utils;
+
+import android.os.Build;
+import android.os.Debug;
+
+// Reads the CPU time and garbage collections measured by TransferStats from the Android runtime.
+public class RuntimeSampler implements TransferStats.Sampler {
+
+    @Override
+    public long getThreadCpuTimeNanos() {
+        return Debug.threadCpuTimeNanos();
+    }
+
+    // Garbage collections are only counted from API 23 on.
+    @Override
+    public long getGcCount() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            final String count = Debug.getRuntimeStat("art.gc.gc-count");
+            if (count != null) {
+                try {
+                    return Long.parseLong(count);
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 0;
+    }
+}
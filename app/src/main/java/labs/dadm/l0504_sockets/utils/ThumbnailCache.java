@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.utils;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.LruCache;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import labs.dadm.l0504_sockets.R;
+
+// Keeps the sampled images already displayed, identified by the content ID of the original image,
+// so displaying the same image again does not require decoding it.
+// The most recently used ones are kept in memory, bounded by the bytes of their pixels,
+// and all of them are also saved as small files in the cache directory, bounded by their total size.
+// Bitmaps held in memory are shared with the UI, so they must never be recycled nor reused.
+public class ThumbnailCache {
+
+    // Directory within the cache directory where the thumbnails are saved
+    private static final String DIRECTORY = "thumbnails";
+    // Quality of the thumbnails saved as JPEG
+    private static final int QUALITY = 90;
+
+    private static ThumbnailCache instance;
+
+    // Thumbnails in memory, by content ID
+    final private LruCache<String, Bitmap> memory;
+    // Directory with the thumbnails on disk, and the maximum and current number of bytes they take
+    final private File directory;
+    final private long maxDiskBytes;
+    private long diskBytes;
+
+    private ThumbnailCache(Context context) {
+        memory = new LruCache<String, Bitmap>(
+                context.getResources().getInteger(R.integer.thumbnail_memory_cache_kb) * 1024) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+        directory = new File(context.getCacheDir(), DIRECTORY);
+        directory.mkdirs();
+        maxDiskBytes = context.getResources().getInteger(R.integer.thumbnail_disk_cache_kb) * 1024L;
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                diskBytes += file.length();
+            }
+        }
+    }
+
+    // Gets the cache shared by the whole application.
+    public static synchronized ThumbnailCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new ThumbnailCache(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    // Gets the thumbnail of the image with the given content ID, or null if not cached.
+    // Thumbnails found on disk are kept in memory from now on.
+    public Bitmap get(String contentId) {
+        Bitmap bitmap = memory.get(contentId);
+        if (bitmap != null) {
+            return bitmap;
+        }
+        final File file = new File(directory, contentId);
+        if (!file.exists()) {
+            return null;
+        }
+        bitmap = BitmapFactory.decodeFile(file.getPath(), null);
+        if (bitmap == null) {
+            // The file got corrupted, so forget about it
+            delete(file);
+            return null;
+        }
+        // Keep track of the thumbnails used most recently, to evict the others first
+        file.setLastModified(System.currentTimeMillis());
+        memory.put(contentId, bitmap);
+        return bitmap;
+    }
+
+    // Keeps the thumbnail of the image with the given content ID in memory and on disk.
+    public void put(String contentId, Bitmap bitmap) {
+        memory.put(contentId, bitmap);
+        final File file = new File(directory, contentId);
+        if (file.exists()) {
+            return;
+        }
+        // Images without transparency take less space as JPEG
+        final File tmp = new File(directory, contentId + ".tmp");
+        try {
+            final OutputStream os = new BufferedOutputStream(new FileOutputStream(tmp));
+            try {
+                bitmap.compress(bitmap.hasAlpha() ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG,
+                        QUALITY, os);
+            } finally {
+                os.close();
+            }
+            // Readers never see a thumbnail partially written
+            if (tmp.renameTo(file)) {
+                added(file.length());
+            } else {
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            tmp.delete();
+        }
+    }
+
+    // Determines whether the bitmap is held in memory, so it cannot be reused for other images.
+    public boolean holds(Bitmap bitmap) {
+        return memory.snapshot().containsValue(bitmap);
+    }
+
+    // Records the size of a new thumbnail on disk, and deletes the least recently used ones
+    // if they take too much space.
+    private synchronized void added(long length) {
+        diskBytes += length;
+        if (diskBytes <= maxDiskBytes) {
+            return;
+        }
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.valueOf(a.lastModified()).compareTo(b.lastModified());
+            }
+        });
+        for (int i = 0; (i < files.length) && (diskBytes > maxDiskBytes); i++) {
+            delete(files[i]);
+        }
+    }
+
+    // Deletes a thumbnail from disk.
+    private synchronized void delete(File file) {
+        final long length = file.length();
+        if (file.delete()) {
+            diskBytes -= length;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.utils;
+
+import android.app.Activity;
+import android.view.Choreographer;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Delivers the events of the transfers (a Client accepted, an image sent...) from the threads
+// running them to the UI thread, without posting a new Runnable for each event.
+// Events are records of primitive values kept in a bounded ring shared by all the threads,
+// which reserve their slots without locks, and the UI thread drains the ring once per frame.
+// So the cost of notifying the UI stays the same no matter how many transfers are running.
+// Only progress events may be dropped if the ring gets full, as the next one supersedes them.
+// Any other event waits in an unbounded overflow queue instead, and so do those posted after it,
+// so events are never lost nor delivered out of order.
+public class TransferEventBus {
+
+    // Receives the events on the UI thread.
+    public interface Listener {
+
+        // An event happened in the given transfer, which may have moved the given number of bytes.
+        void onEvent(long transferId, int type, long bytes);
+
+        // All the events pending in this frame have been delivered.
+        void onEventsDrained();
+    }
+
+    // Fields of the events, by slot.
+    // Each slot can be written once its sequence equals the position of the producer,
+    // and read once it equals that position plus one
+    private final AtomicLongArray sequences;
+    private final long[] transferIds;
+    private final int[] types;
+    private final long[] bytes;
+    private final int mask;
+
+    // Position of the next slot to be reserved by producers
+    private final AtomicLong tail = new AtomicLong();
+    // Position of the next slot to be read, only used by the UI thread
+    private long head;
+    // Progress events dropped because the ring was full
+    private final AtomicLong dropped = new AtomicLong();
+    // Events that did not fit into the ring, to be delivered after those in the ring
+    private final ConcurrentLinkedQueue<Event> overflow = new ConcurrentLinkedQueue<>();
+
+    // Whether the UI thread will drain the ring in its next frame
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private final Activity activity;
+    private final Listener listener;
+
+    // Both callbacks are created only once, so posting events does not allocate
+    private final Choreographer.FrameCallback drainer = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            // Events posted from now on will be drained in the next frame
+            scheduled.set(false);
+            drain();
+        }
+    };
+    private final Runnable scheduler = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(drainer);
+        }
+    };
+
+    // Creates a bus able to hold the given number of events (rounded up to a power of two)
+    // not yet delivered to the listener.
+    public TransferEventBus(Activity activity, Listener listener, int capacity) {
+        this.activity = activity;
+        this.listener = listener;
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        mask = size - 1;
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        transferIds = new long[size];
+        types = new int[size];
+        bytes = new long[size];
+    }
+
+    // Posts an event from any thread, which is never dropped.
+    // If the ring is full, which only happens if the UI thread stops drawing frames,
+    // the event waits in the overflow queue, allocating memory only then.
+    public void post(long transferId, int type, long count) {
+        if (!overflow.isEmpty() || !offer(transferId, type, count)) {
+            overflow.add(new Event(transferId, type, count));
+        }
+        schedule();
+    }
+
+    // Posts a progress event from any thread. Returns false if it was dropped because the ring
+    // was full, or because other events are waiting in the overflow queue.
+    public boolean postProgress(long transferId, int type, long count) {
+        if (!overflow.isEmpty() || !offer(transferId, type, count)) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        schedule();
+        return true;
+    }
+
+    // Puts an event into a free slot of the ring. Returns false if the ring is full.
+    private boolean offer(long transferId, int type, long count) {
+        long position;
+        while (true) {
+            position = tail.get();
+            final long difference = sequences.get((int) position & mask) - position;
+            if (difference == 0) {
+                // The slot is free, so try to reserve it
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (difference < 0) {
+                // The UI thread has not read the slot yet
+                return false;
+            }
+            // Otherwise another producer reserved the slot, so try the next one
+        }
+        final int index = (int) position & mask;
+        transferIds[index] = transferId;
+        types[index] = type;
+        bytes[index] = count;
+        // Publish the event, making its fields visible to the UI thread
+        sequences.set(index, position + 1);
+        return true;
+    }
+
+    // Asks the UI thread to drain the ring in its next frame, unless already asked.
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            activity.runOnUiThread(scheduler);
+        }
+    }
+
+    // Gets the number of progress events dropped because the ring was full.
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    // Delivers all the published events to the listener, those in the ring first,
+    // as they were posted before those in the overflow queue. Only called on the UI thread.
+    private void drain() {
+        boolean delivered = false;
+        while (true) {
+            final int index = (int) head & mask;
+            if (sequences.get(index) != head + 1) {
+                // The next event has not been published yet
+                break;
+            }
+            final long transferId = transferIds[index];
+            final int type = types[index];
+            final long count = bytes[index];
+            // Free the slot for the producers, one lap ahead
+            sequences.set(index, head + mask + 1);
+            head++;
+            listener.onEvent(transferId, type, count);
+            delivered = true;
+        }
+        Event event;
+        while ((event = overflow.poll()) != null) {
+            listener.onEvent(event.transferId, event.type, event.bytes);
+            delivered = true;
+        }
+        if (delivered) {
+            listener.onEventsDrained();
+        }
+    }
+
+    // Event waiting in the overflow queue.
+    private static final class Event {
+
+        final private long transferId;
+        final private int type;
+        final private long bytes;
+
+        Event(long transferId, int type, long bytes) {
+            this.transferId = transferId;
+            this.type = type;
+            this.bytes = bytes;
+        }
+    }
+}
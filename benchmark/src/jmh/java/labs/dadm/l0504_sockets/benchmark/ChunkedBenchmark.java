@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2016. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import labs.dadm.l0504_sockets.network.ConnectionPool;
+import labs.dadm.l0504_sockets.protocol.FrameHeader;
+import labs.dadm.l0504_sockets.transfer.ChunkedUpload;
+import labs.dadm.l0504_sockets.transfer.StorageSink;
+import labs.dadm.l0504_sockets.transfer.TransferListener;
+import labs.dadm.l0504_sockets.transfer.TransferServer;
+import labs.dadm.l0504_sockets.utils.TransferStats;
+
+// Sends an image in chunks through one or several connections at once with ChunkedUpload,
+// as the app does, to a TransferServer behind an emulated link with latency and loss (see ImpairedLink).
+// A single TCP connection slows down on each loss, whereas several connections recover from their
+// losses independently, which is what sending in chunks is meant to exploit.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ChunkedBenchmark {
+
+    // Size of each chunk
+    private static final long CHUNK_SIZE = 256 * 1024;
+    // Bandwidth of the emulated link, shared by all the connections (100 Mbit/s)
+    private static final long LINK_BYTES_PER_SECOND = 12500000;
+
+    // Number of connections sending chunks at once (1 is the same as sending the image whole)
+    @Param({"1", "4"})
+    public int streams;
+
+    // Round trip time of the emulated link, in milliseconds
+    @Param({"20"})
+    public int rttMillis;
+
+    // Fraction of packets lost on the emulated link
+    @Param({"0.0001", "0.01"})
+    public double loss;
+
+    // Size of each image
+    @Param({"4194304"})
+    public int fileSize;
+
+    File source;
+    FileChannel file;
+    File directory;
+    TransferServer server;
+    ImpairedLink link;
+    ConnectionPool pool;
+    ExecutorService serverThread;
+    ExecutorService uploaders;
+    ExecutorService ackReaders;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        source = Payloads.create(fileSize);
+        file = new FileInputStream(source).getChannel();
+        directory = Files.createTempDirectory("chunks").toFile();
+
+        // The Server binds the port it is given, so find one free
+        final ServerSocket probe = new ServerSocket(0);
+        final int port = probe.getLocalPort();
+        probe.close();
+        final CountDownLatch running = new CountDownLatch(1);
+        server = new TransferServer(port, directory, new DiscardingSink(), new Listener(running));
+        serverThread = Executors.newSingleThreadExecutor();
+        serverThread.execute(server::run);
+        running.await();
+
+        link = new ImpairedLink(new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+                LINK_BYTES_PER_SECOND, rttMillis, loss);
+        pool = new ConnectionPool(TimeUnit.MINUTES.toMillis(1), streams);
+        uploaders = Executors.newCachedThreadPool();
+        ackReaders = Executors.newCachedThreadPool();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        // Every image has been confirmed, so the threads have nothing left to do
+        pool.close();
+        link.close();
+        server.cancel();
+        serverThread.shutdown();
+        uploaders.shutdown();
+        ackReaders.shutdown();
+        file.close();
+        source.delete();
+        directory.delete();
+    }
+
+    @Benchmark
+    public int send() throws IOException, InterruptedException {
+        final ChunkedUpload upload = new ChunkedUpload(pool, uploaders, ackReaders, link.getAddress(),
+                file, source.getName(), "application/octet-stream")
+                .setStreams(streams)
+                .setChunkSize(CHUNK_SIZE);
+        if (!upload.send()) {
+            throw new IllegalStateException("Only " + upload.getAcknowledged() + " chunks received");
+        }
+        return upload.getAcknowledged();
+    }
+
+    // Deletes the images once received, so the benchmark does not fill the disk.
+    private static final class DiscardingSink implements StorageSink {
+
+        @Override
+        public boolean contains(String contentId) {
+            return false;
+        }
+
+        @Override
+        public File store(File image, String contentId, String payloadId, String mimeType, String sender) {
+            image.delete();
+            return null;
+        }
+    }
+
+    // Tells when the Server is ready to accept Clients.
+    private static final class Listener implements TransferListener {
+
+        final private CountDownLatch running;
+
+        Listener(CountDownLatch running) {
+            this.running = running;
+        }
+
+        @Override
+        public void onServerRunning() {
+            running.countDown();
+        }
+
+        @Override
+        public void onServerStopped(Exception error) {
+        }
+
+        @Override
+        public void onClientAccepted(long connectionId) {
+        }
+
+        @Override
+        public void onClientQueued(long connectionId) {
+        }
+
+        @Override
+        public void onClientRejected(long connectionId) {
+        }
+
+        @Override
+        public ImageProgress onImageStarted(long connectionId, FrameHeader header, File file, long start) {
+            return null;
+        }
+
+        @Override
+        public void onProgress(long connectionId, long received) {
+        }
+
+        @Override
+        public void onImageStored(long connectionId, String contentId, File file) {
+        }
+
+        @Override
+        public void onClientClosed(long connectionId, long received) {
+        }
+
+        @Override
+        public void onPayloadMeasured(long connectionId, String mode, TransferStats stats) {
+        }
+    }
+}
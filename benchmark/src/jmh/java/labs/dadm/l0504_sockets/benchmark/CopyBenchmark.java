@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import labs.dadm.l0504_sockets.protocol.FrameIO;
+
+// Copies an image between files the way the Client and the Server move it,
+// comparing the original loops over a byte[] with the channels now used by FrameIO
+// and with the zero-copy transfers of the raw images.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CopyBenchmark {
+
+    // Maximum number of bytes moved by each call to FileChannel.transferFrom(), as on the Server
+    private static final long TRANSFER_SIZE = 1024 * 1024;
+
+    // Size of the buffer the data goes through (the original loops used 1024 bytes)
+    @Param({"1024", "8192", "65536", "262144"})
+    public int bufferSize;
+
+    // Size of the image
+    @Param({"65536", "1048576", "16777216"})
+    public int fileSize;
+
+    File source;
+    File target;
+    RandomAccessFile input;
+    RandomAccessFile output;
+    ByteBuffer direct;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        source = Payloads.create(fileSize);
+        target = File.createTempFile("target", ".bin");
+        input = new RandomAccessFile(source, "r");
+        output = new RandomAccessFile(target, "rw");
+        direct = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        input.close();
+        output.close();
+        source.delete();
+        target.delete();
+    }
+
+    // Original loop of ClientThread.run() and ServerThread.receiveAndSaveImage().
+    @Benchmark
+    public long streamCopy() throws IOException {
+        final InputStream is = new FileInputStream(source);
+        final OutputStream os = new FileOutputStream(target);
+        final byte[] buffer = new byte[bufferSize];
+        long total = 0;
+        int count;
+        while ((count = is.read(buffer)) != -1) {
+            os.write(buffer, 0, count);
+            total += count;
+        }
+        os.flush();
+        os.close();
+        is.close();
+        return total;
+    }
+
+    // Receiving path of the Server: positional writes through a direct buffer, checking the CRC32.
+    @Benchmark
+    public long receivePayload() throws IOException {
+        final FileChannel channel = input.getChannel().position(0);
+        final CRC32 crc = new CRC32();
+        FrameIO.receivePayload(channel, output.getChannel(), 0, fileSize, crc, direct);
+        return crc.getValue();
+    }
+
+    // Sending path of the Client: the kernel copies the data (the buffer size does not apply).
+    @Benchmark
+    public long sendPayload() throws IOException {
+        FrameIO.sendPayload(input.getChannel(), 0, fileSize, output.getChannel().position(0));
+        return output.getChannel().position();
+    }
+
+    // Receiving path of the Server for raw images with zero copy, as ConnectionReceiver.transferImage():
+    // the kernel moves up to TRANSFER_SIZE bytes per call (the buffer size does not apply).
+    @Benchmark
+    public long transferFrom() throws IOException {
+        final FileChannel channel = input.getChannel().position(0);
+        long total = 0;
+        long count;
+        while ((count = output.getChannel().transferFrom(channel, total, TRANSFER_SIZE)) > 0) {
+            total += count;
+        }
+        return total;
+    }
+}
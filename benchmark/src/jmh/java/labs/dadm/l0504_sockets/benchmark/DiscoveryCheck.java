@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.benchmark;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import labs.dadm.l0504_sockets.discovery.Announcement;
+import labs.dadm.l0504_sockets.discovery.DiscoveryAdvertiser;
+import labs.dadm.l0504_sockets.discovery.DiscoveryBrowser;
+import labs.dadm.l0504_sockets.discovery.PeerTable;
+import labs.dadm.l0504_sockets.protocol.FrameHeader;
+import labs.dadm.l0504_sockets.transfer.TransferServer;
+
+// Checks the discovery of Servers end to end on the loopback interface:
+// two Servers announce themselves, a Client finds both, probes them and ranks them by round trip time,
+// and forgets each one once its announcement expires after it stops.
+// The far Server is reached through a relay that delays its datagrams, so the ranking is known in advance.
+// Run it with: ./gradlew :benchmark:discoveryCheck
+// It exits with an error as soon as a step does not go as expected.
+public final class DiscoveryCheck {
+
+    // Period of the announcements, which are valid for a few of them
+    private static final long PERIOD_MILLIS = 200;
+    // Delay added to the round trip to the far Server, half of it each way
+    private static final long FAR_DELAY_MILLIS = 20;
+    // Time given to each step before failing
+    private static final long TIMEOUT_MILLIS = 5000;
+    // Ports where the Servers would accept Clients, which identify them in the table
+    private static final int NEAR_PORT = 5001;
+    private static final int FAR_PORT = 5002;
+
+    private DiscoveryCheck() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        final InetAddress loopback = InetAddress.getLoopbackAddress();
+        final int announcementPort = findFreePort();
+        final int nearDiscoveryPort = findFreePort();
+        final int farDiscoveryPort = findFreePort();
+        final FrameHeader hello = TransferServer.createHello(0, 0);
+
+        final DiscoveryAdvertiser near = new DiscoveryAdvertiser(nearDiscoveryPort,
+                Announcement.announce(NEAR_PORT, hello, 0, "near"), PERIOD_MILLIS)
+                .addTarget(new InetSocketAddress(loopback, announcementPort));
+        final DiscoveryAdvertiser far = new DiscoveryAdvertiser(farDiscoveryPort,
+                Announcement.announce(FAR_PORT, hello, 0, "far"), PERIOD_MILLIS)
+                .addTarget(new InetSocketAddress(loopback, announcementPort));
+        final DelayRelay relay = new DelayRelay(new InetSocketAddress(loopback, farDiscoveryPort),
+                FAR_DELAY_MILLIS / 2);
+
+        final PeerTable peers = new PeerTable();
+        final CountDownLatch found = new CountDownLatch(2);
+        final DiscoveryBrowser browser =
+                new DiscoveryBrowser(announcementPort, peers, peer -> found.countDown());
+
+        new Thread(near).start();
+        new Thread(far).start();
+        new Thread(browser).start();
+        try {
+            // Announce: both Servers are found from their periodic announcements alone,
+            // which carry no round trip time
+            long start = System.nanoTime();
+            check(found.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS), "both Servers announced");
+            for (PeerTable.Peer peer : peers.getPeers()) {
+                check(peer.getAnnouncement().getTtl() == 3 * PERIOD_MILLIS, "announcement TTL of " + peer);
+            }
+            report("announce", start, peers);
+
+            // Probe: the answers echo the token of the probe, so both get their round trip time
+            start = System.nanoTime();
+            browser.probe(new InetSocketAddress(loopback, nearDiscoveryPort));
+            browser.probe(relay.getAddress());
+            check(waitFor(() -> {
+                final List<PeerTable.Peer> ranked = peers.getPeers();
+                return (ranked.size() == 2)
+                        && (ranked.get(0).getRttNanos() >= 0) && (ranked.get(1).getRttNanos() >= 0);
+            }), "both Servers answered their probes");
+            report("probe", start, peers);
+
+            // Rank: the near Server comes first, and the far one took at least the delay added
+            final List<PeerTable.Peer> ranked = peers.getPeers();
+            check(ranked.get(0).getAddress().getPort() == NEAR_PORT, "near Server ranked first");
+            check(ranked.get(1).getRttNanos() >= TimeUnit.MILLISECONDS.toNanos(FAR_DELAY_MILLIS),
+                    "far Server round trip includes the delay");
+            check(peers.getBest().getAddress().getPort() == NEAR_PORT, "near Server is the best");
+
+            // Expire: periodic announcements keep the round trip time measured before,
+            // and once the far Server stops, it is forgotten after its TTL
+            Thread.sleep(2 * PERIOD_MILLIS);
+            check(peers.getPeers().size() == 2, "both Servers still alive while announcing");
+            check(peers.getBest().getRttNanos() >= 0, "round trip time kept by periodic announcements");
+            start = System.nanoTime();
+            far.cancel();
+            relay.close();
+            check(waitFor(() -> !peers.contains(loopback.getHostAddress(), FAR_PORT)),
+                    "far Server expired");
+            check(peers.getPeers().size() == 1, "near Server still alive");
+            report("far expired", start, peers);
+
+            start = System.nanoTime();
+            near.cancel();
+            check(waitFor(() -> peers.getBest() == null), "near Server expired");
+            report("near expired", start, peers);
+            System.out.println("Discovery check passed");
+        } finally {
+            near.cancel();
+            far.cancel();
+            relay.close();
+            browser.cancel();
+        }
+    }
+
+    // Gets a UDP port not used right now.
+    private static int findFreePort() throws IOException {
+        final DatagramSocket socket = new DatagramSocket(0);
+        final int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+
+    private static void check(boolean condition, String step) {
+        if (!condition) {
+            throw new IllegalStateException("Failed: " + step);
+        }
+    }
+
+    // Waits until the condition holds, or the timeout elapses. Returns whether it holds.
+    private static boolean waitFor(Condition condition) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        while (!condition.holds()) {
+            if (System.nanoTime() - deadline > 0) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    // Prints how long the step took and the Servers known after it, the best one first.
+    private static void report(String step, long startNanos, PeerTable peers) {
+        final StringBuilder builder = new StringBuilder(String.format(Locale.US, "%-12s %7.1f ms:",
+                step, (System.nanoTime() - startNanos) / 1e6));
+        for (PeerTable.Peer peer : peers.getPeers()) {
+            builder.append(' ').append(peer.getAnnouncement().getName()).append(peer.getRttNanos() >= 0
+                    ? String.format(Locale.US, " (rtt %.2f ms)", peer.getRttNanos() / 1e6)
+                    : " (rtt unknown)");
+        }
+        System.out.println(builder);
+    }
+
+    private interface Condition {
+        boolean holds();
+    }
+
+    // Forwards the probes to a Server and its answers back to the Client,
+    // each after the given delay, as if the Server were further away.
+    private static final class DelayRelay implements Runnable {
+
+        final private InetSocketAddress server;
+        final private long delayMillis;
+        final private DatagramSocket socket;
+        final private ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        // Where the last probe came from, to send the answer back to
+        private volatile SocketAddress client;
+
+        DelayRelay(InetSocketAddress server, long delayMillis) throws IOException {
+            this.server = server;
+            this.delayMillis = delayMillis;
+            socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+            new Thread(this).start();
+        }
+
+        InetSocketAddress getAddress() {
+            return (InetSocketAddress) socket.getLocalSocketAddress();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final DatagramPacket packet = new DatagramPacket(new byte[Announcement.MAX_LENGTH],
+                            Announcement.MAX_LENGTH);
+                    socket.receive(packet);
+                    final SocketAddress target;
+                    if (packet.getSocketAddress().equals(server)) {
+                        target = client;
+                    } else {
+                        client = packet.getSocketAddress();
+                        target = server;
+                    }
+                    if (target != null) {
+                        timer.schedule(() -> send(packet, target), delayMillis, TimeUnit.MILLISECONDS);
+                    }
+                }
+            } catch (IOException e) {
+                // The relay is closed
+            }
+        }
+
+        private void send(DatagramPacket packet, SocketAddress target) {
+            try {
+                socket.send(new DatagramPacket(packet.getData(), packet.getLength(), target));
+            } catch (IOException e) {
+                // The relay is closed
+            }
+        }
+
+        void close() {
+            socket.close();
+            timer.shutdownNow();
+        }
+    }
+}
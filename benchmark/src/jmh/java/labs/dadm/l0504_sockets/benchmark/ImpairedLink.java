@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.benchmark;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import labs.dadm.l0504_sockets.protocol.FrameIO;
+
+// Proxy on the loopback interface that carries the connections to a Server over an emulated link,
+// with a given bandwidth shared by all of them, round trip time and fraction of packets lost.
+// Nothing about the throughput is assumed: each connection sends segments within a window
+// that grows with each acknowledgement and halves on each loss, as TCP Reno does, and a lost segment
+// is retransmitted a round trip later, holding back those behind it until it arrives.
+// The rate each connection gets, and what several connections add up to, comes out of that.
+// The acknowledgements of the Server come back after half a round trip, and are never lost.
+final class ImpairedLink implements Closeable {
+
+    // Maximum segment size of the link
+    private static final int MSS = 1460;
+    // Segments a connection can send before its first acknowledgement (RFC 6928)
+    private static final double INITIAL_WINDOW = 10;
+    // Smallest window after a loss, in segments
+    private static final double MIN_WINDOW = 2;
+    // Fixed seed, so every run loses about the same segments
+    private static final long SEED = 0x1055;
+
+    final private InetSocketAddress target;
+    final private long oneWayNanos;
+    final private double loss;
+    final private double nanosPerByte;
+    final private ServerSocketChannel server;
+    final private ExecutorService threads = Executors.newCachedThreadPool(runnable -> {
+        final Thread thread = new Thread(runnable, "impaired-link");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // What the link does next, in order of time
+    final private DelayQueue<Event> events = new DelayQueue<>();
+    // Keeps events due at the same time in the order they were scheduled
+    final private AtomicLong order = new AtomicLong();
+    final private Random random = new Random(SEED);
+    // Moment the link finishes sending the segments given so far, shared by all the connections
+    private long busyUntil;
+
+    ImpairedLink(InetSocketAddress target, long bytesPerSecond, int rttMillis, double loss)
+            throws IOException {
+        this.target = target;
+        this.oneWayNanos = TimeUnit.MILLISECONDS.toNanos(rttMillis) / 2;
+        this.loss = loss;
+        this.nanosPerByte = (double) TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        threads.execute(this::accept);
+        threads.execute(this::dispatch);
+    }
+
+    // Gets the address the Clients connect to instead of the Server.
+    InetSocketAddress getAddress() {
+        return (InetSocketAddress) server.socket().getLocalSocketAddress();
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        threads.shutdownNow();
+    }
+
+    // Connects each Client to the Server through the link until closed.
+    private void accept() {
+        try {
+            while (true) {
+                final SocketChannel client = server.accept();
+                final SocketChannel upstream = SocketChannel.open(target);
+                client.socket().setTcpNoDelay(true);
+                upstream.socket().setTcpNoDelay(true);
+                final Connection connection = new Connection(client, upstream);
+                threads.execute(connection::send);
+                threads.execute(connection::answer);
+            }
+        } catch (IOException e) {
+            // The benchmark is over
+        }
+    }
+
+    // Runs what the link does at the moment it is due.
+    private void dispatch() {
+        try {
+            while (true) {
+                events.take().action.run();
+            }
+        } catch (InterruptedException e) {
+            // The benchmark is over
+        }
+    }
+
+    private void schedule(long due, Runnable action) {
+        events.put(new Event(due, order.getAndIncrement(), action));
+    }
+
+    // Puts a segment on the link after those already given.
+    // Returns the moment it leaves the link.
+    private synchronized long transmit(int size) {
+        busyUntil = Math.max(busyUntil, System.nanoTime()) + (long) (size * nanosPerByte);
+        return busyUntil;
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    // A connection from a Client to the Server through the link.
+    private final class Connection {
+
+        final private SocketChannel client;
+        final private SocketChannel upstream;
+
+        // Congestion window and slow start threshold, in segments
+        private double window = INITIAL_WINDOW;
+        private double threshold = Double.MAX_VALUE;
+        // Segments sent but not acknowledged yet
+        private int inFlight;
+        // Sequence of the next segment to send, and of the first one sent after the last loss,
+        // so the window only halves once for all the losses within a round trip
+        private long nextSequence;
+        private long recovery;
+        // Whether the Client has finished sending
+        private boolean finished;
+
+        // Sequence of the next segment to deliver to the Server, and those arrived before it
+        private long expected;
+        final private TreeMap<Long, ByteBuffer> reordered = new TreeMap<>();
+
+        Connection(SocketChannel client, SocketChannel upstream) {
+            this.client = client;
+            this.upstream = upstream;
+        }
+
+        // Reads segments from the Client while the window allows, and puts them on the link.
+        // A full window stops reading, so the Client fills its socket buffer and waits, as it would
+        // on a real link.
+        void send() {
+            try {
+                while (true) {
+                    synchronized (this) {
+                        while (inFlight >= window) {
+                            wait();
+                        }
+                    }
+                    final ByteBuffer segment = ByteBuffer.allocate(MSS);
+                    if (client.read(segment) == -1) {
+                        break;
+                    }
+                    segment.flip();
+                    final long sequence;
+                    synchronized (this) {
+                        inFlight++;
+                        sequence = nextSequence++;
+                    }
+                    transmit(sequence, segment);
+                }
+                synchronized (this) {
+                    finished = true;
+                    shutdownIfDelivered();
+                }
+            } catch (IOException | InterruptedException e) {
+                closeQuietly(client);
+                closeQuietly(upstream);
+            }
+        }
+
+        // Sends a segment over the link. It arrives half a round trip after leaving the link,
+        // or its loss is noticed a round trip later and it is sent again.
+        private void transmit(long sequence, ByteBuffer segment) {
+            final long departure = ImpairedLink.this.transmit(segment.remaining());
+            if (random.nextDouble() >= loss) {
+                schedule(departure + oneWayNanos, () -> arrive(sequence, segment));
+            } else {
+                schedule(departure + 2 * oneWayNanos, () -> lose(sequence, segment));
+            }
+        }
+
+        private void lose(long sequence, ByteBuffer segment) {
+            synchronized (this) {
+                if (sequence >= recovery) {
+                    threshold = Math.max(window / 2, MIN_WINDOW);
+                    window = threshold;
+                    recovery = nextSequence;
+                }
+            }
+            transmit(sequence, segment);
+        }
+
+        // Delivers the segment to the Server in order, and acknowledges it to the Client side.
+        private void arrive(long sequence, ByteBuffer segment) {
+            synchronized (this) {
+                reordered.put(sequence, segment);
+                try {
+                    while (!reordered.isEmpty() && (reordered.firstKey() == expected)) {
+                        FrameIO.writeFully(upstream, reordered.remove(expected));
+                        expected++;
+                    }
+                    shutdownIfDelivered();
+                } catch (IOException e) {
+                    closeQuietly(client);
+                    closeQuietly(upstream);
+                }
+            }
+            schedule(System.nanoTime() + oneWayNanos, this::acknowledge);
+        }
+
+        // Opens the window on each acknowledgement: by a segment while slow starting,
+        // and by a segment per window afterwards.
+        private synchronized void acknowledge() {
+            inFlight--;
+            window += (window < threshold) ? 1 : 1 / window;
+            notifyAll();
+        }
+
+        // Tells the Server the Client has finished sending, once everything got delivered.
+        private void shutdownIfDelivered() throws IOException {
+            if (finished && (expected == nextSequence) && upstream.isOpen()) {
+                upstream.shutdownOutput();
+            }
+        }
+
+        // Brings the answers of the Server back to the Client half a round trip later.
+        void answer() {
+            try {
+                while (true) {
+                    final ByteBuffer answer = ByteBuffer.allocate(MSS);
+                    if (upstream.read(answer) == -1) {
+                        break;
+                    }
+                    answer.flip();
+                    schedule(System.nanoTime() + oneWayNanos, () -> {
+                        try {
+                            FrameIO.writeFully(client, answer);
+                        } catch (IOException e) {
+                            closeQuietly(upstream);
+                        }
+                    });
+                }
+            } catch (IOException e) {
+                // The connection is being closed
+            }
+            schedule(System.nanoTime() + oneWayNanos, () -> {
+                closeQuietly(client);
+                closeQuietly(upstream);
+            });
+        }
+    }
+
+    // Something the link does at a given moment.
+    private static final class Event implements Delayed {
+
+        final private long due;
+        final private long order;
+        final private Runnable action;
+
+        Event(long due, long order, Runnable action) {
+            this.due = due;
+            this.order = order;
+            this.action = action;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            final Event event = (Event) other;
+            if (due != event.due) {
+                return (due < event.due) ? -1 : 1;
+            }
+            return Long.compare(order, event.order);
+        }
+    }
+}
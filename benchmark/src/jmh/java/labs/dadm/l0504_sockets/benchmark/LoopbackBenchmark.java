@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import labs.dadm.l0504_sockets.protocol.FrameIO;
+import labs.dadm.l0504_sockets.utils.BufferPool;
+
+// Sends images from several Clients at once to a Server on the loopback interface,
+// each through a connection of its own, until the Server has saved them to a file.
+// Compares the original streams copied through byte[1024] with the channels used by FrameIO.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class LoopbackBenchmark {
+
+    // Size of the buffer used by the original loops
+    private static final int STREAM_BUFFER = 1024;
+
+    // How the Clients and the Server move the data: "stream" (original) or "channel" (FrameIO)
+    @Param({"stream", "channel"})
+    public String mode;
+
+    // Number of Clients sending an image at once
+    @Param({"1", "4"})
+    public int clients;
+
+    // Size of each image
+    @Param({"1048576", "16777216"})
+    public int fileSize;
+
+    File source;
+    ServerSocketChannel server;
+    ExecutorService serverThreads;
+    ExecutorService clientThreads;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        source = Payloads.create(fileSize);
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        serverThreads = Executors.newCachedThreadPool();
+        clientThreads = Executors.newFixedThreadPool(clients);
+        serverThreads.execute(this::accept);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        // Every image has been confirmed, so the threads have nothing left to do
+        server.close();
+        serverThreads.shutdown();
+        clientThreads.shutdown();
+        source.delete();
+    }
+
+    @Benchmark
+    public long send() throws InterruptedException, ExecutionException {
+        final List<Future<Long>> results = new ArrayList<>(clients);
+        for (int i = 0; i < clients; i++) {
+            results.add(clientThreads.submit(this::sendImage));
+        }
+        long total = 0;
+        for (Future<Long> result : results) {
+            total += result.get();
+        }
+        return total;
+    }
+
+    // Sends the image preceded by its length, and waits for the Server to confirm it was saved.
+    private long sendImage() throws IOException {
+        final SocketChannel channel = SocketChannel.open(server.socket().getLocalSocketAddress());
+        try {
+            final ByteBuffer length = ByteBuffer.allocate(8);
+            length.putLong(0, fileSize);
+            FrameIO.writeFully(channel, length);
+            if ("stream".equals(mode)) {
+                final OutputStream os = channel.socket().getOutputStream();
+                final InputStream is = new FileInputStream(source);
+                final byte[] buffer = new byte[STREAM_BUFFER];
+                int count;
+                while ((count = is.read(buffer)) != -1) {
+                    os.write(buffer, 0, count);
+                }
+                os.flush();
+                is.close();
+                return channel.socket().getInputStream().read();
+            } else {
+                final FileInputStream fis = new FileInputStream(source);
+                try {
+                    FrameIO.sendPayload(fis.getChannel(), 0, fileSize, channel);
+                } finally {
+                    fis.close();
+                }
+                final ByteBuffer ack = ByteBuffer.allocate(1);
+                FrameIO.readFully(channel, ack);
+                return ack.get(0);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    // Accepts the Clients until the benchmark ends, serving each one on a thread of its own.
+    private void accept() {
+        try {
+            while (true) {
+                final SocketChannel channel = server.accept();
+                serverThreads.execute(() -> receiveImage(channel));
+            }
+        } catch (IOException e) {
+            // The benchmark is over
+        }
+    }
+
+    // Saves the image into a temporary file and confirms it to the Client.
+    private void receiveImage(SocketChannel channel) {
+        File file = null;
+        try {
+            final ByteBuffer length = ByteBuffer.allocate(8);
+            FrameIO.readFully(channel, length);
+            final long size = length.getLong(0);
+            file = File.createTempFile("received", ".bin");
+            if ("stream".equals(mode)) {
+                final InputStream is = channel.socket().getInputStream();
+                final OutputStream fos = new FileOutputStream(file);
+                final byte[] buffer = new byte[STREAM_BUFFER];
+                long remaining = size;
+                int count;
+                while ((remaining > 0)
+                        && ((count = is.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1)) {
+                    fos.write(buffer, 0, count);
+                    remaining -= count;
+                }
+                fos.flush();
+                fos.close();
+                channel.socket().getOutputStream().write(1);
+            } else {
+                final RandomAccessFile output = new RandomAccessFile(file, "rw");
+                final ByteBuffer buffer = BufferPool.acquire();
+                try {
+                    output.setLength(size);
+                    FrameIO.receivePayload(channel, output.getChannel(), 0, size, new CRC32(), buffer);
+                } finally {
+                    BufferPool.release(buffer);
+                    output.close();
+                }
+                final ByteBuffer ack = ByteBuffer.allocate(1);
+                ack.put(0, (byte) 1);
+                FrameIO.writeFully(channel, ack);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (file != null) {
+                file.delete();
+            }
+        }
+    }
+}
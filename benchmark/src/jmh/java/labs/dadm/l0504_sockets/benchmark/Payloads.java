@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+// Creates the files sent by the benchmarks.
+final class Payloads {
+
+    // Fixed seed, so every run moves exactly the same bytes
+    private static final long SEED = 0x5EED;
+
+    private Payloads() {
+    }
+
+    // Creates a temporary file with the given number of pseudo-random bytes,
+    // which do not compress, like the content of JPEG images.
+    static File create(int size) throws IOException {
+        final File file = File.createTempFile("payload", ".bin");
+        file.deleteOnExit();
+        final Random random = new Random(SEED);
+        final byte[] block = new byte[64 * 1024];
+        final FileOutputStream fos = new FileOutputStream(file);
+        try {
+            int remaining = size;
+            while (remaining > 0) {
+                random.nextBytes(block);
+                final int count = Math.min(block.length, remaining);
+                fos.write(block, 0, count);
+                remaining -= count;
+            }
+        } finally {
+            fos.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,432 @@
+/*
+ * Copyright (c) 2016. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.cli;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import labs.dadm.l0504_sockets.discovery.Announcement;
+import labs.dadm.l0504_sockets.discovery.DiscoveryAdvertiser;
+import labs.dadm.l0504_sockets.discovery.DiscoveryBrowser;
+import labs.dadm.l0504_sockets.discovery.PeerTable;
+import labs.dadm.l0504_sockets.network.BandwidthScheduler;
+import labs.dadm.l0504_sockets.network.ConnectionPool;
+import labs.dadm.l0504_sockets.network.ImageStore;
+import labs.dadm.l0504_sockets.network.TransportTuner;
+import labs.dadm.l0504_sockets.protocol.ContentId;
+import labs.dadm.l0504_sockets.protocol.FrameHeader;
+import labs.dadm.l0504_sockets.transfer.OutgoingImage;
+import labs.dadm.l0504_sockets.transfer.RelayPlan;
+import labs.dadm.l0504_sockets.transfer.SourceProvider;
+import labs.dadm.l0504_sockets.transfer.TransferClient;
+import labs.dadm.l0504_sockets.transfer.TransferListener;
+import labs.dadm.l0504_sockets.transfer.TransferServer;
+import labs.dadm.l0504_sockets.utils.Metrics;
+import labs.dadm.l0504_sockets.utils.TransferStats;
+
+// Runs the transfer engine from the command line, with no device or emulator involved,
+// so the Server can be load tested with thousands of transfers per minute:
+//   transfer server [--port 9999] [--dir received] [--workers 4] [--queue 8] [--report 10]
+//                   [--announce-to 127.0.0.1] [--rate-cap 0] [--peer-rate-cap 0] [--fanout 2]
+//                   [--relay-allow host:port,host:port]
+//   transfer client [--host 127.0.0.1] [--port 9999] [--connections 4] [--transfers 1000]
+//                   [--batch 1] [--resumable] [--probe 127.0.0.1] [--rate-cap 0] [--peer-rate-cap 0]
+//                   [--priority interactive|bulk] [--relay host:port,host:port] image...
+// Servers announce themselves on the local network, so Clients with no --host connect to the best one
+// found (--announce-to and --probe reach a given host instead, such as the loopback address).
+// Rate caps are given in KB per second, for all the connections together and for those of each peer
+// (0 for no cap), and the connections take turns to move their payloads (see BandwidthScheduler).
+// Images sent with --relay are forwarded by the Server to the given ones, split into --fanout branches
+// by each Server along the way (see RelayPlan), as long as they are in its --relay-allow list.
+// Both print the metrics collected (see Metrics) as JSON.
+public class TransferCli {
+
+    // Same port used by the app
+    private static final int DEFAULT_PORT = 9999;
+    // Milliseconds between two announcements of the Server
+    private static final long ANNOUNCEMENT_PERIOD = 2000;
+    // Milliseconds a Client waits for the Servers to answer its probe
+    private static final long DISCOVERY_TIMEOUT = 3000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            usage();
+            return;
+        }
+        final Options options = new Options(args);
+        switch (args[0]) {
+            case "server":
+                runServer(options);
+                break;
+            case "client":
+                runClient(options);
+                break;
+            default:
+                usage();
+        }
+    }
+
+    private static void usage() {
+        System.err.println("usage: transfer server [--port 9999] [--dir received] [--workers 4]"
+                + " [--queue 8] [--report 10] [--announce-to host] [--rate-cap 0] [--peer-rate-cap 0]"
+                + " [--fanout 2] [--relay-allow host:port,...] [--stats]");
+        System.err.println("       transfer client [--host 127.0.0.1] [--port 9999] [--connections 4]"
+                + " [--transfers 1000] [--batch 1] [--resumable] [--probe host] [--rate-cap 0]"
+                + " [--peer-rate-cap 0] [--priority interactive|bulk] [--relay host:port,...] image...");
+    }
+
+    // Receives images into the given directory until the process is stopped,
+    // printing the metrics every few seconds.
+    private static void runServer(Options options) throws IOException {
+        final File directory = new File(options.get("--dir", "received"));
+        final int report = options.getInt("--report", 10);
+        final int port = options.getInt("--port", DEFAULT_PORT);
+        final FrameHeader hello = TransferServer.createHello(0, 0);
+        final TransferServer server = new TransferServer(port, directory,
+                new ImageStore(new File(directory, "images")), new ConsoleListener(options.has("--stats")))
+                .setWorkers(options.getInt("--workers", 4), options.getInt("--queue", 8))
+                .setHello(hello)
+                .setScheduler(createScheduler(options))
+                .setRelayFanout(options.getInt("--fanout", 2))
+                .setRelayPolicy(RelayPlan.allowList(RelayPlan.parse(options.get("--relay-allow", null))));
+
+        // Announce the Server, so Clients find it without knowing its address
+        final DiscoveryAdvertiser advertiser = new DiscoveryAdvertiser(
+                DiscoveryAdvertiser.DEFAULT_DISCOVERY_PORT,
+                Announcement.announce(port, hello, 0, "transfer"), ANNOUNCEMENT_PERIOD)
+                .addBroadcastTarget(DiscoveryAdvertiser.DEFAULT_ANNOUNCEMENT_PORT);
+        if (options.has("--announce-to")) {
+            advertiser.addTarget(new InetSocketAddress(
+                    options.get("--announce-to", null), DiscoveryAdvertiser.DEFAULT_ANNOUNCEMENT_PORT));
+        }
+        new Thread(advertiser).start();
+
+        final ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+        reporter.scheduleWithFixedDelay(
+                () -> System.out.println(Metrics.toJson()), report, report, TimeUnit.SECONDS);
+        // Stop the Server when the process is interrupted (e.g. Ctrl+C)
+        Runtime.getRuntime().addShutdownHook(new Thread(server::cancel));
+
+        server.run();
+        advertiser.cancel();
+        reporter.shutdownNow();
+        System.out.println(Metrics.toJson());
+    }
+
+    // Sends the given images as many times as requested through several connections at once,
+    // and prints how many transfers per minute were completed.
+    private static void runClient(Options options) throws Exception {
+        final List<File> files = new ArrayList<>();
+        for (String name : options.getArguments()) {
+            final File file = new File(name);
+            if (!file.isFile()) {
+                System.err.println("Not a file: " + name);
+                return;
+            }
+            files.add(file);
+        }
+        if (files.isEmpty()) {
+            usage();
+            return;
+        }
+
+        final InetSocketAddress address = options.has("--host")
+                ? new InetSocketAddress(options.get("--host", null), options.getInt("--port", DEFAULT_PORT))
+                : discover(options.get("--probe", null));
+        if (address == null) {
+            System.err.println("No Server found");
+            return;
+        }
+        final int connections = options.getInt("--connections", 4);
+        final int batch = options.getInt("--batch", 1);
+        final FileProvider provider = new FileProvider(options.has("--resumable"));
+        final ConnectionPool pool = new ConnectionPool(TimeUnit.SECONDS.toMillis(30), connections);
+        final ExecutorService ackReaders = Executors.newCachedThreadPool();
+        final ExecutorService senders = Executors.newFixedThreadPool(connections);
+        // Flows of both classes sharing the link are paced to its measured rate
+        final BandwidthScheduler scheduler = createScheduler(options).setLinkRates(pool.getTuner());
+        final byte priority = "bulk".equals(options.get("--priority", "interactive"))
+                ? FrameHeader.PRIORITY_BULK
+                : FrameHeader.PRIORITY_INTERACTIVE;
+        final List<InetSocketAddress> relay = RelayPlan.parse(options.get("--relay", null));
+
+        // Transfers still to be started, shared by all the connections
+        final AtomicInteger remaining = new AtomicInteger(options.getInt("--transfers", 1000));
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger completed = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            senders.execute(() -> {
+                final TransferClient client = new TransferClient(pool, ackReaders, provider)
+                        .setScheduler(scheduler, priority)
+                        .setRelay(relay);
+                while (remaining.getAndDecrement() > 0) {
+                    // Each transfer sends a batch of images back to back through a single connection
+                    final List<FileImage> images = new ArrayList<>(batch);
+                    for (int j = 0; j < batch; j++) {
+                        images.add(new FileImage(files.get(next.getAndIncrement() % files.size())));
+                    }
+                    final int before = client.getAcknowledged();
+                    try {
+                        client.send(address, images);
+                    } catch (Exception e) {
+                        Metrics.failure(e);
+                    }
+                    if (client.getAcknowledged() - before == batch) {
+                        completed.incrementAndGet();
+                    } else {
+                        failed.incrementAndGet();
+                    }
+                }
+            });
+        }
+        senders.shutdown();
+        senders.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        final long elapsed = System.nanoTime() - start;
+        ackReaders.shutdown();
+        pool.close();
+
+        System.out.println(Metrics.toJson());
+        // What was learnt about the link, which sized the buffers of the connections
+        final TransportTuner.LinkProfile link = pool.getTuner().getLinkProfile(address.getAddress());
+        if (link != null) {
+            System.out.printf("Link: round trip %.2f ms, %.1f MB/s, buffers of %d KB%n",
+                    link.getRtt() * 1e3, link.getThroughput() / 1e6,
+                    pool.getTuner().getBufferSize(address.getAddress()) / 1024);
+        }
+        System.out.printf("%d transfers completed, %d failed in %.1f s (%.0f transfers/min)%n",
+                completed.get(), failed.get(), elapsed / 1e9,
+                completed.get() * 60e9 / Math.max(elapsed, 1));
+    }
+
+    // Creates the scheduler sharing the link with the rate caps given in KB per second.
+    private static BandwidthScheduler createScheduler(Options options) {
+        return new BandwidthScheduler(options.getInt("--rate-cap", 0) * 1024L,
+                options.getInt("--peer-rate-cap", 0) * 1024L);
+    }
+
+    // Probes the local network (or the given host) for Servers and returns the address of the best one,
+    // or null if none answers in time.
+    private static InetSocketAddress discover(String host) throws Exception {
+        final PeerTable peers = new PeerTable();
+        final CountDownLatch found = new CountDownLatch(1);
+        final DiscoveryBrowser browser = new DiscoveryBrowser(
+                DiscoveryAdvertiser.DEFAULT_ANNOUNCEMENT_PORT, peers, peer -> found.countDown());
+        if (host != null) {
+            browser.addInitialProbe(new InetSocketAddress(host, DiscoveryAdvertiser.DEFAULT_DISCOVERY_PORT));
+        } else {
+            browser.addInitialBroadcastProbe(DiscoveryAdvertiser.DEFAULT_DISCOVERY_PORT);
+        }
+        final long start = System.nanoTime();
+        new Thread(browser).start();
+        found.await(DISCOVERY_TIMEOUT, TimeUnit.MILLISECONDS);
+        browser.cancel();
+
+        final PeerTable.Peer best = peers.getBest();
+        if (best != null) {
+            System.out.printf("Found %s (%s) in %.1f ms, round trip %.2f ms%n",
+                    best.getAddress(), best.getAnnouncement().getName(), (System.nanoTime() - start) / 1e6,
+                    best.getRttNanos() / 1e6);
+            return best.getAddress();
+        }
+        return null;
+    }
+
+    // Prints what happens on the Server that deserves attention,
+    // and the cost of receiving each payload if so required.
+    private static final class ConsoleListener implements TransferListener {
+
+        final private boolean stats;
+
+        ConsoleListener(boolean stats) {
+            this.stats = stats;
+            if (stats) {
+                TransferStats.setSampler(new JvmSampler());
+            }
+        }
+
+        @Override
+        public void onServerRunning() {
+            System.out.println("Server running");
+        }
+
+        @Override
+        public void onServerStopped(Exception error) {
+            if (error != null) {
+                error.printStackTrace();
+            }
+            System.out.println("Server stopped");
+        }
+
+        @Override
+        public void onClientAccepted(long connectionId) {
+        }
+
+        @Override
+        public void onClientQueued(long connectionId) {
+        }
+
+        @Override
+        public void onClientRejected(long connectionId) {
+            System.err.println("Client #" + connectionId + " rejected: all workers busy");
+        }
+
+        @Override
+        public ImageProgress onImageStarted(long connectionId, FrameHeader header, File file, long start) {
+            return null;
+        }
+
+        @Override
+        public void onProgress(long connectionId, long received) {
+        }
+
+        @Override
+        public void onImageStored(long connectionId, String contentId, File file) {
+        }
+
+        @Override
+        public void onClientClosed(long connectionId, long received) {
+        }
+
+        @Override
+        public void onPayloadMeasured(long connectionId, String mode, TransferStats stats) {
+            if (this.stats) {
+                System.out.println("Client #" + connectionId + " " + mode + ": " + stats);
+            }
+        }
+    }
+
+    // Reads the CPU time and garbage collections measured by TransferStats from the management beans.
+    private static final class JvmSampler implements TransferStats.Sampler {
+
+        @Override
+        public long getThreadCpuTimeNanos() {
+            final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : 0;
+        }
+
+        @Override
+        public long getGcCount() {
+            long count = 0;
+            for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+                count += Math.max(collector.getCollectionCount(), 0);
+            }
+            return count;
+        }
+    }
+
+    // Image read from a file on disk.
+    private static final class FileImage extends OutgoingImage {
+
+        final File file;
+
+        FileImage(File file) {
+            super(file.getName(), guessMimeType(file.getName()));
+            this.file = file;
+        }
+    }
+
+    // Opens the images read from files on disk.
+    private static final class FileProvider implements SourceProvider {
+
+        // Whether the images are identified by their content, so their transfer can be resumed
+        // and the Server skips those already stored
+        final private boolean resumable;
+
+        FileProvider(boolean resumable) {
+            this.resumable = resumable;
+        }
+
+        @Override
+        public Source open(OutgoingImage image) throws IOException {
+            return new Source(new FileInputStream(((FileImage) image).file).getChannel());
+        }
+
+        @Override
+        public String getContentId(OutgoingImage image) throws IOException {
+            if (!resumable) {
+                return null;
+            }
+            final FileInputStream fis = new FileInputStream(((FileImage) image).file);
+            try {
+                return ContentId.of(fis.getChannel());
+            } finally {
+                // Close the input channel
+                fis.close();
+            }
+        }
+    }
+
+    // Guesses the type of an image from the extension of its name.
+    private static String guessMimeType(String name) {
+        final String lower = name.toLowerCase();
+        if (lower.endsWith(".jpg") || lower.endsWith(".jpeg")) {
+            return "image/jpeg";
+        } else if (lower.endsWith(".png")) {
+            return "image/png";
+        } else if (lower.endsWith(".webp")) {
+            return "image/webp";
+        } else if (lower.endsWith(".gif")) {
+            return "image/gif";
+        }
+        return "application/octet-stream";
+    }
+
+    // Options given as "--name value" or "--flag", followed by any number of arguments.
+    private static final class Options {
+
+        final private List<String> names = new ArrayList<>();
+        final private List<String> values = new ArrayList<>();
+        final private List<String> arguments = new ArrayList<>();
+
+        Options(String[] args) {
+            // The first argument is the command
+            for (int i = 1; i < args.length; i++) {
+                // Flags take no value
+                if (args[i].equals("--resumable") || args[i].equals("--stats")) {
+                    names.add(args[i]);
+                    values.add("true");
+                } else if (args[i].startsWith("--") && (i + 1 < args.length)) {
+                    names.add(args[i]);
+                    values.add(args[++i]);
+                } else {
+                    arguments.add(args[i]);
+                }
+            }
+        }
+
+        boolean has(String name) {
+            return names.contains(name);
+        }
+
+        String get(String name, String defaultValue) {
+            final int index = names.indexOf(name);
+            return (index >= 0) ? values.get(index) : defaultValue;
+        }
+
+        int getInt(String name, int defaultValue) {
+            return Integer.parseInt(get(name, String.valueOf(defaultValue)));
+        }
+
+        List<String> getArguments() {
+            return arguments;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.discovery;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import labs.dadm.l0504_sockets.protocol.FrameHeader;
+
+// Datagram exchanged to discover the Servers on the local network:
+// - Clients broadcast a PROBE, so Servers answer right away instead of on their next announcement
+// - Servers broadcast an ANNOUNCE periodically, and send one to any Client probing them
+// Each datagram is encoded as:
+//   magic (4 bytes), version (1 byte), type (1 byte), TCP port (2 bytes),
+//   accepted encodings (1 byte), preview quality (1 byte), preview maximum dimension (4 bytes),
+//   milliseconds the announcement is valid (4 bytes), token (8 bytes),
+//   length of the name (2 bytes) and name (UTF-8)
+// The token of a probe is echoed by the answers, so Clients can measure the round trip time.
+public class Announcement {
+
+    // Identifies the datagrams of the discovery ("DDIS")
+    public static final int MAGIC = 0x44444953;
+    // Version of the discovery protocol
+    public static final byte VERSION = 1;
+
+    // Types of datagram
+    public static final byte TYPE_PROBE = 1;
+    public static final byte TYPE_ANNOUNCE = 2;
+
+    // Maximum length of a datagram, which fits in a single Ethernet frame
+    public static final int MAX_LENGTH = 512;
+    // Length of the fixed part of the datagram
+    private static final int FIXED_LENGTH = 28;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final byte type;
+    // Port where the Server accepts Clients
+    private int port;
+    // Format in which the Server wants the images (see FrameHeader.TYPE_HELLO)
+    private byte encodings;
+    private byte quality;
+    private int maxDimension;
+    // Milliseconds the Server can be considered alive after this announcement
+    private int ttl;
+    // Echoed from the probe being answered, if any
+    private long token;
+    // Name of the Server shown to the user
+    private String name = "";
+
+    public Announcement(byte type) {
+        this.type = type;
+    }
+
+    // Creates an announcement of a Server accepting Clients on the given port,
+    // which wants the images as stated by its answer to the Clients asking for their format.
+    public static Announcement announce(int port, FrameHeader hello, int ttl, String name) {
+        return new Announcement(TYPE_ANNOUNCE)
+                .setPort(port)
+                .setEncodings(hello.getEncodings())
+                .setQuality(hello.getQuality())
+                .setMaxDimension(hello.getMaxDimension())
+                .setTtl(ttl)
+                .setName(name);
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public Announcement setPort(int port) {
+        this.port = port;
+        return this;
+    }
+
+    public byte getEncodings() {
+        return encodings;
+    }
+
+    public Announcement setEncodings(byte encodings) {
+        this.encodings = encodings;
+        return this;
+    }
+
+    public byte getQuality() {
+        return quality;
+    }
+
+    public Announcement setQuality(byte quality) {
+        this.quality = quality;
+        return this;
+    }
+
+    public int getMaxDimension() {
+        return maxDimension;
+    }
+
+    public Announcement setMaxDimension(int maxDimension) {
+        this.maxDimension = maxDimension;
+        return this;
+    }
+
+    public int getTtl() {
+        return ttl;
+    }
+
+    public Announcement setTtl(int ttl) {
+        this.ttl = ttl;
+        return this;
+    }
+
+    public long getToken() {
+        return token;
+    }
+
+    public Announcement setToken(long token) {
+        this.token = token;
+        return this;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Announcement setName(String name) {
+        this.name = (name != null) ? name : "";
+        return this;
+    }
+
+    // Encodes the datagram into a buffer ready to be sent.
+    public ByteBuffer encode() throws ProtocolException {
+        final byte[] bytes = name.getBytes(UTF_8);
+        if (FIXED_LENGTH + bytes.length > MAX_LENGTH) {
+            throw new ProtocolException("Name too long");
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(FIXED_LENGTH + bytes.length);
+        buffer.putInt(MAGIC)
+                .put(VERSION)
+                .put(type)
+                .putShort((short) port)
+                .put(encodings)
+                .put(quality)
+                .putInt(maxDimension)
+                .putInt(ttl)
+                .putLong(token)
+                .putShort((short) bytes.length)
+                .put(bytes);
+        buffer.flip();
+        return buffer;
+    }
+
+    // Decodes a datagram received, which may come from anyone on the network.
+    public static Announcement decode(ByteBuffer buffer) throws ProtocolException {
+        if ((buffer.remaining() < FIXED_LENGTH) || (buffer.getInt() != MAGIC)) {
+            throw new ProtocolException("Not a discovery datagram");
+        }
+        if (buffer.get() != VERSION) {
+            throw new ProtocolException("Unsupported discovery version");
+        }
+        final Announcement announcement = new Announcement(buffer.get())
+                .setPort(buffer.getShort() & 0xFFFF)
+                .setEncodings(buffer.get())
+                .setQuality(buffer.get())
+                .setMaxDimension(buffer.getInt())
+                .setTtl(buffer.getInt())
+                .setToken(buffer.getLong());
+        final int length = buffer.getShort() & 0xFFFF;
+        if (buffer.remaining() < length) {
+            throw new ProtocolException("Truncated name");
+        }
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return announcement.setName(new String(bytes, UTF_8));
+    }
+}
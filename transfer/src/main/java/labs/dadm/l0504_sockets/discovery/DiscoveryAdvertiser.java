@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.discovery;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Announces a Server on the local network over UDP, so Clients find it without typing its address.
+// Announcements are broadcast periodically, and sent straight away to any Client probing the network,
+// so a new Client can connect as soon as it starts.
+// Each announcement is valid for a few periods, so a Server that stops is forgotten soon after.
+public class DiscoveryAdvertiser implements Runnable {
+
+    // Port where the Servers listen to the probes of the Clients
+    public static final int DEFAULT_DISCOVERY_PORT = 9998;
+    // Port where the Clients listen to the announcements of the Servers
+    public static final int DEFAULT_ANNOUNCEMENT_PORT = 9997;
+    // Number of periods an announcement is valid, so a lost datagram does not forget the Server
+    private static final int TTL_PERIODS = 3;
+
+    private final int discoveryPort;
+    private final Announcement announcement;
+    private final long period;
+    // Addresses the announcements are periodically sent to
+    private final List<InetSocketAddress> targets = new ArrayList<>();
+
+    private DatagramSocket socket;
+    private volatile boolean cancelled;
+
+    // Announces a Server every given number of milliseconds, listening to probes on the given port.
+    // The announcement states the port where the Server accepts Clients and its capabilities.
+    public DiscoveryAdvertiser(int discoveryPort, Announcement announcement, long period) {
+        this.discoveryPort = discoveryPort;
+        this.announcement = announcement.setTtl((int) (period * TTL_PERIODS));
+        this.period = period;
+    }
+
+    // Sends the announcements to the given address, such as the broadcast address of the network
+    // or the loopback address to test on a single host.
+    public DiscoveryAdvertiser addTarget(InetSocketAddress target) {
+        targets.add(target);
+        return this;
+    }
+
+    // Sends the announcements to the broadcast address of the local network.
+    public DiscoveryAdvertiser addBroadcastTarget(int announcementPort) {
+        try {
+            return addTarget(new InetSocketAddress(
+                    InetAddress.getByName("255.255.255.255"), announcementPort));
+        } catch (IOException e) {
+            // Literal addresses are never resolved
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Stops announcing the Server.
+    public void cancel() {
+        cancelled = true;
+        if (socket != null) {
+            socket.close();
+        }
+    }
+
+    // Announces the Server on the calling thread until cancelled.
+    @Override
+    public void run() {
+        try {
+            socket = createSocket(discoveryPort);
+            if (cancelled) {
+                socket.close();
+                return;
+            }
+            final byte[] data = new byte[Announcement.MAX_LENGTH];
+            final DatagramPacket packet = new DatagramPacket(data, data.length);
+            long next = System.nanoTime();
+            while (!cancelled) {
+                final long wait = TimeUnit.NANOSECONDS.toMillis(next - System.nanoTime());
+                if (wait <= 0) {
+                    for (InetSocketAddress target : targets) {
+                        send(announcement.setToken(0), target);
+                    }
+                    next = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(period);
+                    continue;
+                }
+                // Wait for probes until the next announcement is due
+                socket.setSoTimeout((int) wait);
+                try {
+                    packet.setLength(data.length);
+                    socket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                answerProbe(packet);
+            }
+        } catch (SocketException e) {
+            // If cancelled then this error is due to the socket being closed
+            if (!cancelled) {
+                e.printStackTrace();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (socket != null) {
+                socket.close();
+            }
+        }
+    }
+
+    // Answers a probe straight to the Client, echoing its token.
+    private void answerProbe(DatagramPacket packet) {
+        try {
+            final Announcement probe = Announcement.decode(
+                    ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength()));
+            if (probe.getType() == Announcement.TYPE_PROBE) {
+                send(announcement.setToken(probe.getToken()), packet.getSocketAddress());
+            }
+        } catch (ProtocolException e) {
+            // Other apps may be using the same port
+        }
+    }
+
+    // Sends the announcement, ignoring networks that cannot be reached right now.
+    private void send(Announcement datagram, SocketAddress target) {
+        try {
+            final ByteBuffer buffer = datagram.encode();
+            socket.send(new DatagramPacket(buffer.array(), buffer.remaining(), target));
+        } catch (IOException e) {
+            if (!cancelled) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Creates a socket able to broadcast, bound to the given port (0 for any),
+    // which other apps on the same device can also bind to.
+    static DatagramSocket createSocket(int port) throws SocketException {
+        final DatagramSocket socket = new DatagramSocket(null);
+        socket.setReuseAddress(true);
+        socket.setBroadcast(true);
+        socket.bind(new InetSocketAddress(port));
+        return socket;
+    }
+}
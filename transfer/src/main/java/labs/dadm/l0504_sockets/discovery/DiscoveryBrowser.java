@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.discovery;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// Listens to the announcements of the Servers on the local network and keeps them in a PeerTable.
+// Probing the network makes every Server answer right away, measuring the round trip time to each one,
+// so Clients need not wait for the next periodic announcement to find the best Server.
+public class DiscoveryBrowser implements Runnable {
+
+    // Gets notified of the Servers found.
+    public interface Listener {
+
+        // A Server not known yet, or already forgotten, has been found.
+        // It is called from the thread listening to the announcements.
+        void onPeerFound(PeerTable.Peer peer);
+    }
+
+    private final int announcementPort;
+    private final PeerTable peers;
+    private final Listener listener;
+    // Addresses probed as soon as the browser is ready
+    private final List<InetSocketAddress> initialProbes = new ArrayList<>();
+
+    private volatile DatagramSocket socket;
+    private volatile boolean cancelled;
+
+    // Listens to the announcements on the given port, adding the Servers found to the given table.
+    public DiscoveryBrowser(int announcementPort, PeerTable peers, Listener listener) {
+        this.announcementPort = announcementPort;
+        this.peers = peers;
+        this.listener = listener;
+    }
+
+    // Probes the given address as soon as the browser is ready to receive the answers.
+    public DiscoveryBrowser addInitialProbe(InetSocketAddress target) {
+        initialProbes.add(target);
+        return this;
+    }
+
+    // Probes every Server on the local network listening on the given port
+    // as soon as the browser is ready to receive the answers.
+    public DiscoveryBrowser addInitialBroadcastProbe(int discoveryPort) {
+        try {
+            return addInitialProbe(new InetSocketAddress(
+                    InetAddress.getByName("255.255.255.255"), discoveryPort));
+        } catch (IOException e) {
+            // Literal addresses are never resolved
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Stops listening to the announcements.
+    public void cancel() {
+        cancelled = true;
+        if (socket != null) {
+            socket.close();
+        }
+    }
+
+    // Asks the Servers listening on the given address to announce themselves right away.
+    // The broadcast address reaches every Server on the local network, and the loopback address
+    // those on the same host. Probes sent before the browser runs are lost (see addInitialProbe).
+    public void probe(InetSocketAddress target) {
+        final DatagramSocket current = socket;
+        if (current == null) {
+            return;
+        }
+        try {
+            // The token is echoed by the answers, so the round trip time can be measured
+            final ByteBuffer buffer = new Announcement(Announcement.TYPE_PROBE)
+                    .setToken(System.nanoTime())
+                    .encode();
+            current.send(new DatagramPacket(buffer.array(), buffer.remaining(), target));
+        } catch (IOException e) {
+            if (!cancelled) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Listens to the announcements on the calling thread until cancelled.
+    @Override
+    public void run() {
+        try {
+            socket = DiscoveryAdvertiser.createSocket(announcementPort);
+            if (cancelled) {
+                socket.close();
+                return;
+            }
+            for (InetSocketAddress target : initialProbes) {
+                probe(target);
+            }
+            final byte[] data = new byte[Announcement.MAX_LENGTH];
+            final DatagramPacket packet = new DatagramPacket(data, data.length);
+            while (!cancelled) {
+                packet.setLength(data.length);
+                socket.receive(packet);
+                final long received = System.nanoTime();
+                final Announcement announcement;
+                try {
+                    announcement = Announcement.decode(ByteBuffer.wrap(data, 0, packet.getLength()));
+                } catch (ProtocolException e) {
+                    // Other apps may be using the same port
+                    continue;
+                }
+                if (announcement.getType() != Announcement.TYPE_ANNOUNCE) {
+                    continue;
+                }
+                // Answers to probes echo the moment the probe was sent
+                final long rtt = (announcement.getToken() != 0) ? received - announcement.getToken() : -1;
+                final PeerTable.Peer found = peers.update(packet.getAddress(), announcement, rtt);
+                if ((found != null) && (listener != null)) {
+                    listener.onPeerFound(found);
+                }
+            }
+        } catch (SocketException e) {
+            // If cancelled then this error is due to the socket being closed
+            if (!cancelled) {
+                e.printStackTrace();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (socket != null) {
+                socket.close();
+            }
+        }
+    }
+}
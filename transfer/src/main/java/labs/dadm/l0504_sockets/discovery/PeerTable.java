@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.discovery;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Servers discovered on the local network, each one forgotten once its announcement expires.
+// Peers are ranked so Clients can connect to the best one straight away:
+// those with the shortest round trip time first, and then those most recently heard of.
+public class PeerTable {
+
+    // Peers by address, as a Server may announce itself several times
+    private final ConcurrentHashMap<InetSocketAddress, Peer> peers = new ConcurrentHashMap<>();
+
+    // Adds or refreshes the Server sending the given announcement from the given host.
+    // The round trip time is only known if the announcement answers a probe (-1 otherwise).
+    // Returns the Server if it was not known yet (or already forgotten), or null otherwise.
+    public Peer update(InetAddress host, Announcement announcement, long rttNanos) {
+        final InetSocketAddress address = new InetSocketAddress(host, announcement.getPort());
+        final Peer previous = peers.get(address);
+        // Keep the round trip time measured before, as periodic announcements do not include it
+        if ((rttNanos < 0) && (previous != null)) {
+            rttNanos = previous.rttNanos;
+        }
+        final Peer peer = new Peer(address, announcement, rttNanos);
+        peers.put(address, peer);
+        return ((previous == null) || previous.isExpired(System.nanoTime())) ? peer : null;
+    }
+
+    // Forgets the Servers whose announcement has expired.
+    public void evictExpired() {
+        final long now = System.nanoTime();
+        final Iterator<Peer> iterator = peers.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isExpired(now)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    // Gets the Servers still alive, the best one first.
+    public List<Peer> getPeers() {
+        evictExpired();
+        final List<Peer> ranked = new ArrayList<>(peers.values());
+        Collections.sort(ranked);
+        return ranked;
+    }
+
+    // Gets the best Server still alive, or null if none.
+    public Peer getBest() {
+        final List<Peer> ranked = getPeers();
+        return ranked.isEmpty() ? null : ranked.get(0);
+    }
+
+    // Finds a Server still alive by its IP address, as typed by the user, or returns null.
+    public Peer find(String hostAddress) {
+        for (Peer peer : getPeers()) {
+            if (peer.getAddress().getAddress().getHostAddress().equals(hostAddress)) {
+                return peer;
+            }
+        }
+        return null;
+    }
+
+    // Determines whether a Server still alive listens on the given IP address and port.
+    public boolean contains(String hostAddress, int port) {
+        for (Peer peer : getPeers()) {
+            if ((peer.getAddress().getPort() == port)
+                    && peer.getAddress().getAddress().getHostAddress().equals(hostAddress)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Server discovered on the local network.
+    public static final class Peer implements Comparable<Peer> {
+
+        private final InetSocketAddress address;
+        private final Announcement announcement;
+        private final long seen = System.nanoTime();
+        private final long expiration;
+        private final long rttNanos;
+
+        Peer(InetSocketAddress address, Announcement announcement, long rttNanos) {
+            this.address = address;
+            this.announcement = announcement;
+            this.rttNanos = rttNanos;
+            expiration = seen + TimeUnit.MILLISECONDS.toNanos(announcement.getTtl());
+        }
+
+        // Address where the Server accepts Clients.
+        public InetSocketAddress getAddress() {
+            return address;
+        }
+
+        // Last announcement received, with the capabilities of the Server.
+        public Announcement getAnnouncement() {
+            return announcement;
+        }
+
+        // Round trip time of the last probe answered, or -1 if unknown.
+        public long getRttNanos() {
+            return rttNanos;
+        }
+
+        boolean isExpired(long now) {
+            return now - expiration > 0;
+        }
+
+        // Known round trip times first, shortest first, and then the most recently heard of.
+        @Override
+        public int compareTo(Peer other) {
+            if ((rttNanos >= 0) != (other.rttNanos >= 0)) {
+                return (rttNanos >= 0) ? -1 : 1;
+            }
+            if (rttNanos != other.rttNanos) {
+                return (rttNanos < other.rttNanos) ? -1 : 1;
+            }
+            return (seen > other.seen) ? -1 : ((seen == other.seen) ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,427 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.network;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import labs.dadm.l0504_sockets.protocol.FrameHeader;
+
+// Shares the link among the transfers in progress, so a large one cannot starve the others.
+// Each transfer is a flow that asks for permission before moving each quantum of its payload.
+// Token buckets optionally cap the rate of all the flows and of the flows of each peer, and the
+// flows waiting for tokens take them in turns: round robin within their priority class (deficit
+// round robin where every flow is granted up to a whole quantum per turn), with interactive flows
+// getting several turns for each turn of a bulk flow, so a single image goes through quickly while
+// a batch keeps the link busy.
+// Flows never hold the link while moving their quantum, so a stalled peer or a full send buffer
+// only delays its own flow, and the flows of a chunked upload still move in parallel.
+// A flow whose peer has run out of tokens lets the next one go, rather than blocking the others.
+// Without caps, flows would go straight through and fill the send buffers of their connections,
+// where the kernel shares the link evenly no matter their class. And the turns only decide among
+// the flows waiting for them, not those blocked writing. So while interactive flows share the link
+// to a peer, its bulk flows are held to their weighted share of its rate as measured by TransportTuner,
+// which drains their send buffers and leaves the rest of the link to the interactive flows.
+public class BandwidthScheduler {
+
+    // Gets the rate of the link to each peer.
+    public interface LinkRates {
+
+        // Bytes per second, or 0 if not measured yet.
+        long getRate(InetAddress peer);
+    }
+
+    // Maximum number of bytes moved by a flow on each turn
+    public static final int QUANTUM = 64 * 1024;
+    // Turns given to interactive flows for each turn given to bulk flows
+    private static final int INTERACTIVE_WEIGHT = 8;
+    // Traffic a token bucket can save up to be spent at once
+    private static final long BURST_MILLIS = 100;
+
+    // Bytes per second of the flows of each peer (0 for no cap)
+    private final long peerRate;
+    // Measured rate of the link to each peer, if known
+    private LinkRates linkRates;
+
+    private final TokenBucket global;
+    // Cap and open flows of each peer, forgotten once its last flow is closed
+    private final Map<InetAddress, PeerState> peers = new HashMap<>();
+    // Flows waiting for their turn, by priority class
+    private final ArrayDeque<Flow> interactive = new ArrayDeque<>();
+    private final ArrayDeque<Flow> bulk = new ArrayDeque<>();
+    // Turns given to interactive flows in a row while bulk flows were waiting
+    private int interactiveTurns;
+
+    // Creates a scheduler capping the rate of all the flows and of the flows of each peer
+    // (0 for no cap).
+    public BandwidthScheduler(long globalRate, long peerRate) {
+        this.peerRate = peerRate;
+        global = (globalRate > 0) ? new TokenBucket(globalRate) : null;
+    }
+
+    // Paces the bulk flows sharing the link to a peer with interactive flows to the given rates.
+    public synchronized BandwidthScheduler setLinkRates(LinkRates linkRates) {
+        this.linkRates = linkRates;
+        return this;
+    }
+
+    // Opens a flow of the given priority class (see FrameHeader.PRIORITY_INTERACTIVE) to or from a peer.
+    // It must be closed once done, so the state kept for its peer can be released.
+    public synchronized Flow open(InetAddress peer, byte priority) {
+        if (peer != null) {
+            PeerState state = peers.get(peer);
+            if (state == null) {
+                state = new PeerState((peerRate > 0) ? new TokenBucket(peerRate) : null);
+                peers.put(peer, state);
+            }
+            state.flows++;
+            state.count(priority, 1);
+        }
+        return new Flow(peer, priority);
+    }
+
+    // Waits for the turn of the flow and for enough tokens, and returns how many bytes it can move.
+    private synchronized long acquire(Flow flow, long wanted) throws InterruptedIOException {
+        flow.wanted = Math.min(wanted, maxGrant(flow));
+        if (!flow.queued) {
+            queueOf(flow).addLast(flow);
+            flow.queued = true;
+            notifyAll();
+        }
+        try {
+            while (true) {
+                if (flow.closed) {
+                    throw new InterruptedIOException("Flow closed");
+                }
+                final long peerDelay = peerDelay(flow);
+                if (peerDelay > 0) {
+                    // Let the other flows go until the peer gets enough tokens again
+                    wait(toMillis(peerDelay));
+                } else if (next() == flow) {
+                    final long globalDelay = (global != null) ? global.delay(flow.wanted) : 0;
+                    if (globalDelay == 0) {
+                        take(flow, flow.wanted);
+                        dequeue(flow);
+                        // Let the next flow go
+                        notifyAll();
+                        return flow.wanted;
+                    }
+                    wait(toMillis(globalDelay));
+                } else {
+                    wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            dequeue(flow);
+            notifyAll();
+            throw new InterruptedIOException();
+        }
+    }
+
+    // The flow has moved the given bytes out of those granted. Tokens not spent are given back.
+    private synchronized void complete(Flow flow, long granted, long moved) {
+        if (moved < granted) {
+            take(flow, moved - granted);
+            notifyAll();
+        }
+    }
+
+    // Removes a flow that stops waiting for its turn, and forgets its peer if it was its last flow.
+    private synchronized void close(Flow flow) {
+        if (flow.closed) {
+            return;
+        }
+        flow.closed = true;
+        dequeue(flow);
+        if (flow.peer != null) {
+            final PeerState state = peers.get(flow.peer);
+            if (state != null) {
+                state.count(flow.priority, -1);
+                if (--state.flows == 0) {
+                    peers.remove(flow.peer);
+                }
+            }
+        }
+        notifyAll();
+    }
+
+    // Moves a flow to another priority class from its next turn on.
+    private synchronized void setPriority(Flow flow, byte priority) {
+        if (!flow.closed && (flow.peer != null)) {
+            final PeerState state = peers.get(flow.peer);
+            if (state != null) {
+                state.count(flow.priority, -1);
+                state.count(priority, 1);
+            }
+        }
+        flow.priority = priority;
+    }
+
+    // Gets the flow whose turn it is among those whose peer has got enough tokens,
+    // or null if none of them is waiting.
+    private Flow next() {
+        final boolean interactiveFirst = (interactiveTurns < INTERACTIVE_WEIGHT);
+        final Flow first = firstReady(interactiveFirst ? interactive : bulk);
+        if (first != null) {
+            return first;
+        }
+        return firstReady(interactiveFirst ? bulk : interactive);
+    }
+
+    private Flow firstReady(ArrayDeque<Flow> queue) {
+        for (Flow flow : queue) {
+            if (peerDelay(flow) == 0) {
+                return flow;
+            }
+        }
+        return null;
+    }
+
+    // Takes a flow out of the turns, counting the turns given to each class.
+    private void dequeue(Flow flow) {
+        if (!flow.queued) {
+            return;
+        }
+        flow.queued = false;
+        if (interactive.remove(flow)) {
+            interactiveTurns = bulk.isEmpty() ? 0 : interactiveTurns + 1;
+        } else if (bulk.remove(flow)) {
+            interactiveTurns = 0;
+        }
+    }
+
+    private ArrayDeque<Flow> queueOf(Flow flow) {
+        return (flow.priority == FrameHeader.PRIORITY_BULK) ? bulk : interactive;
+    }
+
+    // Gets the largest quantum that fits in the token buckets of the flow.
+    private long maxGrant(Flow flow) {
+        long max = QUANTUM;
+        if (global != null) {
+            max = Math.min(max, global.capacity);
+        }
+        if (peerRate > 0) {
+            max = Math.min(max, TokenBucket.capacityOf(peerRate));
+        }
+        final TokenBucket link = getLinkBucket(flow);
+        if (link != null) {
+            max = Math.min(max, link.capacity);
+        }
+        return max;
+    }
+
+    // Gets the nanoseconds until the peer of the flow has got the tokens it wants, or 0 if it has.
+    private long peerDelay(Flow flow) {
+        final TokenBucket bucket = getPeerBucket(flow.peer);
+        final TokenBucket link = getLinkBucket(flow);
+        return Math.max((bucket != null) ? bucket.delay(flow.wanted) : 0,
+                (link != null) ? link.delay(flow.wanted) : 0);
+    }
+
+    // Takes the tokens to move the given bytes (or gives them back if negative)
+    // from the caps of all the flows and of the peer of the flow, and from the link to the peer.
+    private void take(Flow flow, long bytes) {
+        if (global != null) {
+            global.take(bytes);
+        }
+        final TokenBucket bucket = getPeerBucket(flow.peer);
+        if (bucket != null) {
+            bucket.take(bytes);
+        }
+        final TokenBucket link = getLinkBucket(flow);
+        if (link != null) {
+            link.take(bytes);
+        }
+    }
+
+    private TokenBucket getPeerBucket(InetAddress peer) {
+        final PeerState state = (peer != null) ? peers.get(peer) : null;
+        return (state != null) ? state.bucket : null;
+    }
+
+    // Gets the bucket holding a bulk flow to its share of the link to its peer while interactive flows
+    // share it, following the rate measured, or null if the flow is not paced.
+    private TokenBucket getLinkBucket(Flow flow) {
+        if (flow.priority != FrameHeader.PRIORITY_BULK) {
+            return null;
+        }
+        final PeerState state = (flow.peer != null) ? peers.get(flow.peer) : null;
+        if (state == null) {
+            return null;
+        }
+        final long rate = ((state.interactiveFlows > 0) && (linkRates != null))
+                ? linkRates.getRate(flow.peer) / (INTERACTIVE_WEIGHT + 1)
+                : 0;
+        if (rate <= 0) {
+            state.link = null;
+        } else if (state.link == null) {
+            state.link = new TokenBucket(rate);
+        } else if (state.link.rate != rate) {
+            state.link.setRate(rate);
+        }
+        return state.link;
+    }
+
+    private static long toMillis(long nanos) {
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+
+    // Cap of a peer, shared by all its flows, and the number of them still open, also by class.
+    private static final class PeerState {
+
+        final TokenBucket bucket;
+        int flows;
+        int interactiveFlows;
+        int bulkFlows;
+        // Holds the bulk flows to their share of the link while interactive flows share it
+        TokenBucket link;
+
+        PeerState(TokenBucket bucket) {
+            this.bucket = bucket;
+        }
+
+        void count(byte priority, int delta) {
+            if (priority == FrameHeader.PRIORITY_BULK) {
+                bulkFlows += delta;
+            } else {
+                interactiveFlows += delta;
+            }
+        }
+    }
+
+    // Transfer sharing the link with others.
+    public final class Flow {
+
+        private final InetAddress peer;
+        private byte priority;
+        // Bytes asked for on its current turn
+        private long wanted;
+        // Whether waiting for its turn, or closed for good
+        private boolean queued;
+        private boolean closed;
+
+        private Flow(InetAddress peer, byte priority) {
+            this.peer = peer;
+            this.priority = priority;
+        }
+
+        // Changes the priority class of the flow from its next turn on.
+        public void setPriority(byte priority) {
+            BandwidthScheduler.this.setPriority(this, priority);
+        }
+
+        // Determines whether the flow is currently paced to the link to its peer,
+        // so how fast it moves tells nothing about the link.
+        public boolean isPacedToLink() {
+            synchronized (BandwidthScheduler.this) {
+                return getLinkBucket(this) != null;
+            }
+        }
+
+        // Waits for the turn of the flow and returns how many bytes (at most those wanted) it can move.
+        // The bytes actually moved must be reported through complete().
+        public long acquire(long wanted) throws InterruptedIOException {
+            return BandwidthScheduler.this.acquire(this, wanted);
+        }
+
+        // Reports the bytes moved out of those granted.
+        public void complete(long granted, long moved) {
+            BandwidthScheduler.this.complete(this, granted, moved);
+        }
+
+        // Stops waiting for turns, waking up the thread waiting for this flow with an exception.
+        // Closing it again has no effect.
+        public void close() {
+            BandwidthScheduler.this.close(this);
+        }
+
+        // Wraps a channel so each read waits for the turn of the flow and moves at most a quantum.
+        public ReadableByteChannel wrap(ReadableByteChannel channel) {
+            return new ReadableByteChannel() {
+                @Override
+                public int read(ByteBuffer dst) throws IOException {
+                    if (!dst.hasRemaining()) {
+                        return 0;
+                    }
+                    final long granted = acquire(dst.remaining());
+                    final int limit = dst.limit();
+                    dst.limit(dst.position() + (int) granted);
+                    int count = 0;
+                    try {
+                        count = channel.read(dst);
+                        return count;
+                    } finally {
+                        dst.limit(limit);
+                        complete(granted, Math.max(count, 0));
+                    }
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return channel.isOpen();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    channel.close();
+                }
+            };
+        }
+    }
+
+    // Tokens refilled at a given rate, up to the traffic of a short burst.
+    private static final class TokenBucket {
+
+        long rate;
+        long capacity;
+        private double tokens;
+        private long updated = System.nanoTime();
+
+        TokenBucket(long rate) {
+            this.rate = rate;
+            capacity = capacityOf(rate);
+            tokens = capacity;
+        }
+
+        static long capacityOf(long rate) {
+            return Math.max(1, rate * BURST_MILLIS / 1000);
+        }
+
+        // Gets the nanoseconds to wait until the given bytes can be moved, or 0 if they can right now.
+        long delay(long bytes) {
+            refill();
+            if (tokens >= bytes) {
+                return 0;
+            }
+            return Math.max(1, (long) ((bytes - tokens) * TimeUnit.SECONDS.toNanos(1) / rate));
+        }
+
+        // Follows a new rate, keeping the tokens saved so far up to the new capacity.
+        void setRate(long rate) {
+            refill();
+            this.rate = rate;
+            capacity = capacityOf(rate);
+            tokens = Math.min(tokens, capacity);
+        }
+
+        void take(long bytes) {
+            refill();
+            tokens = Math.min(capacity, tokens - bytes);
+        }
+
+        private void refill() {
+            final long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - updated) * rate / (double) TimeUnit.SECONDS.toNanos(1));
+            updated = now;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.network;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ProtocolException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import labs.dadm.l0504_sockets.protocol.ContentId;
+import labs.dadm.l0504_sockets.protocol.FrameHeader;
+
+// Puts together the images sent in chunks through several connections at once.
+// The file of each image is allocated when its first chunk arrives, and every chunk is written
+// straight at its offset, so chunks can arrive in any order and from any connection.
+// The image is complete once the ranges written cover it whole, whatever their size and overlap,
+// and then it is checked against its content ID, if its Client stated it.
+// Images whose chunks stop arriving for longer than the given time to live are discarded.
+// It is shared by all the connections of a Server, which may call it from different threads.
+public class ChunkAssembler {
+
+    // Directory on internal storage where the images are saved
+    private final File directory;
+    // Time an image can go without new chunks before being discarded
+    private final long ttlMillis;
+    // Images being received, by their upload identifier
+    private final Map<Long, Upload> uploads = new HashMap<>();
+
+    private boolean closed;
+
+    public ChunkAssembler(File directory, long ttlMillis) {
+        this.directory = directory;
+        this.ttlMillis = ttlMillis;
+    }
+
+    // Gets the image the chunk belongs to, creating its file if this is the first chunk received.
+    // The chunk has to be released once written, whether correctly or not.
+    public synchronized Upload open(FrameHeader header) throws IOException {
+        if (closed) {
+            throw new IOException("Server stopped");
+        }
+        final long total = header.getTotalLength();
+        if ((header.getOffset() < 0) || (total < 0)
+                || (header.getOffset() > total - header.getPayloadLength())) {
+            throw new ProtocolException("Chunk out of bounds");
+        }
+
+        Upload upload = uploads.get(header.getUploadId());
+        if (upload == null) {
+            // Reject the image before receiving it if it does not fit on internal storage
+            if (directory.getUsableSpace() < total) {
+                throw new ProtocolException("Not enough space to store " + total + " bytes");
+            }
+            if ((header.getContentId() != null) && !ContentId.isValid(header.getContentId())) {
+                throw new ProtocolException("Malformed content ID");
+            }
+            upload = new Upload(new File(directory,
+                    "upload_" + Long.toHexString(header.getUploadId()) + ".tmp"), total,
+                    header.getContentId());
+            uploads.put(header.getUploadId(), upload);
+        } else if ((upload.length != total) || ((header.getContentId() != null)
+                && !header.getContentId().equals(upload.contentId))) {
+            throw new ProtocolException("Chunk does not match its image");
+        }
+        upload.writers++;
+        upload.lastUpdate = System.currentTimeMillis();
+        return upload;
+    }
+
+    // Records that a chunk is no longer being written, so its image can be discarded if abandoned.
+    public synchronized void release(Upload upload) {
+        upload.writers--;
+        upload.lastUpdate = System.currentTimeMillis();
+    }
+
+    // Records that a chunk has been correctly written into the file of its image.
+    // Returns true if it was the last chunk missing, so the file is complete and already closed.
+    // Then the image is checked against its content ID, and deleted if it does not match
+    // (see Upload.isIntact()).
+    public boolean complete(Upload upload, FrameHeader header) throws IOException {
+        synchronized (this) {
+            if ((uploads.get(header.getUploadId()) != upload)
+                    || !upload.add(header.getOffset(), header.getPayloadLength())) {
+                return false;
+            }
+            uploads.remove(header.getUploadId());
+        }
+        try {
+            // The content was just written, so computing its digest hits the cache
+            upload.intact = (upload.contentId == null)
+                    || upload.contentId.equals(ContentId.of(upload.getChannel()));
+        } finally {
+            upload.close();
+            if (!upload.intact) {
+                upload.file.delete();
+            }
+        }
+        return true;
+    }
+
+    // Discards the images that have not got any chunk for longer than the time to live.
+    public void collectGarbage() {
+        final List<Upload> expired = new ArrayList<>();
+        synchronized (this) {
+            final long now = System.currentTimeMillis();
+            final Iterator<Upload> iterator = uploads.values().iterator();
+            while (iterator.hasNext()) {
+                final Upload upload = iterator.next();
+                // Never discard an image while a chunk is being written
+                if ((upload.writers == 0) && (now - upload.lastUpdate > ttlMillis)) {
+                    iterator.remove();
+                    expired.add(upload);
+                }
+            }
+        }
+        // Do not hold the lock while closing and deleting files
+        for (Upload upload : expired) {
+            upload.close();
+            upload.file.delete();
+        }
+    }
+
+    // Discards all the images not completely received yet.
+    public void close() {
+        final Upload[] pending;
+        synchronized (this) {
+            closed = true;
+            pending = uploads.values().toArray(new Upload[0]);
+            uploads.clear();
+        }
+        for (Upload upload : pending) {
+            upload.close();
+            upload.file.delete();
+        }
+    }
+
+    // Image being received in chunks.
+    public static final class Upload {
+
+        // File where the image is saved and its channel, shared by all the connections
+        final File file;
+        private final RandomAccessFile output;
+        // Length of the whole image, and its content ID if stated by the Client
+        final long length;
+        final String contentId;
+        // Disjoint ranges already written, as their end by their start,
+        // so duplicated or overlapping chunks are not counted twice
+        private final TreeMap<Long, Long> ranges = new TreeMap<>();
+        // Number of chunks being written, and when the last one started or finished
+        private int writers;
+        private long lastUpdate;
+        private volatile boolean intact;
+
+        Upload(File file, long length, String contentId) throws IOException {
+            this.file = file;
+            this.length = length;
+            this.contentId = contentId;
+            output = new RandomAccessFile(file, "rw");
+            // Allocate the whole file beforehand
+            output.setLength(length);
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        // Channel to write the chunks at their offset.
+        // Positional writes do not change the position of the channel, so they can run concurrently.
+        public FileChannel getChannel() {
+            return output.getChannel();
+        }
+
+        // Determines whether the complete image matches its content ID, if any.
+        public boolean isIntact() {
+            return intact;
+        }
+
+        // Adds a chunk to those received and returns whether the image is complete,
+        // merging it with the ranges it overlaps or touches.
+        private boolean add(long offset, long count) {
+            long start = offset;
+            long end = offset + count;
+            final Map.Entry<Long, Long> before = ranges.floorEntry(start);
+            if ((before != null) && (before.getValue() >= start)) {
+                start = before.getKey();
+                end = Math.max(end, before.getValue());
+                ranges.remove(before.getKey());
+            }
+            Map.Entry<Long, Long> after;
+            while (((after = ranges.ceilingEntry(start)) != null) && (after.getKey() <= end)) {
+                end = Math.max(end, after.getValue());
+                ranges.remove(after.getKey());
+            }
+            ranges.put(start, end);
+            return (ranges.size() == 1) && (ranges.firstKey() == 0) && (ranges.firstEntry().getValue() >= length);
+        }
+
+        private void close() {
+            try {
+                output.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Keeps idle connections to Servers open, so they can be reused by later transfers
+// instead of paying the TCP handshake and slow start each time.
+// Connections are checked before being reused and closed once idle for too long.
+// New connections are tuned to the link to each Server (see TransportTuner).
+public class ConnectionPool {
+
+    // Time a connection can stay idle before being closed
+    private final long keepAliveNanos;
+    // Maximum number of idle connections kept for each Server
+    private final int maxIdlePerServer;
+    // Sizes the buffers of the connections to the link to each Server
+    private final TransportTuner tuner;
+
+    // Idle connections for each Server, the most recently used last
+    private final Map<InetSocketAddress, ArrayDeque<IdleConnection>> idle = new HashMap<>();
+
+    private boolean closed;
+
+    public ConnectionPool(long keepAliveMillis, int maxIdlePerServer) {
+        this(keepAliveMillis, maxIdlePerServer, new TransportTuner());
+    }
+
+    public ConnectionPool(long keepAliveMillis, int maxIdlePerServer, TransportTuner tuner) {
+        this.keepAliveNanos = TimeUnit.MILLISECONDS.toNanos(keepAliveMillis);
+        this.maxIdlePerServer = maxIdlePerServer;
+        this.tuner = tuner;
+    }
+
+    public TransportTuner getTuner() {
+        return tuner;
+    }
+
+    // Gets a connection to the given Server, reusing an idle one if it is still healthy.
+    public SocketChannel acquire(InetSocketAddress address) throws IOException {
+        IdleConnection connection;
+        while ((connection = poll(address)) != null) {
+            if (!connection.isExpired() && isHealthy(connection.channel)) {
+                // The link may have been measured since the connection was opened
+                tuner.retune(connection.channel.socket(), address.getAddress());
+                return connection.channel;
+            }
+            close(connection.channel);
+        }
+        return tuner.connect(address);
+    }
+
+    // Returns a connection that is no longer used, so it can be reused later.
+    // The connection must be in blocking mode and have no pending data.
+    public void release(InetSocketAddress address, SocketChannel channel) {
+        synchronized (this) {
+            if (!closed && channel.isOpen()) {
+                ArrayDeque<IdleConnection> connections = idle.get(address);
+                if (connections == null) {
+                    connections = new ArrayDeque<>();
+                    idle.put(address, connections);
+                }
+                if (connections.size() < maxIdlePerServer) {
+                    connections.addLast(new IdleConnection(channel));
+                    return;
+                }
+            }
+        }
+        close(channel);
+    }
+
+    // Opens a connection to the given Server in advance, unless there is already an idle one.
+    public void warmUp(InetSocketAddress address) throws IOException {
+        synchronized (this) {
+            final ArrayDeque<IdleConnection> connections = idle.get(address);
+            if (closed || ((connections != null) && !connections.isEmpty())) {
+                return;
+            }
+        }
+        release(address, tuner.connect(address));
+    }
+
+    // Closes the connections that have been idle for too long.
+    public void evictIdle() {
+        final List<SocketChannel> expired = new ArrayList<>();
+        synchronized (this) {
+            for (ArrayDeque<IdleConnection> connections : idle.values()) {
+                final Iterator<IdleConnection> iterator = connections.iterator();
+                while (iterator.hasNext()) {
+                    final IdleConnection connection = iterator.next();
+                    if (connection.isExpired()) {
+                        iterator.remove();
+                        expired.add(connection.channel);
+                    }
+                }
+            }
+        }
+        // Do not hold the lock while closing sockets
+        for (SocketChannel channel : expired) {
+            close(channel);
+        }
+    }
+
+    // Closes all the idle connections and stops pooling new ones.
+    public void close() {
+        final List<SocketChannel> channels = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            for (ArrayDeque<IdleConnection> connections : idle.values()) {
+                for (IdleConnection connection : connections) {
+                    channels.add(connection.channel);
+                }
+            }
+            idle.clear();
+        }
+        for (SocketChannel channel : channels) {
+            close(channel);
+        }
+    }
+
+    // Gets the most recently used idle connection to the given Server, if any.
+    private synchronized IdleConnection poll(InetSocketAddress address) {
+        final ArrayDeque<IdleConnection> connections = idle.get(address);
+        return (connections != null) ? connections.pollLast() : null;
+    }
+
+    // Determines whether an idle connection can still be used.
+    // The Server never sends anything unless asked to, so reading without blocking must
+    // return no data: the end of the stream means the Server closed the connection.
+    private static boolean isHealthy(SocketChannel channel) {
+        if (!channel.isOpen() || !channel.isConnected()) {
+            return false;
+        }
+        try {
+            channel.configureBlocking(false);
+            final int count = channel.read(ByteBuffer.allocate(1));
+            channel.configureBlocking(true);
+            return count == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void close(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Connection waiting to be reused.
+    private final class IdleConnection {
+
+        final SocketChannel channel;
+        // Moment when it became idle
+        final long since = System.nanoTime();
+
+        IdleConnection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        boolean isExpired() {
+            return System.nanoTime() - since > keepAliveNanos;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.network;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+import labs.dadm.l0504_sockets.protocol.ContentId;
+import labs.dadm.l0504_sockets.transfer.StorageSink;
+
+// Keeps the images received by the Server, identified by their content ID (see ContentId),
+// so identical images sent by different Clients are stored only once,
+// and Clients can ask whether an image is already here before sending it.
+// Images are spread over subdirectories named after the first two digits of their content ID,
+// to keep directories small, and an index records where each image came from and when.
+// Compressed payloads are identified by the content ID of what was sent, which is recorded
+// in the index as an alias of the content ID of the image.
+public class ImageStore implements StorageSink {
+
+    // Name of the file holding the index
+    private static final String INDEX = "index";
+    // Separator of the fields of each line of the index
+    private static final char SEPARATOR = '\t';
+
+    // Directory where the images and their index are kept
+    private final File directory;
+
+    // Stored images by their content ID, and by the content ID of their compressed payloads
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    public ImageStore(File directory) {
+        this.directory = directory;
+        directory.mkdirs();
+        loadIndex();
+    }
+
+    // Determines whether the image or payload with the given content ID is already stored.
+    @Override
+    public synchronized boolean contains(String contentId) {
+        final Entry entry = entries.get(contentId);
+        return (entry != null) && getFile(entry.contentId).exists();
+    }
+
+    // Gets the file holding the image with the given content ID.
+    public File getFile(String contentId) {
+        return new File(new File(directory, contentId.substring(0, 2)), contentId);
+    }
+
+    // Moves a received image into the store, unless it was already there, in which case it is deleted.
+    // The payload ID is the content ID of the received payload, if different from that of the image.
+    // Returns the entry of the stored image.
+    public synchronized Entry add(File image, String contentId, String payloadId, String mimeType,
+                                  String sender) throws IOException {
+        if (!ContentId.isValid(contentId)) {
+            image.delete();
+            throw new IOException("Malformed content ID");
+        }
+        Entry entry = entries.get(contentId);
+        final File file = getFile(contentId);
+        if ((entry != null) && file.exists()) {
+            // The same image was already received, so keep only one copy
+            image.delete();
+        } else {
+            file.getParentFile().mkdirs();
+            if (!image.renameTo(file)) {
+                image.delete();
+                throw new IOException("Cannot store image " + contentId);
+            }
+            entry = new Entry(contentId, file.length(), mimeType, sender, System.currentTimeMillis());
+            entries.put(contentId, entry);
+            appendIndex(contentId, entry);
+        }
+        // Record the compressed payload, so it is also known the next time
+        if ((payloadId != null) && !entries.containsKey(payloadId) && ContentId.isValid(payloadId)) {
+            entries.put(payloadId, entry);
+            appendIndex(payloadId, entry);
+        }
+        return entry;
+    }
+
+    @Override
+    public File store(File image, String contentId, String payloadId, String mimeType, String sender)
+            throws IOException {
+        return getFile(add(image, contentId, payloadId, mimeType, sender).contentId);
+    }
+
+    // Reads the index of the images already stored.
+    private void loadIndex() {
+        final File index = new File(directory, INDEX);
+        if (!index.exists()) {
+            return;
+        }
+        try {
+            final BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(index), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    final String[] fields = line.split(String.valueOf(SEPARATOR), -1);
+                    if (fields.length != 6) {
+                        // Skip lines partially written if the Server was stopped while writing them
+                        continue;
+                    }
+                    try {
+                        entries.put(fields[0], new Entry(fields[1], Long.parseLong(fields[2]),
+                                fields[3].isEmpty() ? null : fields[3],
+                                fields[4].isEmpty() ? null : fields[4],
+                                Long.parseLong(fields[5])));
+                    } catch (NumberFormatException e) {
+                        e.printStackTrace();
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Adds a line to the index, identifying the stored image by the given content ID.
+    private void appendIndex(String contentId, Entry entry) throws IOException {
+        final Writer writer = new OutputStreamWriter(
+                new FileOutputStream(new File(directory, INDEX), true), "UTF-8");
+        try {
+            writer.write(contentId + SEPARATOR + entry.contentId + SEPARATOR + entry.size + SEPARATOR
+                    + clean(entry.mimeType) + SEPARATOR + clean(entry.sender) + SEPARATOR
+                    + entry.timestamp + '\n');
+        } finally {
+            writer.close();
+        }
+    }
+
+    // Removes the characters that would break the lines of the index.
+    private static String clean(String field) {
+        return (field == null) ? "" : field.replace(SEPARATOR, ' ').replace('\n', ' ');
+    }
+
+    // Image kept by the store.
+    public static final class Entry {
+
+        private final String contentId;
+        private final long size;
+        private final String mimeType;
+        // Address of the Client that first sent the image
+        private final String sender;
+        // Moment when the image was first received
+        private final long timestamp;
+
+        Entry(String contentId, long size, String mimeType, String sender, long timestamp) {
+            this.contentId = contentId;
+            this.size = size;
+            this.mimeType = mimeType;
+            this.sender = sender;
+            this.timestamp = timestamp;
+        }
+
+        public String getContentId() {
+            return contentId;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public String getMimeType() {
+            return mimeType;
+        }
+
+        public String getSender() {
+            return sender;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+    }
+}
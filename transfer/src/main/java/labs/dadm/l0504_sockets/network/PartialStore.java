@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.network;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ProtocolException;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+
+import labs.dadm.l0504_sockets.protocol.ContentId;
+import labs.dadm.l0504_sockets.protocol.FrameHeader;
+
+// Keeps the images partially received from Clients whose connection dropped,
+// so they can resume the transfer instead of sending the whole image again.
+// Each image is identified by its content ID and stored in a file whose length is
+// the number of bytes already received, which is the offset the Client resumes from.
+// Once complete, the image is checked against its content ID before being accepted.
+// Partial images not updated for longer than the given time to live are deleted.
+public class PartialStore {
+
+    // Extension of the files holding partial images
+    private static final String EXTENSION = ".part";
+
+    // Directory where the partial images are kept
+    private final File directory;
+    // Time a partial image is kept since it was last updated
+    private final long ttlMillis;
+
+    // Partial images known since the Server started, by content ID
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    public PartialStore(File directory, long ttlMillis) {
+        this.directory = directory;
+        this.ttlMillis = ttlMillis;
+        directory.mkdirs();
+    }
+
+    // Gets the number of bytes of the image already received, or 0 if none.
+    public synchronized long getOffset(String contentId) throws ProtocolException {
+        return getFile(contentId).length();
+    }
+
+    // Gets ready to receive the rest of an image from the offset stated in the header.
+    // A previous connection may still be sending the same image if it dropped without the Server
+    // noticing, so it is taken over: its file is closed and its writes will fail from now on.
+    // The image is reserved while holding the store, but the bytes already received may have to be
+    // hashed again, which takes a while for large images, so it is done without blocking other images.
+    public Session open(FrameHeader header) throws IOException {
+        final Session session = reserve(header);
+        try {
+            session.prepareDigest();
+        } catch (IOException e) {
+            release(session);
+            throw e;
+        }
+        return session;
+    }
+
+    // Checks the image can be resumed from the offset stated in the header, and makes a new session
+    // its owner.
+    private synchronized Session reserve(FrameHeader header) throws IOException {
+        final String contentId = header.getContentId();
+        final File file = getFile(contentId);
+        final long offset = header.getOffset();
+        if ((offset < 0) || (offset > file.length())
+                || (offset != header.getTotalLength() - header.getPayloadLength())) {
+            throw new ProtocolException("Cannot resume image from offset " + offset);
+        }
+        // Reject the image before receiving it if it does not fit on internal storage
+        if (directory.getUsableSpace() < header.getPayloadLength()) {
+            throw new ProtocolException(
+                    "Not enough space to store " + header.getPayloadLength() + " bytes");
+        }
+
+        Entry entry = entries.get(contentId);
+        if (entry == null) {
+            entry = new Entry(contentId, file);
+            entries.put(contentId, entry);
+        }
+        if (entry.owner != null) {
+            entry.owner.close();
+            entry.owner = null;
+        }
+        entry.owner = new Session(entry, offset, header.getTotalLength());
+        return entry.owner;
+    }
+
+    // Checks whether the whole image has been received and matches its content ID.
+    // If so, moves it to the given file and returns true. Images not matching their ID are discarded.
+    public synchronized boolean complete(Session session, File destination) {
+        final Entry entry = session.entry;
+        if ((entry.owner != session) || (session.digested != session.length)) {
+            return false;
+        }
+        entries.remove(entry.contentId);
+        entry.owner = null;
+        session.close();
+
+        final boolean valid = ContentId.toHex(session.digest.digest()).equals(entry.contentId)
+                && entry.file.renameTo(destination);
+        if (!valid) {
+            entry.file.delete();
+        }
+        return valid;
+    }
+
+    // Discards the part of the image received through this session, as it got corrupted on its way.
+    public synchronized void discard(Session session) {
+        if (session.entry.owner == session) {
+            try {
+                session.output.setLength(session.start);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            // The digest includes the discarded bytes
+            session.digested = -1;
+        }
+    }
+
+    // Closes the file once the connection no longer sends the image, keeping what was received.
+    public synchronized void release(Session session) {
+        final Entry entry = session.entry;
+        session.close();
+        if (entry.owner == session) {
+            entry.owner = null;
+            // Keep the digest for the next session only if it covers exactly the bytes in the file
+            if (session.digested == entry.file.length()) {
+                entry.digest = session.digest;
+                entry.digested = session.digested;
+            } else {
+                entry.digest = null;
+            }
+        }
+    }
+
+    // Deletes the partial images not updated for longer than the time to live.
+    public synchronized void collectGarbage() {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        for (File file : files) {
+            final String name = file.getName();
+            if (!name.endsWith(EXTENSION)) {
+                continue;
+            }
+            final String contentId = name.substring(0, name.length() - EXTENSION.length());
+            final Entry entry = entries.get(contentId);
+            // Never delete an image while it is being received
+            if ((entry != null) && (entry.owner != null)) {
+                continue;
+            }
+            if (now - file.lastModified() > ttlMillis) {
+                file.delete();
+                entries.remove(contentId);
+            }
+        }
+    }
+
+    // Closes the images being received, keeping what was received for the Clients to resume later.
+    public synchronized void close() {
+        for (Entry entry : entries.values()) {
+            if (entry.owner != null) {
+                entry.owner.close();
+                entry.owner = null;
+            }
+        }
+        entries.clear();
+    }
+
+    // Gets the file holding the partial image with the given content ID.
+    private File getFile(String contentId) throws ProtocolException {
+        // The content ID is part of the file name, so it must be checked first
+        if (!ContentId.isValid(contentId)) {
+            throw new ProtocolException("Malformed content ID");
+        }
+        return new File(directory, contentId + EXTENSION);
+    }
+
+    // Partial image known by the Server.
+    // Sessions lock it while hashing its file, so only one of them reads it at a time.
+    private static final class Entry {
+
+        final String contentId;
+        final File file;
+        // Session receiving the image, if any
+        Session owner;
+        // Digest of the bytes in the file, if already computed by a previous session
+        MessageDigest digest;
+        long digested;
+
+        Entry(String contentId, File file) {
+            this.contentId = contentId;
+            this.file = file;
+        }
+    }
+
+    // Part of an image received through a connection.
+    public static final class Session {
+
+        private final Entry entry;
+        private final RandomAccessFile output;
+        // Offset of the first byte received through this session and length of the whole image
+        private final long start;
+        private final long length;
+        // Digest of the content of the image from its beginning, and number of bytes it covers
+        private final MessageDigest digest;
+        private long digested;
+        // Whether the digest still has to be updated with the bytes already received
+        private boolean stale;
+
+        Session(Entry entry, long start, long length) throws IOException {
+            this.entry = entry;
+            this.start = start;
+            this.length = length;
+            output = new RandomAccessFile(entry.file, "rw");
+            // Drop anything beyond the offset the Client resumes from
+            output.setLength(start);
+
+            if ((entry.digest != null) && (entry.digested == start)) {
+                digest = entry.digest;
+            } else {
+                // The digest of the bytes already received was lost, so compute it again
+                digest = ContentId.newDigest();
+                stale = true;
+            }
+            entry.digest = null;
+            digested = start;
+        }
+
+        // Hashes the bytes already received if their digest was lost.
+        // If another connection takes the image over meanwhile, its file gets closed and this fails.
+        private void prepareDigest() throws IOException {
+            if (stale) {
+                synchronized (entry) {
+                    ContentId.update(digest, output.getChannel(), 0, start);
+                }
+                stale = false;
+            }
+        }
+
+        // File holding the image, which can be read while being written.
+        public File getFile() {
+            return entry.file;
+        }
+
+        // Channel to write the rest of the image from the offset the Client resumes from.
+        public FileChannel getChannel() {
+            return output.getChannel();
+        }
+
+        // Digest to be updated with the received bytes, in the same order they are written.
+        public MessageDigest getDigest() {
+            return digest;
+        }
+
+        // Records that the digest has been updated with the given number of bytes.
+        public void advance(long count) {
+            if (digested >= 0) {
+                digested += count;
+            }
+        }
+
+        private void close() {
+            try {
+                output.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
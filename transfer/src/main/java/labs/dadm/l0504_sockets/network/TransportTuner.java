@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.network;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Checksum;
+
+import labs.dadm.l0504_sockets.protocol.Checksums;
+import labs.dadm.l0504_sockets.protocol.FrameIO;
+import labs.dadm.l0504_sockets.utils.BufferPool;
+
+// Sizes the socket buffers and the pieces in which payloads are sent to fit the link to each Server.
+// A link can keep in flight as many bytes as its bandwidth-delay product (BDP): throughput times
+// round trip time (RTT). Smaller send buffers leave fast links idle while waiting for acknowledgements,
+// and larger ones just queue data on slow links, delaying everything else sent through them.
+// The RTT is measured when connecting (the TCP handshake takes a round trip), and the throughput
+// while sending the first part of each payload, after which the send buffer of the connection is resized.
+// Measurements are remembered by host, so the next connection to the same Server starts tuned.
+// The throughput measured is also the rate BandwidthScheduler paces the flows sharing a link to.
+public class TransportTuner implements BandwidthScheduler.LinkRates {
+
+    // Limits of the socket buffers and of the pieces of the payloads
+    public static final int MIN_BUFFER_SIZE = 64 * 1024;
+    public static final int MAX_BUFFER_SIZE = 4 * 1024 * 1024;
+    // Used until the link to a Server has been measured
+    public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+    // Weight of each new measurement in the running averages
+    private static final double SMOOTHING = 0.25;
+
+    // What is known about the link to each Server
+    private final ConcurrentHashMap<InetAddress, LinkProfile> profiles = new ConcurrentHashMap<>();
+
+    // Opens a connection to the given Server, tuned with what is known about the link to it,
+    // measuring the RTT from the TCP handshake.
+    public SocketChannel connect(InetSocketAddress address) throws IOException {
+        final SocketChannel channel = SocketChannel.open();
+        try {
+            // Buffers must be set before connecting, as TCP negotiates its window scaling on the handshake
+            configure(channel.socket(), address.getAddress());
+            final long start = System.nanoTime();
+            channel.connect(address);
+            recordRtt(address.getAddress(), System.nanoTime() - start);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    // Sets the options of a connection to a Server before connecting: small frames (headers,
+    // acknowledgements) are sent right away, and the buffers are sized to the BDP of the link, if known.
+    private void configure(Socket socket, InetAddress host) throws IOException {
+        socket.setTcpNoDelay(true);
+        final int size = getBufferSize(host);
+        socket.setSendBufferSize(size);
+        socket.setReceiveBufferSize(size);
+    }
+
+    // Resizes the send buffer of a connection already established to the BDP of the link, if known.
+    // The receive buffer is left as it is: the window scale was agreed on the handshake,
+    // so a larger buffer could not be advertised to the Server anyway.
+    public void retune(Socket socket, InetAddress host) throws IOException {
+        socket.setSendBufferSize(getBufferSize(host));
+    }
+
+    // Sizes the receive buffer of the connections accepted by a Server, which must be done
+    // before binding it, as TCP negotiates its window scaling on the handshake.
+    // Clients cannot be told apart before being accepted, so all get the same buffer.
+    public static void configureServer(ServerSocket socket, int receiveBufferSize) throws IOException {
+        socket.setReceiveBufferSize(receiveBufferSize);
+    }
+
+    // Sets the options of a connection accepted by a Server: acknowledgements are sent right away,
+    // instead of being delayed waiting for more data that the Client will not send until answered.
+    public static void configureAccepted(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+    }
+
+    // Sends a region of a file as the payload of a frame, letting the kernel copy the data.
+    // The first part measures the throughput of the link, and the rest is sent in pieces
+    // sized to its BDP, once the send buffer of the connection has been resized to match.
+    public void sendPayload(FileChannel file, long position, long length, SocketChannel channel)
+            throws IOException {
+        sendPayload(file, position, length, channel, null);
+    }
+
+    // Sends a region of a file as above, taking turns with other transfers through the given flow
+    // (if not null), so no piece is larger than a quantum of the BandwidthScheduler.
+    public void sendPayload(FileChannel file, long position, long length, SocketChannel channel,
+                            BandwidthScheduler.Flow flow) throws IOException {
+        final InetAddress host = channel.socket().getInetAddress();
+        // The send buffer takes the first bytes at once, so the throughput only reflects the link
+        // once it is full: only the bytes sent after it count. Kernels may reserve up to twice
+        // the size they report, and the receiver buffers some more
+        final long buffered = 2L * channel.socket().getSendBufferSize();
+        final long probe = 2 * buffered;
+        long piece = getChunkSize(host);
+        final long end = position + length;
+        // Only the time spent sending counts, not the time waiting for the turn of the flow
+        long elapsed = 0;
+        long timed = 0;
+        long sent = 0;
+        boolean measured = false;
+        while (position < end) {
+            final long wanted = Math.min(piece, end - position);
+            final long granted = (flow != null) ? flow.acquire(wanted) : wanted;
+            long count = 0;
+            final long start = System.nanoTime();
+            try {
+                count = FrameIO.transferTo(file, position, granted, channel);
+            } finally {
+                if (sent >= buffered) {
+                    elapsed += System.nanoTime() - start;
+                    timed += count;
+                }
+                if (flow != null) {
+                    flow.complete(granted, count);
+                }
+            }
+            position += count;
+            sent += count;
+            if (!measured && (sent >= probe) && (position < end)) {
+                measured = true;
+                // Paced flows reach the send buffer faster than the link drains it
+                if ((flow == null) || !flow.isPacedToLink()) {
+                    recordThroughput(host, timed, elapsed);
+                }
+                retune(channel.socket(), host);
+                piece = getChunkSize(host);
+            }
+        }
+    }
+
+    // Sends the given number of bytes read from a stream as the payload of a frame, as they are read,
+    // updating their checksum on the way, as they cannot be read again.
+    // Pieces are limited by a pooled buffer, and take turns with other transfers through the given
+    // flow (if not null). Fails if the stream does not hold exactly that number of bytes,
+    // as the frame cannot be completed then.
+    public void sendStream(ReadableByteChannel stream, long length, SocketChannel channel, Checksum checksum,
+                           BandwidthScheduler.Flow flow) throws IOException {
+        final ByteBuffer buffer = BufferPool.acquire();
+        try {
+            long remaining = length;
+            while (remaining > 0) {
+                final long wanted = Math.min(buffer.capacity(), remaining);
+                final long granted = (flow != null) ? flow.acquire(wanted) : wanted;
+                long count = 0;
+                try {
+                    buffer.clear();
+                    buffer.limit((int) granted);
+                    final int read = stream.read(buffer);
+                    if (read == -1) {
+                        throw new EOFException("Stream ended " + remaining + " bytes before its stated length");
+                    }
+                    buffer.flip();
+                    Checksums.update(checksum, buffer.duplicate());
+                    FrameIO.writeFully(channel, buffer);
+                    count = read;
+                } finally {
+                    if (flow != null) {
+                        flow.complete(granted, count);
+                    }
+                }
+                remaining -= count;
+            }
+            // Nothing must be left, or the Server would get a truncated image
+            buffer.clear();
+            buffer.limit(1);
+            if (stream.read(buffer) != -1) {
+                throw new ProtocolException("Stream longer than its stated length " + length);
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    // Records the time taken by a round trip to the given host.
+    public void recordRtt(InetAddress host, long nanos) {
+        getProfile(host).updateRtt(nanos);
+    }
+
+    // Records the throughput achieved sending the given number of bytes to the given host.
+    public void recordThroughput(InetAddress host, long bytes, long nanos) {
+        if (nanos > 0) {
+            getProfile(host).updateThroughput(bytes * 1e9 / nanos);
+        }
+    }
+
+    // Gets the throughput measured to the given host, in bytes per second, or 0 if not measured yet.
+    @Override
+    public long getRate(InetAddress peer) {
+        final LinkProfile profile = (peer != null) ? profiles.get(peer) : null;
+        return (profile != null) ? (long) profile.getThroughput() : 0;
+    }
+
+    // Gets the size of the socket buffers for the link to the given host:
+    // twice its BDP, so the buffer is not drained while waiting for acknowledgements.
+    public int getBufferSize(InetAddress host) {
+        final LinkProfile profile = (host != null) ? profiles.get(host) : null;
+        if ((profile == null) || !profile.isMeasured()) {
+            return DEFAULT_BUFFER_SIZE;
+        }
+        return clamp(2 * profile.getBdp());
+    }
+
+    // Gets the size of the pieces in which payloads are sent to the given host: its BDP,
+    // so each call to the kernel keeps the link busy for about a round trip.
+    public long getChunkSize(InetAddress host) {
+        final LinkProfile profile = (host != null) ? profiles.get(host) : null;
+        if ((profile == null) || !profile.isMeasured()) {
+            return DEFAULT_BUFFER_SIZE;
+        }
+        return clamp(profile.getBdp());
+    }
+
+    // Gets what is known about the link to the given host, or null if nothing.
+    public LinkProfile getLinkProfile(InetAddress host) {
+        return profiles.get(host);
+    }
+
+    private LinkProfile getProfile(InetAddress host) {
+        LinkProfile profile = profiles.get(host);
+        if (profile == null) {
+            final LinkProfile created = new LinkProfile();
+            profile = profiles.putIfAbsent(host, created);
+            if (profile == null) {
+                profile = created;
+            }
+        }
+        return profile;
+    }
+
+    private static int clamp(double size) {
+        return (int) Math.max(MIN_BUFFER_SIZE, Math.min(MAX_BUFFER_SIZE, size));
+    }
+
+    // Running averages of the RTT and throughput of the link to a Server.
+    public static final class LinkProfile {
+
+        // Seconds and bytes per second, or 0 if not measured yet
+        private double rtt;
+        private double throughput;
+
+        synchronized void updateRtt(long nanos) {
+            final double seconds = nanos / (double) TimeUnit.SECONDS.toNanos(1);
+            rtt = (rtt == 0) ? seconds : rtt + SMOOTHING * (seconds - rtt);
+        }
+
+        synchronized void updateThroughput(double bytesPerSecond) {
+            throughput = (throughput == 0)
+                    ? bytesPerSecond
+                    : throughput + SMOOTHING * (bytesPerSecond - throughput);
+        }
+
+        public synchronized boolean isMeasured() {
+            return (rtt > 0) && (throughput > 0);
+        }
+
+        // Seconds taken by a round trip.
+        public synchronized double getRtt() {
+            return rtt;
+        }
+
+        // Bytes per second.
+        public synchronized double getThroughput() {
+            return throughput;
+        }
+
+        // Bytes in flight that keep the link busy.
+        public synchronized double getBdp() {
+            return rtt * throughput;
+        }
+    }
+}
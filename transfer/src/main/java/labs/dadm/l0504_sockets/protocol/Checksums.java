@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+// Updates checksums from the content of ByteBuffers.
+// CRC32.update(ByteBuffer) is only available on API 26+, so older devices
+// copy the content of direct buffers through a small array.
+public class Checksums {
+
+    // Size of the array used to copy the content of direct buffers
+    private static final int COPY_SIZE = 8 * 1024;
+
+    // Whether CRC32 can be directly updated from a ByteBuffer
+    private static final boolean BUFFER_UPDATE = supportsBufferUpdate();
+
+    private static final ThreadLocal<byte[]> arrays = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[COPY_SIZE];
+        }
+    };
+
+    // Updates the checksum with the remaining bytes of the buffer, which is fully consumed.
+    public static void update(Checksum checksum, ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            checksum.update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+        } else if (BUFFER_UPDATE && (checksum instanceof CRC32)) {
+            ((CRC32) checksum).update(buffer);
+        } else {
+            final byte[] array = arrays.get();
+            while (buffer.hasRemaining()) {
+                final int count = Math.min(array.length, buffer.remaining());
+                buffer.get(array, 0, count);
+                checksum.update(array, 0, count);
+            }
+        }
+    }
+
+    // Determines whether CRC32.update(ByteBuffer) is available on this platform.
+    private static boolean supportsBufferUpdate() {
+        try {
+            CRC32.class.getMethod("update", ByteBuffer.class);
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+}
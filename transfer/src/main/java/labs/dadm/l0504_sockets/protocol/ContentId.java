@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.protocol;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// Identifies an image by its content, so a transfer can be resumed even through a new connection.
+// The content ID is the SHA-256 of the image written as 64 lowercase hexadecimal digits.
+public class ContentId {
+
+    // Size of each region of a file mapped into memory to compute its digest
+    private static final long MAP_SIZE = 8 * 1024 * 1024;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    // Computes the content ID of the whole file.
+    public static String of(FileChannel file) throws IOException {
+        final MessageDigest digest = newDigest();
+        update(digest, file, 0, file.size());
+        return toHex(digest.digest());
+    }
+
+    // Creates the digest used to compute content IDs.
+    public static MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    // Updates the digest with a region of a file.
+    // The file is mapped into memory, so its content is not copied if already cached.
+    public static void update(MessageDigest digest, FileChannel file, long position, long length)
+            throws IOException {
+        final long end = position + length;
+        while (position < end) {
+            final long size = Math.min(MAP_SIZE, end - position);
+            digest.update(file.map(FileChannel.MapMode.READ_ONLY, position, size));
+            position += size;
+        }
+    }
+
+    // Writes the bytes of a digest as hexadecimal digits.
+    public static String toHex(byte[] bytes) {
+        final char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0x0F];
+            chars[2 * i + 1] = HEX[bytes[i] & 0x0F];
+        }
+        return new String(chars);
+    }
+
+    // Determines whether the string is a well-formed content ID,
+    // so it can be safely used as the name of a file.
+    public static boolean isValid(String contentId) {
+        if ((contentId == null) || (contentId.length() != 64)) {
+            return false;
+        }
+        for (int i = 0; i < contentId.length(); i++) {
+            final char c = contentId.charAt(i);
+            if (((c < '0') || (c > '9')) && ((c < 'a') || (c > 'f'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.protocol;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+// Compresses and decompresses the payload of the frames.
+// Images are usually compressed already, so only other payloads are worth compressing.
+public class Encodings {
+
+    // Size of the buffers used to compress and decompress
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // Times a payload may grow when decompressed if its Client did not state its original length,
+    // well beyond what documents achieve but far from what crafted payloads do
+    private static final long MAX_RATIO = 100;
+
+    // Encodings supported by this version of the protocol, where bit n stands for encoding n
+    public static final byte SUPPORTED = 1 << FrameHeader.ENCODING_DEFLATE;
+
+    // Determines whether it is worth compressing a payload of the given MIME type.
+    public static boolean isCompressible(String mimeType) {
+        if (mimeType == null) {
+            return true;
+        }
+        switch (mimeType) {
+            case "image/jpeg":
+            case "image/png":
+            case "image/webp":
+            case "image/gif":
+            case "image/heic":
+            case "image/heif":
+            case "application/zip":
+            case "application/gzip":
+                return false;
+            default:
+                return !mimeType.startsWith("video/") && !mimeType.startsWith("audio/");
+        }
+    }
+
+    // Compresses the content of the stream into the given file, and closes the stream.
+    // The fastest level is used, as most of the gain comes from the first pass.
+    // Returns the length of the original content, which the Server needs to decompress it.
+    public static long deflate(InputStream is, File output) throws IOException {
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        final OutputStream os =
+                new DeflaterOutputStream(new FileOutputStream(output), deflater, BUFFER_SIZE);
+        try {
+            return copy(is, os, Long.MAX_VALUE);
+        } finally {
+            is.close();
+            os.close();
+            // Release the native memory right away instead of waiting for the finalizer
+            deflater.end();
+        }
+    }
+
+    // Restores the original content of a payload received with the given encoding,
+    // whose original length is the given one, or 0 if unknown.
+    // The file is replaced with its decompressed content. Payloads growing beyond their original
+    // length, beyond MAX_RATIO times their own if unknown, or beyond the space available
+    // are rejected, so a small payload cannot fill the storage of the Server.
+    public static void decode(File file, byte encoding, long decodedLength) throws IOException {
+        switch (encoding) {
+            case FrameHeader.ENCODING_IDENTITY:
+                return;
+            case FrameHeader.ENCODING_DEFLATE:
+                long limit = (decodedLength > 0) ? decodedLength : file.length() * MAX_RATIO;
+                limit = Math.min(limit, file.getParentFile().getUsableSpace());
+                final File inflated = new File(file.getPath() + ".inflated");
+                final InputStream is = new InflaterInputStream(new FileInputStream(file));
+                final OutputStream os = new FileOutputStream(inflated);
+                try {
+                    final long length = copy(is, os, limit);
+                    if ((decodedLength > 0) && (length != decodedLength)) {
+                        throw new ProtocolException("Payload inflates to " + length
+                                + " bytes instead of " + decodedLength);
+                    }
+                } catch (IOException e) {
+                    inflated.delete();
+                    throw e;
+                } finally {
+                    is.close();
+                    os.close();
+                }
+                if (!inflated.renameTo(file)) {
+                    inflated.delete();
+                    throw new IOException("Cannot replace " + file);
+                }
+                return;
+            default:
+                throw new IOException("Unsupported encoding " + encoding);
+        }
+    }
+
+    // Copies the content of the input stream into the output stream, failing as soon as it goes
+    // beyond the given number of bytes. Returns the number of bytes copied.
+    private static long copy(InputStream is, OutputStream os, long limit) throws IOException {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        long total = 0;
+        int count;
+        while ((count = is.read(buffer)) != -1) {
+            total += count;
+            if (total > limit) {
+                throw new ProtocolException("Payload inflates beyond " + limit + " bytes");
+            }
+            os.write(buffer, 0, count);
+        }
+        return total;
+    }
+}
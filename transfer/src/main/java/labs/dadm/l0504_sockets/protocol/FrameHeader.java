@@ -0,0 +1,529 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.protocol;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+// Header of the frames exchanged between Client and Server.
+// Each frame is laid out as follows (big endian):
+// - Prefix: magic number (4 bytes), version (1 byte), type (1 byte), length of the rest of the header (2 bytes)
+// - Rest of the header: payload length (8 bytes) followed by a list of attributes,
+//   each one encoded as tag (1 byte), length (2 bytes) and value
+// - Payload: as many bytes as stated in the header
+// - Trailer: CRC32 of the payload (4 bytes)
+// Unknown attributes are skipped, so new ones can be added without breaking older peers.
+public class FrameHeader {
+
+    // Identifies the beginning of a frame ("DADP")
+    public static final int MAGIC = 0x44414450;
+    // Version of the protocol
+    public static final byte VERSION = 1;
+
+    // Length of the fixed part of the header
+    public static final int PREFIX_LENGTH = 8;
+    // Length of the trailer following the payload
+    public static final int TRAILER_LENGTH = 4;
+    // Maximum length of the rest of the header
+    public static final int MAX_HEADER_LENGTH = 0xFFFF;
+    // Initial size of the buffer used to encode a header
+    private static final int INITIAL_ENCODING_SIZE = 256;
+
+    // Frame carrying an image
+    public static final byte TYPE_IMAGE = 1;
+    // Frame without payload acknowledging the reception of an image or chunk
+    public static final byte TYPE_ACK = 2;
+    // Frame carrying a chunk of a larger image, to be written at the given offset
+    public static final byte TYPE_CHUNK = 3;
+    // Frame without payload asking how much of an image the Server already holds
+    public static final byte TYPE_RESUME_QUERY = 4;
+    // Frame without payload answering a query with the offset to resume the image from
+    public static final byte TYPE_RESUME_OFFSET = 5;
+    // Frame without payload negotiating the format of the images.
+    // The Client sends it first, and the Server answers with its preferences
+    public static final byte TYPE_HELLO = 6;
+
+    // Status of the acknowledged image
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_CORRUPT = 1;
+    // Status of the answer to a resume query for an image the Server already holds completely,
+    // so it does not need to be sent at all
+    public static final byte STATUS_STORED = 2;
+
+    // Encodings of the payload
+    public static final byte ENCODING_IDENTITY = 0;
+    public static final byte ENCODING_DEFLATE = 1;
+
+    // Priority classes of the payload when sharing the link with others (see BandwidthScheduler)
+    public static final byte PRIORITY_INTERACTIVE = 0;
+    public static final byte PRIORITY_BULK = 1;
+
+    // Tags of the attributes
+    private static final byte TAG_NAME = 1;
+    private static final byte TAG_MIME_TYPE = 2;
+    private static final byte TAG_SEQUENCE = 3;
+    private static final byte TAG_STATUS = 4;
+    private static final byte TAG_UPLOAD_ID = 5;
+    private static final byte TAG_OFFSET = 6;
+    private static final byte TAG_TOTAL_LENGTH = 7;
+    private static final byte TAG_CONTENT_ID = 8;
+    private static final byte TAG_MAX_DIMENSION = 9;
+    private static final byte TAG_QUALITY = 10;
+    private static final byte TAG_ENCODINGS = 11;
+    private static final byte TAG_ENCODING = 12;
+    private static final byte TAG_PRIORITY = 13;
+    private static final byte TAG_RELAY = 14;
+    private static final byte TAG_RELAY_HOPS = 15;
+    private static final byte TAG_DECODED_LENGTH = 16;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final byte type;
+    private final long payloadLength;
+    private String name;
+    private String mimeType;
+    private long sequence;
+    private byte status;
+    private long uploadId;
+    private long offset;
+    private long totalLength;
+    private String contentId;
+    private int maxDimension;
+    private byte quality;
+    private byte encodings;
+    private byte encoding;
+    private long decodedLength;
+    private byte priority;
+    private String relay;
+    private byte relayHops;
+
+    public FrameHeader(byte type, long payloadLength) {
+        this.type = type;
+        this.payloadLength = payloadLength;
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public long getPayloadLength() {
+        return payloadLength;
+    }
+
+    // Original name of the file sent, if any
+    public String getName() {
+        return name;
+    }
+
+    public FrameHeader setName(String name) {
+        this.name = name;
+        return this;
+    }
+
+    // MIME type of the payload, if known
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    public FrameHeader setMimeType(String mimeType) {
+        this.mimeType = mimeType;
+        return this;
+    }
+
+    // Position of the image within the batch sent through the same connection
+    public long getSequence() {
+        return sequence;
+    }
+
+    public FrameHeader setSequence(long sequence) {
+        this.sequence = sequence;
+        return this;
+    }
+
+    // Status of an acknowledged image
+    public byte getStatus() {
+        return status;
+    }
+
+    public FrameHeader setStatus(byte status) {
+        this.status = status;
+        return this;
+    }
+
+    // Identifies the image a chunk belongs to
+    public long getUploadId() {
+        return uploadId;
+    }
+
+    public FrameHeader setUploadId(long uploadId) {
+        this.uploadId = uploadId;
+        return this;
+    }
+
+    // Position of the chunk, or of the resumed part, within the image
+    public long getOffset() {
+        return offset;
+    }
+
+    public FrameHeader setOffset(long offset) {
+        this.offset = offset;
+        return this;
+    }
+
+    // Length of the whole image a chunk or resumed part belongs to
+    public long getTotalLength() {
+        return totalLength;
+    }
+
+    public FrameHeader setTotalLength(long totalLength) {
+        this.totalLength = totalLength;
+        return this;
+    }
+
+    // Identifies the image by its content (see ContentId), so its transfer can be resumed
+    public String getContentId() {
+        return contentId;
+    }
+
+    public FrameHeader setContentId(String contentId) {
+        this.contentId = contentId;
+        return this;
+    }
+
+    // Maximum width and height of the images the Server wants to receive, or 0 for the original ones
+    public int getMaxDimension() {
+        return maxDimension;
+    }
+
+    public FrameHeader setMaxDimension(int maxDimension) {
+        this.maxDimension = maxDimension;
+        return this;
+    }
+
+    // Quality (0-100) of the images re-encoded by the Client, or 0 if not specified
+    public byte getQuality() {
+        return quality;
+    }
+
+    public FrameHeader setQuality(byte quality) {
+        this.quality = quality;
+        return this;
+    }
+
+    // Encodings accepted by the Server, where bit n stands for encoding n
+    public byte getEncodings() {
+        return encodings;
+    }
+
+    public FrameHeader setEncodings(byte encodings) {
+        this.encodings = encodings;
+        return this;
+    }
+
+    // Determines whether the given encoding is among those accepted
+    public boolean acceptsEncoding(byte encoding) {
+        return (encodings & (1 << encoding)) != 0;
+    }
+
+    // Encoding of the payload, so the Server can restore the original content
+    public byte getEncoding() {
+        return encoding;
+    }
+
+    public FrameHeader setEncoding(byte encoding) {
+        this.encoding = encoding;
+        return this;
+    }
+
+    // Length of the payload once decoded, so the Server knows how much to expect, or 0 if unknown
+    public long getDecodedLength() {
+        return decodedLength;
+    }
+
+    public FrameHeader setDecodedLength(long decodedLength) {
+        this.decodedLength = decodedLength;
+        return this;
+    }
+
+    // Priority class of the payload, so the Server shares its link as the Client does
+    public byte getPriority() {
+        return priority;
+    }
+
+    public FrameHeader setPriority(byte priority) {
+        this.priority = priority;
+        return this;
+    }
+
+    // Servers the image is forwarded to while it arrives, as host:port addresses separated by commas
+    // (see RelayPlan), or null if it is only for the receiving Server
+    public String getRelay() {
+        return relay;
+    }
+
+    public FrameHeader setRelay(String relay) {
+        this.relay = relay;
+        return this;
+    }
+
+    // Number of times the image can still be forwarded from Server to Server,
+    // so a relay can never loop nor grow beyond what its Client intended
+    public byte getRelayHops() {
+        return relayHops;
+    }
+
+    public FrameHeader setRelayHops(byte relayHops) {
+        this.relayHops = relayHops;
+        return this;
+    }
+
+    // Determines whether the given bytes are the beginning of a frame.
+    // Peers not using frames send the image straight away, which never starts with MAGIC.
+    public static boolean isFrame(ByteBuffer start) {
+        return (start.remaining() >= 4) && (start.getInt(start.position()) == MAGIC);
+    }
+
+    // Checks the prefix of a frame and returns the length of the rest of its header.
+    // The prefix buffer must be ready to be read and it is not consumed.
+    public static int checkPrefix(ByteBuffer prefix) throws ProtocolException {
+        if ((prefix.remaining() < PREFIX_LENGTH) || !isFrame(prefix)) {
+            throw new ProtocolException("Not a frame");
+        }
+        final byte version = prefix.get(prefix.position() + 4);
+        if (version != VERSION) {
+            throw new ProtocolException("Unsupported protocol version " + version);
+        }
+        final int length = prefix.getShort(prefix.position() + 6) & 0xFFFF;
+        if (length < 8) {
+            throw new ProtocolException("Header too short");
+        }
+        return length;
+    }
+
+    // Decodes a header from its prefix and the rest of the header.
+    public static FrameHeader decode(ByteBuffer prefix, ByteBuffer rest) throws ProtocolException {
+        checkPrefix(prefix);
+        final byte type = prefix.get(prefix.position() + 5);
+
+        final long payloadLength = rest.getLong();
+        if (payloadLength < 0) {
+            throw new ProtocolException("Negative payload length");
+        }
+        final FrameHeader header = new FrameHeader(type, payloadLength);
+
+        // Process all the attributes
+        while (rest.hasRemaining()) {
+            if (rest.remaining() < 3) {
+                throw new ProtocolException("Truncated attribute");
+            }
+            final byte tag = rest.get();
+            final int length = rest.getShort() & 0xFFFF;
+            if (rest.remaining() < length) {
+                throw new ProtocolException("Truncated attribute");
+            }
+            final ByteBuffer value = rest.slice();
+            value.limit(length);
+            rest.position(rest.position() + length);
+
+            switch (tag) {
+                case TAG_NAME:
+                    header.name = getString(value);
+                    break;
+                case TAG_MIME_TYPE:
+                    header.mimeType = getString(value);
+                    break;
+                case TAG_SEQUENCE:
+                    header.sequence = getLong(value);
+                    break;
+                case TAG_STATUS:
+                    header.status = getByte(value);
+                    break;
+                case TAG_UPLOAD_ID:
+                    header.uploadId = getLong(value);
+                    break;
+                case TAG_OFFSET:
+                    header.offset = getLong(value);
+                    break;
+                case TAG_TOTAL_LENGTH:
+                    header.totalLength = getLong(value);
+                    break;
+                case TAG_CONTENT_ID:
+                    header.contentId = getString(value);
+                    break;
+                case TAG_MAX_DIMENSION:
+                    header.maxDimension = getInt(value);
+                    break;
+                case TAG_QUALITY:
+                    header.quality = getByte(value);
+                    break;
+                case TAG_ENCODINGS:
+                    header.encodings = getByte(value);
+                    break;
+                case TAG_ENCODING:
+                    header.encoding = getByte(value);
+                    break;
+                case TAG_PRIORITY:
+                    header.priority = getByte(value);
+                    break;
+                case TAG_RELAY:
+                    header.relay = getString(value);
+                    break;
+                case TAG_RELAY_HOPS:
+                    header.relayHops = getByte(value);
+                    break;
+                case TAG_DECODED_LENGTH:
+                    header.decodedLength = getLong(value);
+                    break;
+                default:
+                    // Skip unknown attributes
+                    break;
+            }
+        }
+        return header;
+    }
+
+    // Encodes the header, including its prefix, into a buffer ready to be written.
+    public ByteBuffer encode() throws ProtocolException {
+        ByteBuffer buffer = ByteBuffer.allocate(INITIAL_ENCODING_SIZE);
+        // Leave room for the prefix, as the length of the header is not known yet
+        buffer.position(PREFIX_LENGTH);
+        buffer.putLong(payloadLength);
+        buffer = putString(buffer, TAG_NAME, name);
+        buffer = putString(buffer, TAG_MIME_TYPE, mimeType);
+        if (sequence != 0) {
+            buffer = putAttribute(buffer, TAG_SEQUENCE, 8);
+            buffer.putLong(sequence);
+        }
+        if (status != STATUS_OK) {
+            buffer = putAttribute(buffer, TAG_STATUS, 1);
+            buffer.put(status);
+        }
+        if (uploadId != 0) {
+            buffer = putAttribute(buffer, TAG_UPLOAD_ID, 8);
+            buffer.putLong(uploadId);
+        }
+        // Chunks always state where they go, even the first one
+        if ((type == TYPE_CHUNK) || (offset != 0)) {
+            buffer = putAttribute(buffer, TAG_OFFSET, 8);
+            buffer.putLong(offset);
+        }
+        if ((type == TYPE_CHUNK) || (totalLength != 0)) {
+            buffer = putAttribute(buffer, TAG_TOTAL_LENGTH, 8);
+            buffer.putLong(totalLength);
+        }
+        buffer = putString(buffer, TAG_CONTENT_ID, contentId);
+        if (maxDimension != 0) {
+            buffer = putAttribute(buffer, TAG_MAX_DIMENSION, 4);
+            buffer.putInt(maxDimension);
+        }
+        if (quality != 0) {
+            buffer = putAttribute(buffer, TAG_QUALITY, 1);
+            buffer.put(quality);
+        }
+        if (encodings != 0) {
+            buffer = putAttribute(buffer, TAG_ENCODINGS, 1);
+            buffer.put(encodings);
+        }
+        if (encoding != ENCODING_IDENTITY) {
+            buffer = putAttribute(buffer, TAG_ENCODING, 1);
+            buffer.put(encoding);
+        }
+        if (priority != PRIORITY_INTERACTIVE) {
+            buffer = putAttribute(buffer, TAG_PRIORITY, 1);
+            buffer.put(priority);
+        }
+        buffer = putString(buffer, TAG_RELAY, relay);
+        if (relayHops != 0) {
+            buffer = putAttribute(buffer, TAG_RELAY_HOPS, 1);
+            buffer.put(relayHops);
+        }
+        if (decodedLength != 0) {
+            buffer = putAttribute(buffer, TAG_DECODED_LENGTH, 8);
+            buffer.putLong(decodedLength);
+        }
+
+        final int length = buffer.position() - PREFIX_LENGTH;
+        buffer.putInt(0, MAGIC);
+        buffer.put(4, VERSION);
+        buffer.put(5, type);
+        buffer.putShort(6, (short) length);
+        buffer.flip();
+        return buffer;
+    }
+
+    // Adds a string attribute to the buffer, unless it is null.
+    private static ByteBuffer putString(ByteBuffer buffer, byte tag, String value)
+            throws ProtocolException {
+        if (value != null) {
+            final byte[] bytes = value.getBytes(UTF_8);
+            buffer = putAttribute(buffer, tag, bytes.length);
+            buffer.put(bytes);
+        }
+        return buffer;
+    }
+
+    // Adds the tag and length of an attribute, making room for its value.
+    // Returns the buffer to keep encoding, which might be a larger copy of the original one.
+    private static ByteBuffer putAttribute(ByteBuffer buffer, byte tag, int length)
+            throws ProtocolException {
+        final int required = buffer.position() + 3 + length;
+        if (required - PREFIX_LENGTH > MAX_HEADER_LENGTH) {
+            throw new ProtocolException("Header too long");
+        }
+        if (required > buffer.capacity()) {
+            final ByteBuffer larger = ByteBuffer.allocate(Math.max(required, buffer.capacity() * 2));
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+        buffer.put(tag);
+        buffer.putShort((short) length);
+        return buffer;
+    }
+
+    // Gets the string stored in the value of an attribute.
+    private static String getString(ByteBuffer value) {
+        final byte[] bytes = new byte[value.remaining()];
+        value.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    // Gets the long stored in the value of an attribute.
+    private static long getLong(ByteBuffer value) throws ProtocolException {
+        if (value.remaining() != 8) {
+            throw new ProtocolException("Malformed attribute");
+        }
+        return value.getLong();
+    }
+
+    // Gets the int stored in the value of an attribute.
+    private static int getInt(ByteBuffer value) throws ProtocolException {
+        if (value.remaining() != 4) {
+            throw new ProtocolException("Malformed attribute");
+        }
+        return value.getInt();
+    }
+
+    // Gets the byte stored in the value of an attribute.
+    private static byte getByte(ByteBuffer value) throws ProtocolException {
+        if (value.remaining() != 1) {
+            throw new ProtocolException("Malformed attribute");
+        }
+        return value.get();
+    }
+
+    @Override
+    public String toString() {
+        return "FrameHeader{type=" + type + ", payloadLength=" + payloadLength +
+                ", name=" + name + ", mimeType=" + mimeType +
+                ", sequence=" + sequence + ", status=" + status +
+                ", uploadId=" + uploadId + ", offset=" + offset + ", totalLength=" + totalLength +
+                ", contentId=" + contentId + ", maxDimension=" + maxDimension +
+                ", quality=" + quality + ", encodings=" + encodings + ", encoding=" + encoding +
+                ", decodedLength=" + decodedLength + ", priority=" + priority +
+                ", relay=" + relay + ", relayHops=" + relayHops + "}";
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+// Reads and writes frames through blocking channels.
+public class FrameIO {
+
+    // Size of each region of a file mapped into memory to compute its checksum
+    private static final long MAP_SIZE = 8 * 1024 * 1024;
+    // Times in a row FileChannel.transferTo() may move nothing before giving up,
+    // and maximum milliseconds to wait between them
+    private static final int MAX_EMPTY_TRANSFERS = 16;
+    private static final long MAX_EMPTY_TRANSFER_DELAY = 100;
+
+    // Reads bytes until the buffer is full or the end of the stream is reached.
+    // Returns the number of bytes read.
+    public static int readPrefix(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        int total = 0;
+        int count;
+        while (buffer.hasRemaining() && ((count = channel.read(buffer)) != -1)) {
+            total += count;
+        }
+        return total;
+    }
+
+    // Reads the rest of a header whose prefix has already been read.
+    public static FrameHeader readHeader(ReadableByteChannel channel, ByteBuffer prefix)
+            throws IOException {
+        final ByteBuffer rest = ByteBuffer.allocate(FrameHeader.checkPrefix(prefix));
+        readFully(channel, rest);
+        rest.flip();
+        return FrameHeader.decode(prefix, rest);
+    }
+
+    // Reads a whole frame header, failing if the connection is closed before.
+    public static FrameHeader readHeader(ReadableByteChannel channel) throws IOException {
+        final ByteBuffer prefix = ByteBuffer.allocate(FrameHeader.PREFIX_LENGTH);
+        readFully(channel, prefix);
+        prefix.flip();
+        return readHeader(channel, prefix);
+    }
+
+    // Reads a frame without payload, such as an acknowledgement, and checks its trailer.
+    public static FrameHeader readControlFrame(ReadableByteChannel channel) throws IOException {
+        final FrameHeader header = readHeader(channel);
+        if (header.getPayloadLength() != 0) {
+            throw new ProtocolException("Unexpected payload");
+        }
+        if (!verifyTrailer(channel, new CRC32())) {
+            throw new ProtocolException("Checksum mismatch");
+        }
+        return header;
+    }
+
+    // Encodes a frame without payload (header and trailer) into a buffer ready to be written.
+    public static ByteBuffer encodeControlFrame(FrameHeader header) throws IOException {
+        final ByteBuffer encoded = header.encode();
+        final ByteBuffer frame = ByteBuffer.allocate(encoded.remaining() + FrameHeader.TRAILER_LENGTH);
+        frame.put(encoded);
+        // The CRC32 of an empty payload is 0
+        frame.putInt(0);
+        frame.flip();
+        return frame;
+    }
+
+    // Writes the header of a frame.
+    public static void writeHeader(WritableByteChannel channel, FrameHeader header) throws IOException {
+        writeFully(channel, header.encode());
+    }
+
+    // Receives the payload of a frame and writes it to the file from the given position.
+    // The payload goes through the given (usually direct) buffer and updates the checksum on its way.
+    public static void receivePayload(ReadableByteChannel channel, FileChannel file, long position,
+                                      long length, Checksum checksum, ByteBuffer buffer)
+            throws IOException {
+        receivePayload(channel, file, position, length, checksum, null, buffer);
+    }
+
+    // Receives the payload of a frame as above, also updating the given digest (if not null)
+    // with the bytes already written to the file.
+    public static void receivePayload(ReadableByteChannel channel, FileChannel file, long position,
+                                      long length, Checksum checksum, MessageDigest digest,
+                                      ByteBuffer buffer)
+            throws IOException {
+        receivePayload(channel, file, position, length, checksum, digest, null, buffer);
+    }
+
+    // Receives the payload of a frame as above, also reporting (if not null) how many bytes
+    // of the payload have already been written to the file.
+    public static void receivePayload(ReadableByteChannel channel, FileChannel file, long position,
+                                      long length, Checksum checksum, MessageDigest digest,
+                                      Progress progress, ByteBuffer buffer)
+            throws IOException {
+        long remaining = length;
+        while (remaining > 0) {
+            buffer.clear();
+            // Do not read beyond the payload, as the trailer comes next
+            if (remaining < buffer.capacity()) {
+                buffer.limit((int) remaining);
+            }
+            if (channel.read(buffer) == -1) {
+                throw new EOFException("Truncated payload");
+            }
+            buffer.flip();
+            Checksums.update(checksum, buffer.duplicate());
+            while (buffer.hasRemaining()) {
+                position += file.write(buffer, position);
+            }
+            if (digest != null) {
+                buffer.flip();
+                digest.update(buffer);
+            }
+            remaining -= buffer.limit();
+            if (progress != null) {
+                progress.onProgress(length - remaining);
+            }
+        }
+    }
+
+    // Gets notified as the payload of a frame is being received.
+    public interface Progress {
+
+        // The given number of bytes of the payload have been written to the file.
+        void onProgress(long received);
+    }
+
+    // Sends a region of a file as the payload of a frame, letting the kernel copy the data.
+    public static void sendPayload(FileChannel file, long position, long length,
+                                   WritableByteChannel channel) throws IOException {
+        final long end = position + length;
+        // The kernel may transfer less bytes than requested, so keep going until done
+        while (position < end) {
+            position += transferTo(file, position, end - position, channel);
+        }
+    }
+
+    // Moves up to the given number of bytes of a file into the channel, letting the kernel copy them.
+    // FileChannel.transferTo() moves nothing if the file ends before the position, in which case
+    // it never will, or if the channel cannot take more bytes yet, in which case it is tried again,
+    // waiting longer each time, so the thread does not spin. Returns the number of bytes moved.
+    public static long transferTo(FileChannel file, long position, long length,
+                                  WritableByteChannel channel) throws IOException {
+        int attempt = 0;
+        while (true) {
+            final long count = file.transferTo(position, length, channel);
+            if (count > 0) {
+                return count;
+            }
+            if (position >= file.size()) {
+                throw new EOFException("File ended at " + file.size() + " before sending byte " + position);
+            }
+            if (++attempt > MAX_EMPTY_TRANSFERS) {
+                throw new IOException("Channel not accepting more bytes");
+            }
+            try {
+                Thread.sleep(Math.min(1L << attempt, MAX_EMPTY_TRANSFER_DELAY));
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    // Computes the CRC32 of a region of a file.
+    // The file is mapped into memory, so its content is not copied if already cached.
+    public static long checksum(FileChannel file, long position, long length) throws IOException {
+        final CRC32 crc = new CRC32();
+        final long end = position + length;
+        while (position < end) {
+            final long size = Math.min(MAP_SIZE, end - position);
+            Checksums.update(crc, file.map(FileChannel.MapMode.READ_ONLY, position, size));
+            position += size;
+        }
+        return crc.getValue();
+    }
+
+    // Writes the trailer of a frame.
+    public static void writeTrailer(WritableByteChannel channel, long checksum) throws IOException {
+        final ByteBuffer trailer = ByteBuffer.allocate(FrameHeader.TRAILER_LENGTH);
+        trailer.putInt((int) checksum);
+        trailer.flip();
+        writeFully(channel, trailer);
+    }
+
+    // Reads the trailer of a frame and checks whether it matches the checksum of the received payload.
+    // The frame is consumed anyway, so the next one can be read even if this one was corrupt.
+    public static boolean verifyTrailer(ReadableByteChannel channel, Checksum checksum)
+            throws IOException {
+        final ByteBuffer trailer = ByteBuffer.allocate(FrameHeader.TRAILER_LENGTH);
+        readFully(channel, trailer);
+        trailer.flip();
+        return trailer.getInt() == (int) checksum.getValue();
+    }
+
+    // Reads bytes until the buffer is full.
+    public static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) == -1) {
+                throw new EOFException("Truncated frame");
+            }
+        }
+    }
+
+    // Writes all the remaining bytes of the buffer.
+    public static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.transfer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import labs.dadm.l0504_sockets.network.BandwidthScheduler;
+import labs.dadm.l0504_sockets.network.ConnectionPool;
+import labs.dadm.l0504_sockets.protocol.ContentId;
+import labs.dadm.l0504_sockets.protocol.FrameHeader;
+import labs.dadm.l0504_sockets.protocol.FrameIO;
+import labs.dadm.l0504_sockets.utils.Metrics;
+
+// Sends a large image split into chunks through several connections at once.
+// A single TCP connection rarely fills a lossy Wi-Fi link, as each lost packet slows it down,
+// whereas several connections recover from their losses independently.
+// Each connection takes the next chunk not sent yet, so the fastest ones send more chunks,
+// and the Server writes each chunk at its offset of the file (see ChunkAssembler).
+// Like TransferClient, it has no dependencies on Android, so it also runs on any JVM.
+public class ChunkedUpload {
+
+    // Generates the identifiers of the uploads
+    private static final Random random = new Random();
+
+    // Marks the end of the chunks sent through a connection
+    private static final long NO_MORE_CHUNKS = -1;
+
+    // Connections ready to be reused
+    final private ConnectionPool pool;
+    // Threads sending chunks through connections of their own, besides the calling one
+    final private ExecutorService uploaders;
+    // Threads reading the acknowledgements while the chunks are being sent
+    final private ExecutorService ackReaders;
+    final private InetSocketAddress address;
+    // File with the image, read at different positions by all the connections
+    final private FileChannel file;
+    final private long length;
+    final private String name;
+    final private String mimeType;
+    // Lets the Server check the image once all its chunks are put together
+    final private String contentId;
+
+    // Identifies the image on the Server, as its chunks arrive through different connections
+    final private long uploadId = random.nextLong();
+    // Maximum number of connections used at once
+    private int streams = 4;
+    private long chunkSize = 1024 * 1024;
+    // Shares the link with other transfers, if not null
+    private BandwidthScheduler scheduler;
+
+    // Index of the next chunk to be sent
+    final private AtomicInteger next = new AtomicInteger();
+    // Number of chunks acknowledged by the Server as correctly received
+    final private AtomicInteger acknowledged = new AtomicInteger();
+
+    public ChunkedUpload(ConnectionPool pool, ExecutorService uploaders, ExecutorService ackReaders,
+                         InetSocketAddress address, FileChannel file, String name, String mimeType)
+            throws IOException {
+        this.pool = pool;
+        this.uploaders = uploaders;
+        this.ackReaders = ackReaders;
+        this.address = address;
+        this.file = file;
+        this.name = name;
+        this.mimeType = mimeType;
+        length = file.size();
+        contentId = ContentId.of(file);
+    }
+
+    // Sets the maximum number of connections used at once.
+    public ChunkedUpload setStreams(int streams) {
+        this.streams = streams;
+        return this;
+    }
+
+    public ChunkedUpload setChunkSize(long chunkSize) {
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    // Shares the link with other transfers through the given scheduler, as bulk traffic.
+    public ChunkedUpload setScheduler(BandwidthScheduler scheduler) {
+        this.scheduler = scheduler;
+        return this;
+    }
+
+    public int getAcknowledged() {
+        return acknowledged.get();
+    }
+
+    // Sends all the chunks and waits for their acknowledgements.
+    // Returns whether the Server correctly received all of them.
+    public boolean send() throws IOException, InterruptedException {
+        final int chunks = (int) ((length + chunkSize - 1) / chunkSize);
+        // Do not open more connections than chunks
+        final int connections = Math.min(streams, chunks);
+        final List<Future<Void>> futures = new ArrayList<>();
+        for (int i = 1; i < connections; i++) {
+            futures.add(uploaders.submit(() -> {
+                sendChunks(chunks);
+                return null;
+            }));
+        }
+
+        // This thread also sends chunks through a connection of its own
+        IOException error = null;
+        try {
+            sendChunks(chunks);
+        } catch (IOException e) {
+            error = e;
+        }
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (error == null) {
+                    error = (e.getCause() instanceof IOException)
+                            ? (IOException) e.getCause()
+                            : new IOException(e.getCause());
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+        return acknowledged.get() == chunks;
+    }
+
+    // Sends chunks through a connection until there are none left.
+    // The acknowledgements are read on another thread while the chunks are being sent,
+    // so the Server never waits for the Client to read them.
+    private void sendChunks(int chunks) throws IOException, InterruptedException {
+        final SocketChannel channel = pool.acquire(address);
+        // Large images are bulk traffic, taking turns with the rest of the transfers
+        final BandwidthScheduler.Flow flow =
+                (scheduler != null) ? scheduler.open(address.getAddress(), FrameHeader.PRIORITY_BULK) : null;
+        // Sequences of the chunks sent, in the order their acknowledgements will arrive
+        final BlockingQueue<Long> sent = new LinkedBlockingQueue<>();
+        final Future<Void> ackReader = ackReaders.submit(() -> {
+            readAcknowledgements(channel, sent);
+            return null;
+        });
+        boolean reusable = false;
+        try {
+            try {
+                int index;
+                while ((index = next.getAndIncrement()) < chunks) {
+                    sendChunk(channel, flow, index);
+                    sent.put((long) index);
+                }
+            } finally {
+                // Let the reader finish, either after the last acknowledgement or when the channel closes
+                sent.put(NO_MORE_CHUNKS);
+            }
+            waitFor(ackReader);
+            // Nothing else is expected from the Server, so the connection can be reused
+            reusable = true;
+        } finally {
+            if (flow != null) {
+                flow.close();
+            }
+            if (reusable) {
+                pool.release(address, channel);
+            } else {
+                // Close the channel and its Socket, which also stops the reader
+                channel.close();
+            }
+        }
+    }
+
+    // Reads the acknowledgement of each chunk sent through the connection, in the same order,
+    // until told there are no more chunks, and counts those correctly received.
+    private void readAcknowledgements(SocketChannel channel, BlockingQueue<Long> sent)
+            throws IOException, InterruptedException {
+        long sequence;
+        while ((sequence = sent.take()) != NO_MORE_CHUNKS) {
+            final FrameHeader ack = FrameIO.readControlFrame(channel);
+            if ((ack.getType() != FrameHeader.TYPE_ACK) || (ack.getSequence() != sequence)) {
+                throw new ProtocolException("Unexpected acknowledgement");
+            }
+            if (ack.getStatus() == FrameHeader.STATUS_OK) {
+                acknowledged.incrementAndGet();
+            } else {
+                Metrics.failure("checksum");
+            }
+        }
+    }
+
+    // Waits for the reader of the acknowledgements, rethrowing what stopped it.
+    private static void waitFor(Future<Void> ackReader) throws IOException, InterruptedException {
+        try {
+            ackReader.get();
+        } catch (ExecutionException e) {
+            throw (e.getCause() instanceof IOException)
+                    ? (IOException) e.getCause()
+                    : new IOException(e.getCause());
+        }
+    }
+
+    // Sends a chunk within a frame, letting the kernel copy its content.
+    private void sendChunk(SocketChannel channel, BandwidthScheduler.Flow flow, int index)
+            throws IOException {
+        final long offset = index * chunkSize;
+        final long size = Math.min(chunkSize, length - offset);
+        final FrameHeader header = new FrameHeader(FrameHeader.TYPE_CHUNK, size)
+                .setName(name)
+                .setMimeType(mimeType)
+                .setPriority(FrameHeader.PRIORITY_BULK)
+                .setSequence(index)
+                .setUploadId(uploadId)
+                .setContentId(contentId)
+                .setOffset(offset)
+                .setTotalLength(length);
+
+        FrameIO.writeHeader(channel, header);
+        // Positional transfers do not change the position of the file, so they can run concurrently
+        final long start = System.nanoTime();
+        pool.getTuner().sendPayload(file, offset, size, channel, flow);
+        Metrics.SEND_THROUGHPUT.record(Metrics.throughput(size, System.nanoTime() - start));
+        Metrics.BYTES_SENT.addAndGet(size);
+        FrameIO.writeTrailer(channel, FrameIO.checksum(file, offset, size));
+    }
+}
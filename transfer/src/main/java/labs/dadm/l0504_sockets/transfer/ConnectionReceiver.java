@@ -0,0 +1,571 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.transfer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import labs.dadm.l0504_sockets.network.BandwidthScheduler;
+import labs.dadm.l0504_sockets.network.ChunkAssembler;
+import labs.dadm.l0504_sockets.network.PartialStore;
+import labs.dadm.l0504_sockets.protocol.ContentId;
+import labs.dadm.l0504_sockets.protocol.Encodings;
+import labs.dadm.l0504_sockets.protocol.FrameHeader;
+import labs.dadm.l0504_sockets.protocol.FrameIO;
+import labs.dadm.l0504_sockets.utils.BufferPool;
+import labs.dadm.l0504_sockets.utils.Metrics;
+import labs.dadm.l0504_sockets.utils.TransferStats;
+
+// Receives the images sent by a Client accepted by a TransferServer.
+// Each image is expected within a frame (see FrameHeader), whose length and checksum are verified.
+// It is executed by one of the workers of the TransferServer, so several Clients can be served at once.
+public class ConnectionReceiver implements Runnable {
+
+    // Maximum number of bytes moved by each call to FileChannel.transferFrom()
+    private static final long TRANSFER_SIZE = 1024 * 1024;
+
+    // Server that accepted the Client, which holds what is shared by all the connections
+    final private TransferServer server;
+    final private TransferListener listener;
+    // Socket connected to the Client
+    final private Socket socket;
+    // Identifies this connection, so concurrent transfers do not share temporary files
+    final private long id;
+
+    // Moment when the connection was accepted, and whether an image has been received since then
+    final private long accepted = System.nanoTime();
+    private boolean completed;
+    // Moment when bytes last arrived, to close the connection once idle for too long
+    private volatile long lastActivity;
+    // Whether the Server is busy with what it has received, while the Client waits for its answer
+    private volatile boolean busy;
+    // Turn of the connection when sharing the incoming link, if the Server does
+    private BandwidthScheduler.Flow flow;
+    // Number of bytes of the payloads received so far through the connection
+    private long received;
+
+    ConnectionReceiver(TransferServer server, Socket socket, long id) {
+        this.server = server;
+        listener = server.getListener();
+        this.socket = socket;
+        this.id = id;
+    }
+
+    public Socket getSocket() {
+        return socket;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    @Override
+    public void run() {
+
+        // Notify a new Client is being served
+        listener.onClientAccepted(id);
+        Metrics.ACTIVE_CONNECTIONS.incrementAndGet();
+        final BandwidthScheduler scheduler = server.getScheduler();
+        if (scheduler != null) {
+            flow = scheduler.open(socket.getInetAddress(), FrameHeader.PRIORITY_INTERACTIVE);
+        }
+
+        // Get the incoming images and save them
+        receiveImages(server.getDirectory());
+        if (flow != null) {
+            flow.close();
+        }
+        // Close the socket
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        Metrics.ACTIVE_CONNECTIONS.decrementAndGet();
+        listener.onClientClosed(id, received);
+    }
+
+    // Hands the temporary file just received to the sink, restoring its original content first
+    // if it was compressed, and notifies the listener.
+    // The decoded length is the length of the original content stated by the Client, or 0 if unknown.
+    // The payload ID is the content ID of the received payload, if computed while receiving it,
+    // so the image does not need to be read again to identify it.
+    // Returns whether the image was stored, as payloads may not decode to what the Client stated.
+    public static boolean publish(StorageSink sink, TransferListener listener, long connectionId, File tmp,
+                                  byte encoding, long decodedLength, String payloadId, String mimeType,
+                                  String sender) {
+        final String contentId;
+        final File file;
+        try {
+            Encodings.decode(tmp, encoding, decodedLength);
+            // Compressed payloads are identified by their content, but the image is not
+            if ((payloadId == null) || (encoding != FrameHeader.ENCODING_IDENTITY)) {
+                final FileInputStream fis = new FileInputStream(tmp);
+                try {
+                    contentId = ContentId.of(fis.getChannel());
+                } finally {
+                    fis.close();
+                }
+            } else {
+                contentId = payloadId;
+            }
+            // Identical images are stored only once
+            file = sink.store(tmp, contentId,
+                    (encoding != FrameHeader.ENCODING_IDENTITY) ? payloadId : null, mimeType, sender);
+            Metrics.IMAGES_RECEIVED.incrementAndGet();
+        } catch (IOException e) {
+            e.printStackTrace();
+            Metrics.failure(e);
+            tmp.delete();
+            return false;
+        }
+        listener.onImageStored(connectionId, contentId, file);
+        return true;
+    }
+
+    // Creates the answer to a resume query, telling whether the image is already stored
+    // or how much of it has been received.
+    public static FrameHeader answerResumeQuery(FrameHeader query, PartialStore partials, StorageSink sink)
+            throws ProtocolException {
+        final FrameHeader answer = new FrameHeader(FrameHeader.TYPE_RESUME_OFFSET, 0)
+                .setSequence(query.getSequence());
+        if (sink.contains(query.getContentId())) {
+            // The Client does not need to send the image at all
+            return answer.setStatus(FrameHeader.STATUS_STORED);
+        }
+        return answer.setOffset(partials.getOffset(query.getContentId()));
+    }
+
+    // Receives the images sent through the socket and saves them into the given directory.
+    // Clients send batches of images, each one within a frame, and may keep the connection open
+    // to send more batches later on. Older Clients just send the raw bytes of a single image.
+    // Each image is first stored in a temporary file so concurrent transfers do not overwrite each other.
+    private void receiveImages(File directory) {
+
+        File file = null;
+        // Get the input channel
+        final SocketChannel channel = socket.getChannel();
+        final ScheduledFuture<?> watchdog = watch(channel);
+        if (watchdog == null) {
+            // The Server is being stopped, so do not wait for any image
+            return;
+        }
+        try {
+            // Read the beginning of the incoming data to determine whether it is a frame
+            final ByteBuffer prefix = ByteBuffer.allocate(FrameHeader.PREFIX_LENGTH);
+            if (readPrefix(channel, prefix) == 0) {
+                return;
+            }
+            prefix.flip();
+            Metrics.TIME_TO_FIRST_BYTE.record(Metrics.microsSince(accepted));
+
+            if (!FrameHeader.isFrame(prefix)) {
+                file = new File(directory, "file_received_" + id + ".tmp");
+                final TransferStats stats = new TransferStats();
+                final long count = receiveRaw(channel, prefix, file);
+                listener.onPayloadMeasured(id, server.isZeroCopy() ? "transferFrom" : "byte[] copy",
+                        stats.stop(count));
+                received = count;
+                recordImage(count, stats.getStartNanos());
+                publish(server.getSink(), listener, id, file, FrameHeader.ENCODING_IDENTITY, 0, null, null,
+                        getSender());
+                return;
+            }
+
+            // Keep receiving frames until the Client closes the connection between two of them
+            long frames = 0;
+            while (true) {
+                final TransferStats stats = new TransferStats();
+                final FrameHeader header = FrameIO.readHeader(channel, prefix);
+                if (header.getType() == FrameHeader.TYPE_HELLO) {
+                    // Tell the Client in which format the images should be sent
+                    answerHello(channel, header);
+                } else if (header.getType() == FrameHeader.TYPE_RESUME_QUERY) {
+                    // Tell the Client how much of the image is already here, so it only sends the rest
+                    answerResumeQuery(channel, header);
+                } else {
+                    final boolean valid;
+                    boolean stored = true;
+                    if (header.getType() == FrameHeader.TYPE_CHUNK) {
+                        // Chunks are written straight into the file of their image
+                        valid = receiveChunk(channel, header);
+                    } else {
+                        file = new File(directory, "file_received_" + id + "_" + frames++ + ".tmp");
+                        // Identify the image by its content while receiving it
+                        final MessageDigest digest = ContentId.newDigest();
+                        valid = (header.getContentId() != null)
+                                ? receiveResumable(channel, header, file)
+                                : receiveFrame(channel, header, file, digest);
+
+                        // Store the image unless it got corrupted on its way
+                        if (valid) {
+                            setBusy(true);
+                            try {
+                                stored = publish(server.getSink(), listener, id, file, header.getEncoding(),
+                                        header.getDecodedLength(),
+                                        (header.getContentId() != null)
+                                                ? header.getContentId()
+                                                : ContentId.toHex(digest.digest()),
+                                        header.getMimeType(), getSender());
+                            } finally {
+                                setBusy(false);
+                            }
+                        } else {
+                            file.delete();
+                        }
+                        file = null;
+                    }
+                    listener.onPayloadMeasured(id, "frame", stats.stop(header.getPayloadLength()));
+                    received += header.getPayloadLength();
+                    if (valid) {
+                        recordImage(header.getPayloadLength(), stats.getStartNanos());
+                    } else {
+                        Metrics.failure("checksum");
+                    }
+
+                    // Acknowledge the image, while the Client may be already sending the next one.
+                    // Images that could not be decoded are reported as corrupt, as they were not stored
+                    FrameIO.writeFully(channel, FrameIO.encodeControlFrame(
+                            new FrameHeader(FrameHeader.TYPE_ACK, 0)
+                                    .setSequence(header.getSequence())
+                                    .setStatus((valid && stored)
+                                            ? FrameHeader.STATUS_OK
+                                            : FrameHeader.STATUS_CORRUPT)));
+                }
+
+                // Get the beginning of the next frame, if any
+                prefix.clear();
+                if (readPrefix(channel, prefix) == 0) {
+                    break;
+                }
+                prefix.flip();
+            }
+
+        } catch (IOException e) {
+            e.printStackTrace();
+            Metrics.failure(e);
+            // Do not leave partial files behind
+            if (file != null) {
+                file.delete();
+            }
+        } finally {
+            watchdog.cancel(false);
+        }
+    }
+
+    // Records the metrics of a payload correctly received, which started arriving at the given moment.
+    private void recordImage(long length, long startNanos) {
+        Metrics.BYTES_RECEIVED.addAndGet(length);
+        Metrics.RECEIVE_THROUGHPUT.record(Metrics.throughput(length, System.nanoTime() - startNanos));
+        if (!completed) {
+            completed = true;
+            Metrics.ACCEPT_TO_COMPLETE.record(Metrics.microsSince(accepted));
+        }
+    }
+
+    // Reports the progress of the payload being received to the listener,
+    // and to what follows the image if anything.
+    private FrameIO.Progress track(FrameIO.Progress image) {
+        final FrameIO.Progress reporter = new ProgressReporter(listener, id, received, image);
+        return bytes -> {
+            touch();
+            reporter.onProgress(bytes);
+        };
+    }
+
+    // Prepares forwarding the image of the given frame, sent whole, to the next Servers of its relay,
+    // or returns null if it is not forwarded.
+    private RelayForwarder openRelay(FrameHeader header) throws IOException {
+        return RelayForwarder.open(server, header, header.getPayloadLength());
+    }
+
+    // Forwards a whole image already received to the next Servers of its relay, if any.
+    private void relayFile(FrameHeader header, File file) throws IOException {
+        final RelayForwarder relay = RelayForwarder.open(server, header, file.length());
+        if (relay != null) {
+            relay.forwardFile(file);
+        }
+    }
+
+    // Gets the channel to read the payload from, which also forwards it to the next Servers if relayed.
+    private static ReadableByteChannel relayed(ReadableByteChannel channel, RelayForwarder relay) {
+        return (relay != null) ? relay.wrap(channel) : channel;
+    }
+
+    // Gets the channel to read the payload of the given frame from, which takes turns with the other
+    // connections according to the priority stated by the Client if the Server shares the link.
+    private ReadableByteChannel paced(ReadableByteChannel channel, FrameHeader header) {
+        if (flow == null) {
+            return channel;
+        }
+        flow.setPriority(header.getPriority());
+        return flow.wrap(channel);
+    }
+
+    // Waits for the beginning of the next frame.
+    // Returns the number of bytes read, which is 0 if the Client closed the connection or timed out.
+    private int readPrefix(SocketChannel channel, ByteBuffer prefix) throws IOException {
+        try {
+            final int count = FrameIO.readPrefix(channel, prefix);
+            touch();
+            return count;
+        } catch (ClosedChannelException e) {
+            // The connection was idle for too long and has been closed
+            return 0;
+        }
+    }
+
+    // Closes the connection once no bytes arrive for longer than the idle timeout, be it between frames
+    // or in the middle of one, as blocking channels ignore SO_TIMEOUT.
+    // Returns the task checking it, or null if the Server is being stopped.
+    private ScheduledFuture<?> watch(SocketChannel channel) {
+        final long timeout = TimeUnit.SECONDS.toNanos(server.getIdleTimeout());
+        // Check a few times per timeout, so idle connections do not last much longer than it
+        final long period = Math.max(1, TimeUnit.NANOSECONDS.toMillis(timeout) / 4);
+        touch();
+        try {
+            return server.getTimer().scheduleWithFixedDelay(() -> {
+                if (!busy && (System.nanoTime() - lastActivity > timeout)) {
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+    }
+
+    // Records that bytes have just arrived through the connection.
+    private void touch() {
+        lastActivity = System.nanoTime();
+    }
+
+    // Pauses the watchdog while the Server stores or forwards an image, as the Client sends nothing
+    // until it gets the acknowledgement, however long it takes. The idle time counts again afterwards.
+    private void setBusy(boolean busy) {
+        this.busy = busy;
+        touch();
+    }
+
+    // Receives the payload of a frame with an image and saves it into the given file,
+    // updating the digest with its content. Returns whether the payload matches the checksum sent by the Client.
+    private boolean receiveFrame(SocketChannel channel, FrameHeader header, File file,
+                                 MessageDigest digest) throws IOException {
+        if (header.getType() != FrameHeader.TYPE_IMAGE) {
+            throw new ProtocolException("Unexpected frame type " + header.getType());
+        }
+        final long length = header.getPayloadLength();
+        // Reject the image before receiving it if it does not fit on storage
+        if (file.getParentFile().getUsableSpace() < length) {
+            throw new ProtocolException("Not enough space to store " + length + " bytes");
+        }
+
+        final RandomAccessFile output = new RandomAccessFile(file, "rw");
+        final TransferListener.ImageProgress image = listener.onImageStarted(id, header, file, 0);
+        final ByteBuffer buffer = BufferPool.acquire();
+        final RelayForwarder relay = openRelay(header);
+        boolean valid = false;
+        try {
+            // Allocate the whole file beforehand
+            output.setLength(length);
+            // Receive the payload and check its integrity on the fly,
+            // following the image as it arrives and forwarding it to the next Servers if relayed
+            final CRC32 crc = new CRC32();
+            FrameIO.receivePayload(relayed(paced(channel, header), relay), output.getChannel(), 0, length,
+                    crc, digest, track(image), buffer);
+            valid = FrameIO.verifyTrailer(channel, crc);
+            return valid;
+        } finally {
+            if (relay != null) {
+                relay.finish(valid);
+            }
+            if (image != null) {
+                image.finish();
+            }
+            BufferPool.release(buffer);
+            // Close all channels
+            output.close();
+        }
+    }
+
+    // Answers a Client asking in which format the images should be sent.
+    private void answerHello(SocketChannel channel, FrameHeader request) throws IOException {
+        if ((request.getPayloadLength() != 0) || !FrameIO.verifyTrailer(channel, new CRC32())) {
+            throw new ProtocolException("Malformed hello");
+        }
+        FrameIO.writeFully(channel, FrameIO.encodeControlFrame(server.getHello()));
+    }
+
+    // Answers a query about an image partially received through a connection that dropped.
+    private void answerResumeQuery(SocketChannel channel, FrameHeader query) throws IOException {
+        if ((query.getPayloadLength() != 0) || !FrameIO.verifyTrailer(channel, new CRC32())) {
+            throw new ProtocolException("Malformed resume query");
+        }
+        FrameIO.writeFully(channel, FrameIO.encodeControlFrame(
+                answerResumeQuery(query, server.getPartials(), server.getSink())));
+    }
+
+    // Gets the address of the Client, to record where each image came from.
+    private String getSender() {
+        return socket.getInetAddress().getHostAddress();
+    }
+
+    // Receives the rest of an image, from the offset the Client resumes from, into its partial file.
+    // If the connection drops, the bytes received so far are kept for the Client to resume again.
+    // Returns whether the image is complete, matches its content ID, and has been moved to the given file.
+    private boolean receiveResumable(SocketChannel channel, FrameHeader header, File file)
+            throws IOException {
+        if (header.getType() != FrameHeader.TYPE_IMAGE) {
+            throw new ProtocolException("Unexpected frame type " + header.getType());
+        }
+        final PartialStore partials = server.getPartials();
+        final PartialStore.Session session = partials.open(header);
+        final TransferListener.ImageProgress image =
+                listener.onImageStarted(id, header, session.getFile(), header.getOffset());
+        final ByteBuffer buffer = BufferPool.acquire();
+        // A resumed image can only be forwarded once complete, as the next Servers lack its beginning
+        final RelayForwarder relay = (header.getOffset() == 0) ? openRelay(header) : null;
+        boolean valid = false;
+        try {
+            // Receive the payload and check its integrity on the fly,
+            // following the image as it arrives and forwarding it to the next Servers if relayed
+            final CRC32 crc = new CRC32();
+            FrameIO.receivePayload(relayed(paced(channel, header), relay), session.getChannel(),
+                    header.getOffset(), header.getPayloadLength(), crc, session.getDigest(), track(image),
+                    buffer);
+            session.advance(header.getPayloadLength());
+            if (!FrameIO.verifyTrailer(channel, crc)) {
+                partials.discard(session);
+                return false;
+            }
+            valid = partials.complete(session, file);
+            if (valid && (relay == null) && (header.getRelay() != null)) {
+                setBusy(true);
+                try {
+                    relayFile(header, file);
+                } finally {
+                    setBusy(false);
+                }
+            }
+            return valid;
+        } finally {
+            if (relay != null) {
+                relay.finish(valid);
+            }
+            if (image != null) {
+                image.finish();
+            }
+            BufferPool.release(buffer);
+            partials.release(session);
+        }
+    }
+
+    // Receives a chunk of an image and writes it at its offset of the file shared by all the chunks.
+    // Returns whether the payload matches the checksum sent by the Client,
+    // and, for the last chunk missing, whether the whole image matches its content ID.
+    private boolean receiveChunk(SocketChannel channel, FrameHeader header) throws IOException {
+        final ChunkAssembler assembler = server.getAssembler();
+        final ChunkAssembler.Upload upload = assembler.open(header);
+        final ByteBuffer buffer = BufferPool.acquire();
+        boolean valid;
+        final boolean complete;
+        try {
+            // Receive the payload and check its integrity on the fly
+            final CRC32 crc = new CRC32();
+            FrameIO.receivePayload(paced(channel, header), upload.getChannel(), header.getOffset(),
+                    header.getPayloadLength(), crc, null, track(null), buffer);
+            valid = FrameIO.verifyTrailer(channel, crc);
+            complete = valid && assembler.complete(upload, header);
+        } finally {
+            BufferPool.release(buffer);
+            assembler.release(upload);
+        }
+        // Store the image once all its chunks have been received, which requires hashing it whole
+        if (complete) {
+            setBusy(true);
+            try {
+                if (upload.isIntact()) {
+                    valid = publish(server.getSink(), listener, id, upload.getFile(),
+                            FrameHeader.ENCODING_IDENTITY, 0, header.getContentId(), header.getMimeType(),
+                            getSender());
+                } else {
+                    Metrics.failure("content_id");
+                    valid = false;
+                }
+            } finally {
+                setBusy(false);
+            }
+        }
+        return valid;
+    }
+
+    // Receives the raw bytes of an image, sent by older Clients until closing the connection,
+    // and saves them into the given file. Returns the number of bytes of the image.
+    private long receiveRaw(SocketChannel channel, ByteBuffer prefix, File file) throws IOException {
+        final FileOutputStream fos = new FileOutputStream(file);
+        try {
+            // The bytes read to check whether it was a frame are already part of the image
+            final long start = prefix.remaining();
+            FrameIO.writeFully(fos.getChannel(), prefix);
+            // Move the bytes from the socket to the file without copying them into the JVM
+            if (server.isZeroCopy()) {
+                return start + transferImage(channel, fos.getChannel(), start);
+            } else {
+                return start + copyImage(socket.getInputStream(), fos);
+            }
+        } finally {
+            // Close all channels
+            fos.close();
+        }
+    }
+
+    // Reads and writes the incoming image in chunks of 1024 bytes.
+    private long copyImage(InputStream is, FileOutputStream fos) throws IOException {
+        long total = 0;
+        byte[] buffer = new byte[1024];
+        int count;
+        while ((count = is.read(buffer)) != -1) {
+            touch();
+            fos.write(buffer, 0, count);
+            total += count;
+        }
+        fos.flush();
+        return total;
+    }
+
+    // Transfers the incoming image from the socket channel to the file channel from the given position.
+    // The bytes never reach the JVM heap, and each call moves up to TRANSFER_SIZE bytes.
+    private long transferImage(SocketChannel channel, FileChannel file, long start) throws IOException {
+        long total = 0;
+        long count;
+        // A blocking channel only transfers less bytes than requested when reaching the end
+        while ((count = file.transferFrom(channel, start + total, TRANSFER_SIZE)) > 0) {
+            touch();
+            total += count;
+        }
+        return total;
+    }
+
+}
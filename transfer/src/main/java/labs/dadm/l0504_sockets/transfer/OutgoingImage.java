@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.transfer;
+
+import labs.dadm.l0504_sockets.protocol.FrameHeader;
+
+// Image sent back to back with others through a single connection by a TransferClient.
+// Where its content comes from is only known by the SourceProvider, which may extend this class.
+public class OutgoingImage {
+
+    // Name and type of the image, if known
+    private String name;
+    private String mimeType;
+    // How the content sent has been encoded
+    private byte encoding = FrameHeader.ENCODING_IDENTITY;
+    // Length of the content once decoded, or 0 if unknown
+    private long decodedLength;
+    // Identifies the content sent, so its transfer can be resumed
+    private String contentId;
+    // Whether the Server has already answered, so it is not sent again
+    private volatile boolean answered;
+
+    public OutgoingImage(String name, String mimeType) {
+        this.name = name;
+        this.mimeType = mimeType;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public OutgoingImage setName(String name) {
+        this.name = name;
+        return this;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    public OutgoingImage setMimeType(String mimeType) {
+        this.mimeType = mimeType;
+        return this;
+    }
+
+    public byte getEncoding() {
+        return encoding;
+    }
+
+    public OutgoingImage setEncoding(byte encoding) {
+        this.encoding = encoding;
+        return this;
+    }
+
+    public long getDecodedLength() {
+        return decodedLength;
+    }
+
+    public OutgoingImage setDecodedLength(long decodedLength) {
+        this.decodedLength = decodedLength;
+        return this;
+    }
+
+    public String getContentId() {
+        return contentId;
+    }
+
+    public OutgoingImage setContentId(String contentId) {
+        this.contentId = contentId;
+        return this;
+    }
+
+    public boolean isAnswered() {
+        return answered;
+    }
+
+    void setAnswered() {
+        answered = true;
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.transfer;
+
+import labs.dadm.l0504_sockets.protocol.FrameIO;
+
+// Reports to the listener how many bytes a connection has received so far, while a payload is received.
+// Reports are limited to a few per second, as the UI only displays them once per frame anyway.
+// Progress is also forwarded to whatever follows the image being received, such as its previews.
+public class ProgressReporter implements FrameIO.Progress {
+
+    // Minimum time between two reports
+    private static final long INTERVAL = 100_000_000L;
+
+    final private TransferListener listener;
+    final private long connectionId;
+    // Bytes received through the connection before the current payload
+    final private long base;
+    // Follows the image being received, if any
+    final private FrameIO.Progress image;
+
+    // Moment of the next report
+    private long next;
+
+    public ProgressReporter(TransferListener listener, long connectionId, long base,
+                            FrameIO.Progress image) {
+        this.listener = listener;
+        this.connectionId = connectionId;
+        this.base = base;
+        this.image = image;
+        next = System.nanoTime() + INTERVAL;
+    }
+
+    @Override
+    public void onProgress(long received) {
+        if (image != null) {
+            image.onProgress(received);
+        }
+        final long now = System.nanoTime();
+        if (now >= next) {
+            next = now + INTERVAL;
+            listener.onProgress(connectionId, base + received);
+        }
+    }
+}
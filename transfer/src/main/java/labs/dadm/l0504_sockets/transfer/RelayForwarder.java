@@ -0,0 +1,356 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.transfer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import labs.dadm.l0504_sockets.protocol.Checksums;
+import labs.dadm.l0504_sockets.protocol.FrameHeader;
+import labs.dadm.l0504_sockets.protocol.FrameIO;
+import labs.dadm.l0504_sockets.utils.BufferPool;
+import labs.dadm.l0504_sockets.utils.Metrics;
+
+// Forwards an image to the next Servers of its relay (see RelayPlan) while it is being received,
+// so they get each piece as soon as it arrives instead of once the whole image is stored.
+// Only the Servers allowed by the policy of the Server are reached, and only while the relay
+// has got hops left.
+// Each branch gets its own frame through a pooled connection, written by its own thread from a queue
+// of the pieces received, so a slow branch does not slow down the reception of the image.
+// Each next Server gets as many branches at once as workers has the Server, so it does not
+// reject them. A branch falling too far behind, or not progressing within the idle timeout
+// of the Server, is dropped, without affecting the reception of the image nor the other branches.
+// Each branch awaits its acknowledgement on its own, so the connection can be reused.
+final class RelayForwarder {
+
+    // Bytes received that may wait to be written to a branch before it is considered too slow
+    private static final long MAX_BACKLOG = 8 * 1024 * 1024;
+    // Mark the end of the payload of a branch, and that the branch has to be discarded
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+    private static final ByteBuffer ABORT = ByteBuffer.allocate(0);
+
+    final private TransferServer server;
+    final private List<Branch> branches = new ArrayList<>();
+    // Checksum of the payload forwarded so far
+    final private CRC32 crc = new CRC32();
+
+    private RelayForwarder(TransferServer server) {
+        this.server = server;
+    }
+
+    // Splits the Servers of the relay of the given frame allowed by the policy of the Server
+    // into branches, each one to get the image, whose payload takes the given number of bytes.
+    // Returns null if the image is not forwarded at all.
+    static RelayForwarder open(TransferServer server, FrameHeader header, long length) throws IOException {
+        if ((header.getRelay() == null) || (header.getRelayHops() <= 0)) {
+            return null;
+        }
+        final List<InetSocketAddress> requested = RelayPlan.parse(header.getRelay());
+        final List<InetSocketAddress> allowed = RelayPlan.filter(requested, server.getRelayPolicy());
+        if (allowed.size() < requested.size()) {
+            Metrics.failure("relay_refused");
+        }
+        if (allowed.isEmpty()) {
+            return null;
+        }
+        final RelayForwarder forwarder = new RelayForwarder(server);
+        for (RelayPlan.Hop hop : RelayPlan.split(allowed, server.getRelayFanout())) {
+            final FrameHeader forwarded = new FrameHeader(FrameHeader.TYPE_IMAGE, length)
+                    .setName(header.getName())
+                    .setMimeType(header.getMimeType())
+                    .setEncoding(header.getEncoding())
+                    .setDecodedLength(header.getDecodedLength())
+                    .setPriority(header.getPriority())
+                    .setRelay(RelayPlan.format(hop.getDownstream()))
+                    .setRelayHops((byte) (header.getRelayHops() - 1));
+            if (header.getContentId() != null) {
+                forwarded.setContentId(header.getContentId()).setTotalLength(length);
+            }
+            forwarder.branches.add(forwarder.new Branch(hop.getAddress(), forwarded));
+        }
+        return forwarder;
+    }
+
+    // Wraps a channel so what is read from it is also forwarded to the branches.
+    ReadableByteChannel wrap(ReadableByteChannel channel) {
+        start();
+        return new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                final int count = channel.read(dst);
+                if (count > 0) {
+                    final ByteBuffer read = dst.duplicate();
+                    read.limit(dst.position());
+                    read.position(dst.position() - count);
+                    forward(read);
+                }
+                return count;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    // Queues a copy of the given bytes for all the branches still working,
+    // as the buffer they were received into is reused for the next ones.
+    private void forward(ByteBuffer data) {
+        Checksums.update(crc, data.duplicate());
+        final ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+        copy.put(data).flip();
+        for (Branch branch : branches) {
+            branch.offer(copy.duplicate());
+        }
+    }
+
+    // Forwards the whole content of a file, received before it could be forwarded.
+    // Each branch opens the file right away, so it keeps reading the same content
+    // even if the file is moved or replaced before the branch is done.
+    void forwardFile(File file) {
+        for (Branch branch : branches) {
+            try {
+                branch.source = new FileInputStream(file);
+            } catch (IOException e) {
+                e.printStackTrace();
+                branch.abort();
+            }
+        }
+        start();
+    }
+
+    // Completes the frame of each branch if the image was correctly received.
+    // Otherwise, the branches are dropped, so they discard what they received.
+    // The branches finish on their own, so the image is acknowledged to its Client right away.
+    void finish(boolean valid) {
+        for (Branch branch : branches) {
+            if (valid) {
+                branch.end(crc.getValue());
+            } else {
+                branch.abort();
+            }
+        }
+    }
+
+    // Starts the thread of each branch.
+    private void start() {
+        for (Branch branch : branches) {
+            try {
+                server.getRelayWorkers().execute(branch);
+            } catch (RejectedExecutionException e) {
+                // The Server is stopping
+                branch.abort();
+            }
+        }
+    }
+
+    // Sends the image to the first Server of a branch, from the file it was stored into if any,
+    // or from the pieces queued as they are received otherwise, and awaits its acknowledgement.
+    private final class Branch implements Runnable {
+
+        // First Server of the branch, not resolved yet
+        final private InetSocketAddress address;
+        final private FrameHeader header;
+        final private LinkedBlockingQueue<ByteBuffer> queue = new LinkedBlockingQueue<>();
+        // Bytes queued but not written yet
+        final private AtomicLong backlog = new AtomicLong();
+        // File to send the image from, if already received
+        private FileInputStream source;
+        private volatile long checksum;
+        private volatile boolean aborted;
+        private volatile SocketChannel channel;
+
+        Branch(InetSocketAddress address, FrameHeader header) {
+            this.address = address;
+            this.header = header;
+        }
+
+        // Queues a piece of the payload, unless the branch is too far behind and gets dropped.
+        void offer(ByteBuffer data) {
+            if (aborted) {
+                return;
+            }
+            if (backlog.addAndGet(data.remaining()) > MAX_BACKLOG) {
+                Metrics.failure("relay_slow");
+                abort();
+                return;
+            }
+            queue.add(data);
+        }
+
+        // Marks the end of the payload, whose checksum is the given one.
+        void end(long checksum) {
+            this.checksum = checksum;
+            queue.add(END);
+        }
+
+        // Discards the branch, closing its connection so the Server discards what it received.
+        void abort() {
+            aborted = true;
+            queue.add(ABORT);
+            close();
+        }
+
+        @Override
+        public void run() {
+            if (aborted) {
+                return;
+            }
+            final Semaphore lanes = server.getRelayLanes(address);
+            final InetSocketAddress resolved = new InetSocketAddress(address.getHostName(), address.getPort());
+            SocketChannel channel = null;
+            boolean released = false;
+            boolean laneTaken = false;
+            try {
+                laneTaken = lanes.tryAcquire(server.getIdleTimeout(), TimeUnit.SECONDS);
+                if (!laneTaken) {
+                    Metrics.failure("relay_busy");
+                    return;
+                }
+                if (aborted) {
+                    return;
+                }
+                channel = server.getRelayPool().acquire(resolved);
+                this.channel = channel;
+                // The branch may have been aborted while connecting
+                if (aborted) {
+                    return;
+                }
+                FrameIO.writeHeader(channel, header);
+                if (source != null) {
+                    sendFile(channel);
+                } else if (!sendQueued(channel)) {
+                    return;
+                }
+                FrameIO.writeTrailer(channel, checksum);
+
+                final ScheduledFuture<?> closer = arm();
+                final FrameHeader ack;
+                try {
+                    ack = FrameIO.readControlFrame(channel);
+                } finally {
+                    closer.cancel(false);
+                }
+                if ((ack.getType() == FrameHeader.TYPE_ACK) && (ack.getStatus() == FrameHeader.STATUS_OK)) {
+                    Metrics.IMAGES_RELAYED.incrementAndGet();
+                } else {
+                    Metrics.failure("relay_checksum");
+                }
+                // Nothing else is expected from the branch, so the connection can be reused
+                server.getRelayPool().release(resolved, channel);
+                released = true;
+            } catch (IOException e) {
+                // Aborted branches fail because their connection was closed on purpose
+                if (!aborted) {
+                    e.printStackTrace();
+                    Metrics.failure("relay");
+                }
+            } catch (InterruptedException | RejectedExecutionException e) {
+                // The Server is stopping
+            } finally {
+                if (laneTaken) {
+                    lanes.release();
+                }
+                if (!released) {
+                    aborted = true;
+                    close();
+                }
+                if (source != null) {
+                    try {
+                        source.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+
+        // Writes the pieces queued until the end of the payload.
+        // Returns false if the branch was aborted instead.
+        private boolean sendQueued(SocketChannel channel) throws IOException, InterruptedException {
+            while (true) {
+                final ByteBuffer data = queue.take();
+                if (data == ABORT) {
+                    return false;
+                }
+                if (data == END) {
+                    return true;
+                }
+                final int length = data.remaining();
+                write(channel, data);
+                backlog.addAndGet(-length);
+            }
+        }
+
+        // Writes the whole content of the file, computing its checksum along the way.
+        private void sendFile(SocketChannel channel) throws IOException {
+            final FileChannel file = source.getChannel();
+            final CRC32 crc = new CRC32();
+            final ByteBuffer buffer = BufferPool.acquire();
+            try {
+                while (file.read(buffer) != -1) {
+                    buffer.flip();
+                    Checksums.update(crc, buffer.duplicate());
+                    write(channel, buffer);
+                    buffer.clear();
+                }
+            } finally {
+                BufferPool.release(buffer);
+            }
+            checksum = crc.getValue();
+        }
+
+        // Writes a piece of the payload, which has to be done within the idle timeout of the Server.
+        private void write(SocketChannel channel, ByteBuffer data) throws IOException {
+            final int length = data.remaining();
+            final ScheduledFuture<?> closer = arm();
+            try {
+                FrameIO.writeFully(channel, data);
+            } finally {
+                closer.cancel(false);
+            }
+            Metrics.BYTES_RELAYED.addAndGet(length);
+        }
+
+        // Closes the connection once the idle timeout of the Server expires,
+        // as blocking channels ignore the timeout of their sockets.
+        private ScheduledFuture<?> arm() {
+            return server.getTimer().schedule(this::close, server.getIdleTimeout(), TimeUnit.SECONDS);
+        }
+
+        // Closes the connection of the branch, if already open.
+        private void close() {
+            final SocketChannel open = channel;
+            if (open != null) {
+                try {
+                    open.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
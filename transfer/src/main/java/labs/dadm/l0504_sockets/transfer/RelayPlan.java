@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.transfer;
+
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Spreads an image among several Servers, so the Client uploads it just once.
+// The Client sends the image to the first Server along with the addresses of the rest,
+// and each Server splits the addresses it receives into a few branches, forwarding the image
+// to the first Server of each branch along with the rest of that branch as it arrives.
+// So the Servers form a tree, and the time to reach all of them grows with its depth,
+// which is the logarithm of their number, rather than with their number.
+// Servers only forward images to those their policy allows, so a Client cannot use them
+// to reach any other host, and each hop counts down the hops left, so a relay cannot loop.
+public class RelayPlan {
+
+    // Decides which Servers a Server accepts to forward images to.
+    public interface Policy {
+
+        // The address is not resolved, so deciding does not require any lookup.
+        boolean allows(InetSocketAddress server);
+    }
+
+    // Server the image is forwarded to, and those it has to forward the image to in turn.
+    public static class Hop {
+
+        final private InetSocketAddress address;
+        final private List<InetSocketAddress> downstream;
+
+        Hop(InetSocketAddress address, List<InetSocketAddress> downstream) {
+            this.address = address;
+            this.downstream = downstream;
+        }
+
+        public InetSocketAddress getAddress() {
+            return address;
+        }
+
+        public List<InetSocketAddress> getDownstream() {
+            return downstream;
+        }
+    }
+
+    // Creates a policy allowing just the given Servers, compared as host:port without resolving them.
+    public static Policy allowList(List<InetSocketAddress> servers) {
+        final Set<String> allowed = new HashSet<>();
+        for (InetSocketAddress server : servers) {
+            allowed.add(server.getHostName() + ':' + server.getPort());
+        }
+        return server -> allowed.contains(server.getHostName() + ':' + server.getPort());
+    }
+
+    // Gets the given Servers the policy allows, in the same order.
+    // No Server is allowed if there is no policy.
+    public static List<InetSocketAddress> filter(List<InetSocketAddress> servers, Policy policy) {
+        final List<InetSocketAddress> allowed = new ArrayList<>();
+        if (policy != null) {
+            for (InetSocketAddress server : servers) {
+                if (policy.allows(server)) {
+                    allowed.add(server);
+                }
+            }
+        }
+        return allowed;
+    }
+
+    // Gets the number of hops a relay through the given Servers may take, as each hop
+    // takes at least one of them out of those still to reach.
+    public static byte countHops(List<InetSocketAddress> servers) {
+        return (byte) Math.min(servers.size(), Byte.MAX_VALUE);
+    }
+
+    // Splits the given Servers into at most the given number of branches of similar size.
+    public static List<Hop> split(List<InetSocketAddress> servers, int fanout) {
+        final List<Hop> hops = new ArrayList<>();
+        final int branches = Math.min(Math.max(fanout, 1), servers.size());
+        int start = 0;
+        for (int i = 0; i < branches; i++) {
+            // The first branches take one more Server when they cannot be all the same size
+            final int size = servers.size() / branches + ((i < servers.size() % branches) ? 1 : 0);
+            hops.add(new Hop(servers.get(start),
+                    new ArrayList<>(servers.subList(start + 1, start + size))));
+            start += size;
+        }
+        return hops;
+    }
+
+    // Encodes the addresses of the given Servers as host:port separated by commas,
+    // or returns null if there are none.
+    public static String format(List<InetSocketAddress> servers) {
+        if (servers.isEmpty()) {
+            return null;
+        }
+        final StringBuilder relay = new StringBuilder();
+        for (InetSocketAddress server : servers) {
+            if (relay.length() > 0) {
+                relay.append(',');
+            }
+            final String host = (server.getAddress() != null)
+                    ? server.getAddress().getHostAddress()
+                    : server.getHostName();
+            // IPv6 addresses are enclosed in brackets, as they contain colons themselves
+            if (host.indexOf(':') >= 0) {
+                relay.append('[').append(host).append(']');
+            } else {
+                relay.append(host);
+            }
+            relay.append(':').append(server.getPort());
+        }
+        return relay.toString();
+    }
+
+    // Decodes the addresses of the Servers encoded by format(), without resolving them.
+    public static List<InetSocketAddress> parse(String relay) throws ProtocolException {
+        if ((relay == null) || relay.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final List<InetSocketAddress> servers = new ArrayList<>();
+        for (String server : relay.split(",")) {
+            final int colon = server.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new ProtocolException("Malformed relay address " + server);
+            }
+            String host = server.substring(0, colon).trim();
+            if (host.startsWith("[") && host.endsWith("]")) {
+                host = host.substring(1, host.length() - 1);
+            }
+            try {
+                servers.add(InetSocketAddress.createUnresolved(host,
+                        Integer.parseInt(server.substring(colon + 1).trim())));
+            } catch (IllegalArgumentException e) {
+                throw new ProtocolException("Malformed relay address " + server);
+            }
+        }
+        return servers;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.transfer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+// Opens the content of the images sent by a TransferClient,
+// such as files on disk or the images shared by other apps.
+public interface SourceProvider {
+
+    // Opens the content to be sent for the given image.
+    Source open(OutgoingImage image) throws IOException;
+
+    // Computes the content ID of the content to be sent for the given image (see ContentId),
+    // or returns null if it cannot be computed without copying the content first.
+    // Images without a content ID are always sent whole.
+    String getContentId(OutgoingImage image) throws IOException;
+
+    // Content of an image, either as a file or as a stream whose length is known in advance.
+    // Streams are sent as they are read, so they need not be copied first, but cannot be resumed.
+    final class Source implements Closeable {
+
+        // File holding the content, or null if it is a stream
+        private final FileChannel channel;
+        private final ReadableByteChannel stream;
+        // Length of the stream, as the file knows its own
+        private final long length;
+        // Released along with the channel, such as descriptors or temporary files
+        private final Closeable[] resources;
+
+        public Source(FileChannel channel, Closeable... resources) {
+            this.channel = channel;
+            this.stream = channel;
+            this.length = -1;
+            this.resources = resources;
+        }
+
+        public Source(ReadableByteChannel stream, long length, Closeable... resources) {
+            this.channel = null;
+            this.stream = stream;
+            this.length = length;
+            this.resources = resources;
+        }
+
+        // Gets the file holding the content, or null if it is a stream.
+        public FileChannel getChannel() {
+            return channel;
+        }
+
+        public ReadableByteChannel getStream() {
+            return stream;
+        }
+
+        public long getLength() throws IOException {
+            return (channel != null) ? channel.size() : length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            stream.close();
+            for (Closeable resource : resources) {
+                resource.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,23 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.transfer;
+
+import java.io.File;
+import java.io.IOException;
+
+// Where the images received by a TransferServer end up, identified by their content (see ContentId).
+// ImageStore keeps them on disk, but other sinks may forward or discard them.
+public interface StorageSink {
+
+    // Determines whether the image or payload with the given content ID is already stored,
+    // so Clients do not need to send it again.
+    boolean contains(String contentId);
+
+    // Takes a received image, moving or deleting its temporary file.
+    // The payload ID is the content ID of the received payload, if different from that of the image.
+    // Returns the file where the image can be read from, or null if it is not kept.
+    File store(File image, String contentId, String payloadId, String mimeType, String sender)
+            throws IOException;
+}
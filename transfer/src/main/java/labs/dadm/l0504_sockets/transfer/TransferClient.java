@@ -0,0 +1,327 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.transfer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+import labs.dadm.l0504_sockets.network.BandwidthScheduler;
+import labs.dadm.l0504_sockets.network.ConnectionPool;
+import labs.dadm.l0504_sockets.protocol.Encodings;
+import labs.dadm.l0504_sockets.protocol.FrameHeader;
+import labs.dadm.l0504_sockets.protocol.FrameIO;
+import labs.dadm.l0504_sockets.utils.Metrics;
+
+// Sends a batch of images to a Server, with no dependencies on Android,
+// so the same Client runs within the app or on any JVM (see TransferCli).
+// Images go back to back through a single pooled connection, while the acknowledgements are read
+// on another thread. If the connection drops, sending again only sends the images not answered yet,
+// resuming those the Server partially holds.
+public class TransferClient {
+
+    // Connections ready to be reused
+    private final ConnectionPool pool;
+    // Threads reading the acknowledgements while the images are being sent
+    private final ExecutorService ackReaders;
+    // Opens the content of the images
+    private final SourceProvider provider;
+    // Gets notified of the number of bytes sent so far, if not null
+    private FrameIO.Progress progress;
+    // Shares the link with other transfers, if not null
+    private BandwidthScheduler scheduler;
+    // Priority class of the images when sharing the link
+    private byte priority = FrameHeader.PRIORITY_INTERACTIVE;
+    // Servers the images are forwarded to by the one receiving them (see RelayPlan), if not null
+    private String relay;
+    // Number of times the images can be forwarded from Server to Server
+    private byte relayHops;
+
+    // Number of images acknowledged by the Server as correctly received, or already stored
+    private volatile int acknowledged;
+    // Number of bytes of the images sent so far
+    private long bytesSent;
+    // Problem found while reading the acknowledgements, if any
+    private IOException ackError;
+
+    public TransferClient(ConnectionPool pool, ExecutorService ackReaders, SourceProvider provider) {
+        this.pool = pool;
+        this.ackReaders = ackReaders;
+        this.provider = provider;
+    }
+
+    // Sets what gets notified of the number of bytes sent so far, after each image.
+    public TransferClient setProgress(FrameIO.Progress progress) {
+        this.progress = progress;
+        return this;
+    }
+
+    // Shares the link with other transfers through the given scheduler, with the given priority class
+    // (see FrameHeader.PRIORITY_INTERACTIVE), which is also stated to the Server.
+    public TransferClient setScheduler(BandwidthScheduler scheduler, byte priority) {
+        this.scheduler = scheduler;
+        this.priority = priority;
+        return this;
+    }
+
+    // Sets the Servers the images are forwarded to by the one receiving them, while they arrive,
+    // so they are uploaded just once no matter the number of Servers.
+    public TransferClient setRelay(List<InetSocketAddress> servers) {
+        relay = RelayPlan.format(servers);
+        relayHops = RelayPlan.countHops(servers);
+        return this;
+    }
+
+    public int getAcknowledged() {
+        return acknowledged;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    // Asks the Server in which format it wants the images.
+    // The answer takes a round trip, which is recorded to tune the connections to the Server.
+    public FrameHeader negotiate(InetSocketAddress address) throws IOException {
+        final SocketChannel channel = pool.acquire(address);
+        boolean reusable = false;
+        try {
+            final long start = System.nanoTime();
+            FrameIO.writeFully(channel, FrameIO.encodeControlFrame(
+                    new FrameHeader(FrameHeader.TYPE_HELLO, 0).setEncodings(Encodings.SUPPORTED)));
+            final FrameHeader preferences = FrameIO.readControlFrame(channel);
+            pool.getTuner().recordRtt(address.getAddress(), System.nanoTime() - start);
+            if (preferences.getType() != FrameHeader.TYPE_HELLO) {
+                throw new ProtocolException("Unexpected answer to hello");
+            }
+            // The connection will be reused right away to send the images
+            reusable = true;
+            return preferences;
+        } finally {
+            if (reusable) {
+                pool.release(address, channel);
+            } else {
+                // Close the channel and its Socket
+                channel.close();
+            }
+        }
+    }
+
+    // Sends the images back to back through a single connection, each one within a frame.
+    // Images already answered by the Server in previous attempts are not sent again,
+    // and those partially received are resumed from where they were left.
+    public void send(InetSocketAddress address, List<? extends OutgoingImage> images)
+            throws IOException, InterruptedException, ExecutionException {
+        if (countPending(images) == 0) {
+            return;
+        }
+
+        final SocketChannel channel = pool.acquire(address);
+        final BandwidthScheduler.Flow flow =
+                (scheduler != null) ? scheduler.open(address.getAddress(), priority) : null;
+        Future<?> ackReader = null;
+        boolean reusable = false;
+        ackError = null;
+        try {
+            // Ask the Server how much of each image it already holds.
+            // Images it already stores are not sent at all
+            final long[] offsets = queryOffsets(channel, images);
+            // Read the acknowledgements while the images are still being sent
+            final int expected = countPending(images);
+            ackReader = ackReaders.submit(() -> readAcknowledgements(channel, images, expected));
+            for (int i = 0; i < images.size(); i++) {
+                if (!images.get(i).isAnswered()) {
+                    sendImage(channel, flow, images.get(i), i, offsets[i]);
+                }
+            }
+            // Wait until all the images have been acknowledged
+            ackReader.get();
+            if (ackError != null) {
+                throw ackError;
+            }
+            // Nothing else is expected from the Server, so the connection can be reused
+            reusable = true;
+        } finally {
+            if (flow != null) {
+                flow.close();
+            }
+            if (reusable) {
+                pool.release(address, channel);
+            } else {
+                // Close the channel and its Socket
+                channel.close();
+                // Closing the channel stops the reader, so it is known which images were answered
+                if (ackReader != null) {
+                    try {
+                        ackReader.get();
+                    } catch (ExecutionException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+    }
+
+    // Counts the images not answered by the Server yet.
+    public static int countPending(List<? extends OutgoingImage> images) {
+        int pending = 0;
+        for (OutgoingImage image : images) {
+            if (!image.isAnswered()) {
+                pending++;
+            }
+        }
+        return pending;
+    }
+
+    // Identifies the images not answered yet by their content, and asks the Server how much of each one
+    // it already holds from previous attempts. Returns the offset to resume each image from.
+    // Images the Server already stores, even if sent by other Clients, are marked as answered.
+    // Images that cannot be identified are always sent whole.
+    private long[] queryOffsets(SocketChannel channel, List<? extends OutgoingImage> images)
+            throws IOException {
+        final long[] offsets = new long[images.size()];
+        int queries = 0;
+        for (int i = 0; i < images.size(); i++) {
+            final OutgoingImage image = images.get(i);
+            if (!image.isAnswered()) {
+                if (image.getContentId() == null) {
+                    image.setContentId(provider.getContentId(image));
+                }
+                if (image.getContentId() != null) {
+                    FrameIO.writeFully(channel, FrameIO.encodeControlFrame(
+                            new FrameHeader(FrameHeader.TYPE_RESUME_QUERY, 0)
+                                    .setSequence(i)
+                                    .setContentId(image.getContentId())));
+                    queries++;
+                }
+            }
+        }
+        // The Server answers all the queries before any image is sent
+        for (int i = 0; i < queries; i++) {
+            final FrameHeader reply = FrameIO.readControlFrame(channel);
+            final long sequence = reply.getSequence();
+            if ((reply.getType() != FrameHeader.TYPE_RESUME_OFFSET)
+                    || (sequence < 0) || (sequence >= offsets.length)) {
+                throw new ProtocolException("Unexpected answer to resume query");
+            }
+            // Relayed images are sent even if already stored, as the next Servers may lack them
+            if ((reply.getStatus() == FrameHeader.STATUS_STORED) && (relay == null)) {
+                images.get((int) sequence).setAnswered();
+                acknowledged++;
+                Metrics.IMAGES_SENT.incrementAndGet();
+            } else {
+                offsets[(int) sequence] = reply.getOffset();
+            }
+        }
+        return offsets;
+    }
+
+    // Reads an acknowledgement for each image sent and counts those correctly received.
+    // It runs on a thread of its own, so the Server never waits for the Client to read them.
+    private void readAcknowledgements(SocketChannel channel, List<? extends OutgoingImage> images,
+                                      int count) {
+        try {
+            for (int i = 0; i < count; i++) {
+                final FrameHeader ack = FrameIO.readControlFrame(channel);
+                final long sequence = ack.getSequence();
+                if ((ack.getType() != FrameHeader.TYPE_ACK) || (sequence < 0)
+                        || (sequence >= images.size()) || images.get((int) sequence).isAnswered()) {
+                    throw new ProtocolException("Unexpected acknowledgement");
+                }
+                images.get((int) sequence).setAnswered();
+                if (ack.getStatus() == FrameHeader.STATUS_OK) {
+                    acknowledged++;
+                    Metrics.IMAGES_SENT.incrementAndGet();
+                } else {
+                    Metrics.failure("checksum");
+                }
+            }
+        } catch (IOException e) {
+            ackError = e;
+        }
+    }
+
+    // Sends an image within a frame, letting the kernel copy its content.
+    // Images with a content ID are sent from the given offset, skipping what the Server already holds.
+    // Images read from a stream are sent whole as they are read.
+    // The payload takes turns with other transfers through the given flow, if not null.
+    private void sendImage(SocketChannel channel, BandwidthScheduler.Flow flow, OutgoingImage image,
+                           long sequence, long offset)
+            throws IOException {
+        final SourceProvider.Source source = provider.open(image);
+        try {
+            final FileChannel file = source.getChannel();
+            if (file == null) {
+                sendStream(channel, flow, image, source, sequence);
+                return;
+            }
+            final long size = file.size();
+            if ((image.getContentId() == null) || (offset > size)) {
+                offset = 0;
+            }
+            final FrameHeader header = createHeader(image, size - offset, sequence);
+            if (image.getContentId() != null) {
+                header.setContentId(image.getContentId()).setOffset(offset).setTotalLength(size);
+            }
+
+            FrameIO.writeHeader(channel, header);
+            final long start = System.nanoTime();
+            // Pieces are sized to the link, and its throughput measured on the way
+            pool.getTuner().sendPayload(file, offset, size - offset, channel, flow);
+            recordImage(size - offset, start);
+            // The content of the file was just read, so computing its checksum hits the cache
+            FrameIO.writeTrailer(channel, FrameIO.checksum(file, offset, size - offset));
+        } finally {
+            // Close the input channel
+            source.close();
+        }
+    }
+
+    // Sends an image read from a stream within a frame, computing its checksum while sending it,
+    // as the stream cannot be read again.
+    // If the stream does not hold the bytes stated, the frame cannot be completed, so the connection
+    // is dropped and the Server discards what it received.
+    private void sendStream(SocketChannel channel, BandwidthScheduler.Flow flow, OutgoingImage image,
+                            SourceProvider.Source source, long sequence) throws IOException {
+        final long size = source.getLength();
+        FrameIO.writeHeader(channel, createHeader(image, size, sequence));
+        final long start = System.nanoTime();
+        final CRC32 crc = new CRC32();
+        pool.getTuner().sendStream(source.getStream(), size, channel, crc, flow);
+        recordImage(size, start);
+        FrameIO.writeTrailer(channel, crc.getValue());
+    }
+
+    // Creates the header of the frame of an image whose payload takes the given number of bytes.
+    private FrameHeader createHeader(OutgoingImage image, long length, long sequence) {
+        return new FrameHeader(FrameHeader.TYPE_IMAGE, length)
+                .setName(image.getName())
+                .setMimeType(image.getMimeType())
+                .setEncoding(image.getEncoding())
+                .setDecodedLength(image.getDecodedLength())
+                .setPriority(priority)
+                .setRelay(relay)
+                .setRelayHops(relayHops)
+                .setSequence(sequence);
+    }
+
+    // Records the metrics of a payload of the given length, whose sending started at the given time,
+    // and reports the progress.
+    private void recordImage(long length, long start) {
+        Metrics.SEND_THROUGHPUT.record(Metrics.throughput(length, System.nanoTime() - start));
+        Metrics.BYTES_SENT.addAndGet(length);
+        bytesSent += length;
+        if (progress != null) {
+            progress.onProgress(bytesSent);
+        }
+    }
+}
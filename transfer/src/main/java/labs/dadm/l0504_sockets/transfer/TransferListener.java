@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.transfer;
+
+import java.io.File;
+
+import labs.dadm.l0504_sockets.protocol.FrameHeader;
+import labs.dadm.l0504_sockets.protocol.FrameIO;
+import labs.dadm.l0504_sockets.utils.TransferStats;
+
+// Gets notified of what happens on a Server, such as an app displaying the received images
+// or a command line tool printing statistics. Methods are called from the threads of the Server,
+// so they must return quickly.
+public interface TransferListener {
+
+    // The Server is accepting Clients.
+    void onServerRunning();
+
+    // The Server has stopped, due to the given error if not cancelled.
+    void onServerStopped(Exception error);
+
+    // A Client has been accepted and identified by the given ID.
+    void onClientAccepted(long connectionId);
+
+    // A Client has to wait for a free worker.
+    void onClientQueued(long connectionId);
+
+    // A Client has been rejected, as all the workers are busy.
+    void onClientRejected(long connectionId);
+
+    // An image starts being received into the given file, from the given offset.
+    // Returns what should follow its progress as it arrives (such as previews), or null.
+    ImageProgress onImageStarted(long connectionId, FrameHeader header, File file, long start);
+
+    // The given number of bytes have been received so far through the connection.
+    // It is called a few times per second at most.
+    void onProgress(long connectionId, long received);
+
+    // An image has been stored into the given file (null if the sink does not keep it).
+    void onImageStored(long connectionId, String contentId, File file);
+
+    // The connection has been closed, after receiving the given number of bytes.
+    void onClientClosed(long connectionId, long received);
+
+    // A payload has been received in the given mode, at the cost measured by the given stats,
+    // so different ways of copying the same data can be compared.
+    void onPayloadMeasured(long connectionId, String mode, TransferStats stats);
+
+    // Follows an image as it arrives.
+    interface ImageProgress extends FrameIO.Progress {
+
+        // No more bytes of the image will arrive through the current connection.
+        void finish();
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.transfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import labs.dadm.l0504_sockets.network.BandwidthScheduler;
+import labs.dadm.l0504_sockets.network.ChunkAssembler;
+import labs.dadm.l0504_sockets.network.ConnectionPool;
+import labs.dadm.l0504_sockets.network.PartialStore;
+import labs.dadm.l0504_sockets.network.TransportTuner;
+import labs.dadm.l0504_sockets.protocol.Encodings;
+import labs.dadm.l0504_sockets.protocol.FrameHeader;
+
+// Accepts Clients on a port and receives their images, with no dependencies on Android,
+// so the same Server runs within the app or on any JVM (see TransferCli).
+// Each accepted Client is handed to a bounded pool of workers, so the Server is
+// always ready to accept the next one. Clients exceeding the capacity of the pool
+// and its waiting queue are rejected.
+// Received images go to a StorageSink, and what happens is notified to a TransferListener.
+public class TransferServer {
+
+    // Subdirectory where the partial images are kept
+    public static final String PARTIAL_DIRECTORY = "partial";
+
+    // Port where Clients are accepted
+    final private int port;
+    // Directory where the images are written while being received
+    final private File directory;
+    // Where the received images end up
+    final private StorageSink sink;
+    // Gets notified of what happens on the Server
+    final private TransferListener listener;
+
+    // Number of workers receiving images and of Clients that can wait for them
+    private int poolSize = 4;
+    private int queueSize = 8;
+    // Seconds a connection can stay idle before being closed
+    private int idleTimeout = 15;
+    // Time a partially received image is kept for its Client to resume the transfer
+    private long partialTtl = TimeUnit.HOURS.toMillis(1);
+    // Whether raw images are moved from the socket to the file without copying them into the JVM
+    private boolean zeroCopy = true;
+    // Answer to the Clients asking in which format the images should be sent
+    private FrameHeader hello = createHello(0, 0);
+    // Receive buffer of the accepted connections, and Clients waiting to be accepted
+    private int receiveBufferSize = 1024 * 1024;
+    private int backlog = 50;
+    // Shares the incoming link among the Clients, if not null
+    private BandwidthScheduler scheduler;
+    // Number of branches each relayed image is forwarded to (see RelayPlan)
+    private int relayFanout = 2;
+    // Servers the images may be forwarded to, none if null
+    private RelayPlan.Policy relayPolicy;
+
+    // Hold reference to the ServerSocket.
+    // It is created through a channel, so accepted sockets can transfer data without copies
+    private ServerSocketChannel server;
+    // Bounded pool of workers receiving the images
+    private ThreadPoolExecutor workers;
+    // Closes the connections that stay idle for too long
+    private ScheduledExecutorService timer;
+    // Connections to the next Servers of the relays, ready to be reused
+    private ConnectionPool relayPool;
+    // Forward the images to the next Servers of the relays, one thread per branch
+    private ExecutorService relayWorkers;
+    // Branches each next Server is sent at once, as many as its workers, assumed to match these
+    final private ConcurrentHashMap<InetSocketAddress, Semaphore> relayLanes = new ConcurrentHashMap<>();
+    // Puts together the images sent in chunks through several connections
+    private ChunkAssembler assembler;
+    // Keeps the images partially received, so Clients can resume their transfer
+    private PartialStore partials;
+    // Sockets of the Clients being served or waiting for a worker
+    final private Set<Socket> clients = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    private volatile boolean cancelled;
+
+    public TransferServer(int port, File directory, StorageSink sink, TransferListener listener) {
+        this.port = port;
+        this.directory = directory;
+        this.sink = sink;
+        this.listener = listener;
+    }
+
+    // Sets the number of workers receiving images, and of Clients that can wait for a free one.
+    public TransferServer setWorkers(int poolSize, int queueSize) {
+        this.poolSize = poolSize;
+        this.queueSize = queueSize;
+        return this;
+    }
+
+    // Sets the seconds a connection can stay idle before being closed.
+    public TransferServer setIdleTimeout(int seconds) {
+        idleTimeout = seconds;
+        return this;
+    }
+
+    // Sets the time a partially received image is kept for its Client to resume the transfer.
+    public TransferServer setPartialTtl(long millis) {
+        partialTtl = millis;
+        return this;
+    }
+
+    // Sets whether raw images are moved from the socket to the file without copying them into the JVM.
+    public TransferServer setZeroCopy(boolean zeroCopy) {
+        this.zeroCopy = zeroCopy;
+        return this;
+    }
+
+    // Sets the answer to the Clients asking in which format the images should be sent.
+    public TransferServer setHello(FrameHeader hello) {
+        this.hello = hello;
+        return this;
+    }
+
+    // Sets the receive buffer of the accepted connections, which should hold the bandwidth-delay product
+    // of the fastest link expected, and the number of Clients that can wait to be accepted.
+    public TransferServer setTransport(int receiveBufferSize, int backlog) {
+        this.receiveBufferSize = receiveBufferSize;
+        this.backlog = backlog;
+        return this;
+    }
+
+    // Shares the incoming link among the Clients through the given scheduler,
+    // pacing the reads of each payload according to the priority stated by its Client.
+    public TransferServer setScheduler(BandwidthScheduler scheduler) {
+        this.scheduler = scheduler;
+        return this;
+    }
+
+    // Sets the number of branches each relayed image is forwarded to.
+    // The more branches, the shallower the tree of Servers, but the more the link of each one is shared.
+    public TransferServer setRelayFanout(int fanout) {
+        relayFanout = fanout;
+        return this;
+    }
+
+    // Sets the Servers the images may be forwarded to when relayed by their Clients.
+    // Without a policy, relayed images are stored but not forwarded, so the Server cannot be made
+    // to connect to hosts it does not know on behalf of its Clients.
+    public TransferServer setRelayPolicy(RelayPlan.Policy policy) {
+        relayPolicy = policy;
+        return this;
+    }
+
+    // Creates the answer to the Clients asking in which format the images should be sent.
+    // If the maximum dimension is not 0, Clients re-encode the images to that size and quality
+    // before sending them. Other payloads can always be compressed.
+    public static FrameHeader createHello(int maxDimension, int quality) {
+        final FrameHeader hello = new FrameHeader(FrameHeader.TYPE_HELLO, 0)
+                .setEncodings(Encodings.SUPPORTED);
+        if (maxDimension > 0) {
+            hello.setMaxDimension(maxDimension).setQuality((byte) quality);
+        }
+        return hello;
+    }
+
+    // Stops accepting new Clients and aborts the ongoing transfers.
+    public void cancel() {
+        this.cancelled = true;
+        try {
+            // Close the ServerSocket if it is active, as it could be blocked waiting
+            // for new clients and will not stop just by cancelling the task
+            if ((server != null) && server.socket().isBound()) {
+                server.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+        // Discard the images not completely received
+        if (assembler != null) {
+            assembler.close();
+        }
+        if (partials != null) {
+            partials.close();
+        }
+        if (relayWorkers != null) {
+            relayWorkers.shutdownNow();
+        }
+        if (relayPool != null) {
+            relayPool.close();
+        }
+        // Blocking reads are not interrupted, so close the sockets of the Clients being served
+        for (Socket socket : clients) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Accepts Clients and receives their images on the calling thread until cancelled.
+    public void run() {
+        Socket socket;
+        long nextId = 0;
+
+        cancelled = false;
+
+        workers = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), new ThreadPoolExecutor.AbortPolicy());
+        timer = Executors.newSingleThreadScheduledExecutor();
+        assembler = new ChunkAssembler(directory, partialTtl);
+        partials = new PartialStore(new File(directory, PARTIAL_DIRECTORY), partialTtl);
+        // Delete the partial images left by Clients that never resumed their transfer,
+        // and those whose chunks stopped arriving
+        timer.scheduleWithFixedDelay(partials::collectGarbage, 0, partialTtl, TimeUnit.MILLISECONDS);
+        timer.scheduleWithFixedDelay(assembler::collectGarbage, partialTtl, partialTtl, TimeUnit.MILLISECONDS);
+        // Keep the connections to the next Servers of the relays for less time than they keep them
+        final long keepAlive = TimeUnit.SECONDS.toMillis(idleTimeout) / 2;
+        relayPool = new ConnectionPool(keepAlive, relayFanout);
+        timer.scheduleWithFixedDelay(relayPool::evictIdle, keepAlive, keepAlive, TimeUnit.MILLISECONDS);
+        relayWorkers = Executors.newCachedThreadPool();
+
+        Exception error = null;
+        try {
+            // Bound a new ServerSocket to the given port.
+            // The channel is kept in blocking mode, as each Client has got its own worker
+            server = ServerSocketChannel.open();
+            TransportTuner.configureServer(server.socket(), receiveBufferSize);
+            server.socket().bind(new InetSocketAddress(port), backlog);
+            listener.onServerRunning();
+
+            // Keep accepting new clients until cancelled
+            while (!cancelled) {
+
+                // Block to wait for new Clients
+                socket = server.accept().socket();
+                TransportTuner.configureAccepted(socket);
+
+                // Hand the Client to a worker that will receive its images
+                dispatch(new ConnectionReceiver(this, socket, nextId++));
+            }
+        } catch (IOException e) {
+            // If cancelled then this error is due to the ServerSocket being closed
+            // while waiting for new clients. It is safe to dismiss it
+            if (!cancelled) {
+                error = e;
+            }
+        }
+
+        // Let the transfers in progress finish, but do not accept any other.
+        // Shutting the timer down would cancel the watchdogs of their connections,
+        // so it is only stopped once the last worker is done
+        workers.shutdown();
+        final ThreadPoolExecutor draining = workers;
+        final ScheduledExecutorService stopping = timer;
+        try {
+            stopping.scheduleWithFixedDelay(() -> {
+                if (draining.isTerminated()) {
+                    stopping.shutdown();
+                }
+            }, 0, 1, TimeUnit.SECONDS);
+        } catch (RejectedExecutionException e) {
+            // Already stopped by cancel()
+        }
+        relayWorkers.shutdown();
+        listener.onServerStopped(error);
+    }
+
+    // Submits the task to the pool of workers, or rejects the Client if the pool is full.
+    private void dispatch(final ConnectionReceiver task) throws IOException {
+        final Socket socket = task.getSocket();
+        clients.add(socket);
+        try {
+            workers.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    clients.remove(socket);
+                }
+            });
+            // Notify the Client has to wait until a worker becomes available
+            if (!workers.getQueue().isEmpty()) {
+                listener.onClientQueued(task.getId());
+            }
+        } catch (RejectedExecutionException e) {
+            // All workers are busy and the queue is full, so close the connection right away
+            clients.remove(socket);
+            socket.close();
+            listener.onClientRejected(task.getId());
+        }
+    }
+
+    File getDirectory() {
+        return directory;
+    }
+
+    StorageSink getSink() {
+        return sink;
+    }
+
+    TransferListener getListener() {
+        return listener;
+    }
+
+    int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    boolean isZeroCopy() {
+        return zeroCopy;
+    }
+
+    FrameHeader getHello() {
+        return hello;
+    }
+
+    BandwidthScheduler getScheduler() {
+        return scheduler;
+    }
+
+    ConnectionPool getRelayPool() {
+        return relayPool;
+    }
+
+    int getRelayFanout() {
+        return relayFanout;
+    }
+
+    RelayPlan.Policy getRelayPolicy() {
+        return relayPolicy;
+    }
+
+    ExecutorService getRelayWorkers() {
+        return relayWorkers;
+    }
+
+    Semaphore getRelayLanes(InetSocketAddress next) {
+        final Semaphore lanes = relayLanes.get(next);
+        if (lanes != null) {
+            return lanes;
+        }
+        final Semaphore created = new Semaphore(poolSize);
+        final Semaphore previous = relayLanes.putIfAbsent(next, created);
+        return (previous != null) ? previous : created;
+    }
+
+    ScheduledExecutorService getTimer() {
+        return timer;
+    }
+
+    ChunkAssembler getAssembler() {
+        return assembler;
+    }
+
+    PartialStore getPartials() {
+        return partials;
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Pool of large direct buffers to move data between channels.
+// Direct buffers are expensive to allocate and are not reclaimed quickly by the garbage
+// collector, so they are kept and reused across transfers.
+public class BufferPool {
+
+    // Size of each buffer
+    public static final int BUFFER_SIZE = 256 * 1024;
+    // Maximum number of idle buffers kept in the pool
+    private static final int MAX_IDLE_BUFFERS = 4;
+
+    private static final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+
+    // Gets an empty buffer from the pool, or allocates a new one if the pool is empty.
+    public static ByteBuffer acquire() {
+        final ByteBuffer buffer = buffers.poll();
+        if (buffer != null) {
+            buffer.clear();
+            return buffer;
+        }
+        return ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    // Returns a buffer to the pool once it is no longer used.
+    public static void release(ByteBuffer buffer) {
+        // The size of the queue is only approximated, but it is enough to bound the pool
+        if (buffers.size() < MAX_IDLE_BUFFERS) {
+            buffers.offer(buffer);
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Collects the performance of the transfers on both the Client and the Server:
+// counters, gauges and histograms updated with atomic operations only, so recording a value
+// is cheap enough to be done for every frame. A snapshot of all of them can be exported as JSON
+// (see dump()) to be collected after load tests.
+public class Metrics {
+
+    // Throughput of each received or sent image, in bytes per second
+    public static final Histogram RECEIVE_THROUGHPUT = new Histogram();
+    public static final Histogram SEND_THROUGHPUT = new Histogram();
+    // Time from accepting a connection until its first byte arrives, in microseconds
+    public static final Histogram TIME_TO_FIRST_BYTE = new Histogram();
+    // Time from accepting a connection until its first image is stored, in microseconds
+    public static final Histogram ACCEPT_TO_COMPLETE = new Histogram();
+    // Time spent decoding sampled images, in microseconds
+    public static final Histogram DECODE_TIME = new Histogram();
+
+    // Bytes of the payloads received and sent
+    public static final AtomicLong BYTES_RECEIVED = new AtomicLong();
+    public static final AtomicLong BYTES_SENT = new AtomicLong();
+    // Images received and sent
+    public static final AtomicLong IMAGES_RECEIVED = new AtomicLong();
+    public static final AtomicLong IMAGES_SENT = new AtomicLong();
+    // Bytes and images forwarded by the Server to the next ones of a relay
+    public static final AtomicLong BYTES_RELAYED = new AtomicLong();
+    public static final AtomicLong IMAGES_RELAYED = new AtomicLong();
+    // Connections currently served by the Server
+    public static final AtomicLong ACTIVE_CONNECTIONS = new AtomicLong();
+
+    // Failures by cause, such as the type of the exception thrown
+    private static final ConcurrentHashMap<String, AtomicLong> failures = new ConcurrentHashMap<>();
+
+    // Records a failure with the given cause.
+    public static void failure(String cause) {
+        AtomicLong counter = failures.get(cause);
+        if (counter == null) {
+            final AtomicLong created = new AtomicLong();
+            counter = failures.putIfAbsent(cause, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+    // Records a failure caused by the given exception.
+    public static void failure(Throwable cause) {
+        failure(cause.getClass().getSimpleName());
+    }
+
+    // Computes the throughput of moving the given number of bytes in the given nanoseconds.
+    public static long throughput(long bytes, long nanos) {
+        return (nanos > 0) ? (long) (bytes * 1e9 / nanos) : 0;
+    }
+
+    // Gets the microseconds elapsed since the given value of System.nanoTime().
+    public static long microsSince(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1000;
+    }
+
+    // Writes a snapshot of all the metrics as JSON.
+    public static String toJson() {
+        final StringBuilder json = new StringBuilder();
+        json.append("{\"timestamp\":").append(System.currentTimeMillis());
+        json.append(",\"counters\":{");
+        appendValue(json, "bytes_received", BYTES_RECEIVED.get(), true);
+        appendValue(json, "bytes_sent", BYTES_SENT.get(), false);
+        appendValue(json, "images_received", IMAGES_RECEIVED.get(), false);
+        appendValue(json, "images_sent", IMAGES_SENT.get(), false);
+        appendValue(json, "bytes_relayed", BYTES_RELAYED.get(), false);
+        appendValue(json, "images_relayed", IMAGES_RELAYED.get(), false);
+        appendValue(json, "active_connections", ACTIVE_CONNECTIONS.get(), false);
+        json.append("},\"failures\":{");
+        // Sort the causes, so consecutive snapshots can be easily compared
+        final Map<String, Long> sorted = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> entry : failures.entrySet()) {
+            sorted.put(entry.getKey(), entry.getValue().get());
+        }
+        boolean first = true;
+        for (Map.Entry<String, Long> entry : sorted.entrySet()) {
+            appendValue(json, entry.getKey(), entry.getValue(), first);
+            first = false;
+        }
+        json.append("},\"histograms\":{");
+        appendHistogram(json, "receive_throughput_bps", RECEIVE_THROUGHPUT, true);
+        appendHistogram(json, "send_throughput_bps", SEND_THROUGHPUT, false);
+        appendHistogram(json, "time_to_first_byte_us", TIME_TO_FIRST_BYTE, false);
+        appendHistogram(json, "accept_to_complete_us", ACCEPT_TO_COMPLETE, false);
+        appendHistogram(json, "decode_time_us", DECODE_TIME, false);
+        json.append("}}");
+        return json.toString();
+    }
+
+    // Writes a snapshot of all the metrics into the given file, replacing it atomically,
+    // so it can be pulled from the device (e.g. through adb) while the app keeps running.
+    public static void dump(File file) {
+        final File tmp = new File(file.getPath() + ".tmp");
+        try {
+            final Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+            try {
+                writer.write(toJson());
+            } finally {
+                writer.close();
+            }
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            tmp.delete();
+        }
+    }
+
+    private static void appendValue(StringBuilder json, String name, long value, boolean first) {
+        if (!first) {
+            json.append(',');
+        }
+        appendName(json, name);
+        json.append(value);
+    }
+
+    private static void appendHistogram(StringBuilder json, String name, Histogram histogram,
+                                        boolean first) {
+        if (!first) {
+            json.append(',');
+        }
+        appendName(json, name);
+        histogram.appendJson(json);
+    }
+
+    // Writes the name of a field, escaping the characters not allowed within JSON strings.
+    private static void appendName(StringBuilder json, String name) {
+        json.append('"');
+        for (int i = 0; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            if ((c == '"') || (c == '\\')) {
+                json.append('\\').append(c);
+            } else if (c >= ' ') {
+                json.append(c);
+            }
+        }
+        json.append("\":");
+    }
+
+    // Distribution of non-negative values, kept in buckets whose bounds are powers of two.
+    // Percentiles are approximated by the upper bound of their bucket, so they are within a factor of 2,
+    // which is enough to compare transfers while recording a value takes a few atomic increments.
+    public static final class Histogram {
+
+        // Bucket i holds the values in [2^(i-1), 2^i), and bucket 0 holds 0
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        // Records a value. Negative values are recorded as 0.
+        public void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long current;
+            while (value > (current = max.get())) {
+                if (max.compareAndSet(current, value)) {
+                    break;
+                }
+            }
+        }
+
+        // Gets the approximate value below which the given fraction of the values fall.
+        long percentile(double fraction) {
+            final long total = count.get();
+            if (total == 0) {
+                return 0;
+            }
+            final long rank = (long) Math.ceil(total * fraction);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    // Upper bound of the bucket, but never above the largest value recorded
+                    return Math.min((i == 0) ? 0 : (i >= 63) ? Long.MAX_VALUE : (1L << i) - 1, max.get());
+                }
+            }
+            return max.get();
+        }
+
+        void appendJson(StringBuilder json) {
+            final long total = count.get();
+            json.append("{\"count\":").append(total)
+                    .append(",\"mean\":").append((total == 0) ? 0 : sum.get() / total)
+                    .append(",\"p50\":").append(percentile(0.5))
+                    .append(",\"p90\":").append(percentile(0.9))
+                    .append(",\"p99\":").append(percentile(0.99))
+                    .append(",\"max\":").append(max.get())
+                    .append('}');
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2020. David de Andrés and Juan Carlos Ruiz, DISCA - UPV, Development of apps for mobile devices.
+ */
+
+package labs.dadm.l0504_sockets.utils;
+
+import java.util.Locale;
+
+// Measures the cost of moving data on the calling thread: elapsed time, CPU time and
+// number of garbage collections, normalized per transferred MB.
+// It enables comparing different ways of copying the same data.
+// CPU time and garbage collections are read differently on Android and on other JVMs,
+// so the platform sets how (see Sampler); they count as 0 otherwise.
+public class TransferStats {
+
+    private static final double MB = 1024 * 1024;
+
+    // Reads the CPU time and garbage collections of the platform
+    private static volatile Sampler sampler = new Sampler() {
+        @Override
+        public long getThreadCpuTimeNanos() {
+            return 0;
+        }
+
+        @Override
+        public long getGcCount() {
+            return 0;
+        }
+    };
+
+    // Values at the beginning of the measurement
+    private final long startNanos = System.nanoTime();
+    private final long startCpuTime;
+    private final long startGcCount;
+
+    // Values at the end of the measurement
+    private long elapsedTime;
+    private long cpuTime;
+    private long gcCount;
+    private long bytes;
+
+    // Starts measuring on the calling thread.
+    public TransferStats() {
+        startCpuTime = sampler.getThreadCpuTimeNanos();
+        startGcCount = sampler.getGcCount();
+    }
+
+    // Sets how the CPU time and garbage collections are read on this platform.
+    public static void setSampler(Sampler sampler) {
+        TransferStats.sampler = sampler;
+    }
+
+    // Gets the value of System.nanoTime() when the measurement started.
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    // Stops measuring after the given amount of bytes have been transferred.
+    public TransferStats stop(long bytes) {
+        this.bytes = bytes;
+        elapsedTime = (System.nanoTime() - startNanos) / 1000000;
+        cpuTime = sampler.getThreadCpuTimeNanos() - startCpuTime;
+        gcCount = sampler.getGcCount() - startGcCount;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        final double megabytes = Math.max(bytes / MB, 1 / MB);
+        return String.format(Locale.US,
+                "%d bytes in %d ms (%.1f MB/s), CPU %.2f ms/MB, %.2f GCs/MB",
+                bytes, elapsedTime, megabytes * 1000 / Math.max(elapsedTime, 1),
+                cpuTime / 1e6 / megabytes, gcCount / megabytes);
+    }
+
+    // Reads the counters of the platform.
+    public interface Sampler {
+
+        // Gets the CPU time used so far by the calling thread.
+        long getThreadCpuTimeNanos();
+
+        // Gets the number of garbage collections so far, or 0 if not available.
+        long getGcCount();
+    }
+}